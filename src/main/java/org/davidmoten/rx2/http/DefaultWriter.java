@@ -0,0 +1,93 @@
+package org.davidmoten.rx2.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.davidmoten.rx2.io.internal.Util;
+
+/**
+ * Writes to an {@link OutputStream} without copying heap {@link ByteBuffer}s.
+ * Frame headers and small payloads are assembled in a reusable staging buffer
+ * so that a frame costs one call to the underlying stream.
+ */
+final class DefaultWriter implements Writer {
+
+    private static final int STAGING_SIZE = 8192;
+
+    private final OutputStream out;
+    private final byte[] staging = new byte[STAGING_SIZE];
+
+    DefaultWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(ByteBuffer bb) throws IOException {
+        if (bb.hasArray()) {
+            out.write(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+        } else {
+            int p = bb.position();
+            while (bb.hasRemaining()) {
+                int n = Math.min(bb.remaining(), STAGING_SIZE);
+                bb.get(staging, 0, n);
+                out.write(staging, 0, n);
+            }
+            bb.position(p);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+    }
+
+    @Override
+    public void writeInt(int v) throws IOException {
+        Util.putInt(staging, 0, v);
+        out.write(staging, 0, 4);
+    }
+
+    @Override
+    public void writeLong(long v) throws IOException {
+        Util.putInt(staging, 0, (int) (v >>> 32));
+        Util.putInt(staging, 4, (int) v);
+        out.write(staging, 0, 8);
+    }
+
+    @Override
+    public void writeFrame(byte[] header, int headerLength, ByteBuffer bb) throws IOException {
+        int length = bb.remaining();
+        if (headerLength + length <= STAGING_SIZE) {
+            System.arraycopy(header, 0, staging, 0, headerLength);
+            if (bb.hasArray()) {
+                System.arraycopy(bb.array(), bb.arrayOffset() + bb.position(), staging,
+                        headerLength, length);
+            } else {
+                int p = bb.position();
+                bb.get(staging, headerLength, length);
+                bb.position(p);
+            }
+            out.write(staging, 0, headerLength + length);
+        } else {
+            out.write(header, 0, headerLength);
+            write(bb);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+}
@@ -0,0 +1,77 @@
+package org.davidmoten.rx2.http;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.davidmoten.rx2.io.internal.Protocol;
+import org.reactivestreams.Publisher;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+import io.reactivex.Flowable;
+import io.reactivex.Single;
+
+/**
+ * Builds preset compression dictionaries for
+ * {@link Response.Builder#dictionary(byte[])} from sample items.
+ */
+public final class Dictionaries {
+
+    private Dictionaries() {
+        // prevent instantiation
+    }
+
+    /**
+     * Returns a dictionary made of the concatenated samples. If the samples are
+     * longer than 32KB only the last 32KB are used (deflate prefers matches
+     * that are close so the most representative samples should come last).
+     * The positions of the samples are not changed.
+     *
+     * @param samples
+     *            sample items
+     * @return preset dictionary
+     */
+    public static byte[] fromSamples(Iterable<? extends ByteBuffer> samples) {
+        Preconditions.checkNotNull(samples, "samples cannot be null");
+        List<ByteBuffer> list = new ArrayList<>();
+        long total = 0;
+        for (ByteBuffer bb : samples) {
+            list.add(bb);
+            total += bb.remaining();
+        }
+        byte[] dictionary = new byte[(int) Math.min(total, Protocol.MAX_DICTIONARY_LENGTH)];
+        // fill from the end
+        int index = dictionary.length;
+        for (int i = list.size() - 1; i >= 0 && index > 0; i--) {
+            ByteBuffer bb = list.get(i).duplicate();
+            int n = Math.min(bb.remaining(), index);
+            bb.position(bb.limit() - n);
+            index -= n;
+            bb.get(dictionary, index, n);
+        }
+        return dictionary;
+    }
+
+    /**
+     * Returns a dictionary built from the first {@code numItems} items emitted by
+     * {@code publisher}. Build it once and reuse it for many responses because
+     * every subscription to the result subscribes to {@code publisher}.
+     *
+     * @param publisher
+     *            source of sample items
+     * @param numItems
+     *            number of items to sample
+     * @return preset dictionary
+     */
+    public static Single<byte[]> fromFirst(Publisher<? extends ByteBuffer> publisher,
+            int numItems) {
+        Preconditions.checkArgument(numItems > 0, "numItems must be positive");
+        return Flowable.fromPublisher(publisher) //
+                .take(numItems) //
+                .<ByteBuffer>map(bb -> bb) //
+                .toList() //
+                .map(Dictionaries::fromSamples);
+    }
+
+}
@@ -18,13 +18,28 @@ public abstract class FlowableHttpServlet extends HttpServlet {
     
     @Override
     public void init(ServletConfig config) throws ServletException {
-        handler = ServletHandler.create();
+        handler = ServletHandler.create(statsEnabled());
+    }
+
+    /**
+     * Returns true if a call with a {@code stats} parameter (for example
+     * {@code GET /stream?stats}) should be answered with a plain text snapshot
+     * of the live streams of this servlet: per stream the id, age, total
+     * requested, items and bytes written, items and bytes queued, time since
+     * the last write and client address, then totals. Recording the numbers
+     * costs a little per item so the default is false. The snapshot shows
+     * client addresses so restrict access to the path if enabled.
+     * 
+     * @return whether to serve stats calls
+     */
+    protected boolean statsEnabled() {
+        return false;
     }
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
-        handler.doGet(() -> respond(req), req, resp);
+        handler.doGet(() -> respond(req), this::respond, req, resp);
     }
 
     @Override
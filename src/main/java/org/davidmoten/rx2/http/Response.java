@@ -1,10 +1,14 @@
 package org.davidmoten.rx2.http;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
 import org.davidmoten.rx2.io.internal.AfterOnNextFactory;
+import org.davidmoten.rx2.io.internal.Protocol;
 import org.reactivestreams.Publisher;
 
+import com.github.davidmoten.guavamini.Preconditions;
+
 import io.reactivex.Scheduler;
 import io.reactivex.schedulers.Schedulers;
 
@@ -20,13 +24,36 @@ public final class Response {
 
     private final AfterOnNextFactory afterOnNextFactory;
 
+    private final boolean batch;
+
+    private final boolean compress;
+
+    private final byte[] dictionary;
+
+    private final long idleTimeoutMs;
+
+    private final long stallTimeoutMs;
+
+    private final ServerMetrics metrics;
+
+    private final int traceEvery;
+
     Response(Publisher<? extends ByteBuffer> publisher, Scheduler requestScheduler, boolean async,
-            WriterFactory writerFactory, AfterOnNextFactory afterOnNextFactory) {
+            WriterFactory writerFactory, AfterOnNextFactory afterOnNextFactory, boolean batch,
+            boolean compress, byte[] dictionary, long idleTimeoutMs, long stallTimeoutMs,
+            ServerMetrics metrics, int traceEvery) {
         this.publisher = publisher;
         this.requestScheduler = requestScheduler;
         this.async = async;
         this.writerFactory = writerFactory;
         this.afterOnNextFactory = afterOnNextFactory;
+        this.batch = batch;
+        this.compress = compress;
+        this.dictionary = dictionary;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.stallTimeoutMs = stallTimeoutMs;
+        this.metrics = metrics;
+        this.traceEvery = traceEvery;
     }
 
     public Publisher<? extends ByteBuffer> publisher() {
@@ -49,6 +76,58 @@ public final class Response {
         return afterOnNextFactory;
     }
 
+    public boolean isBatch() {
+        return batch;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * Returns a copy of the preset compression dictionary, null if none was
+     * set.
+     * 
+     * @return preset dictionary or null
+     */
+    public byte[] dictionary() {
+        return dictionary == null ? null : dictionary.clone();
+    }
+
+    /**
+     * Returns the idle time after which the stream is cancelled, zero if
+     * streams don't expire.
+     * 
+     * @return idle timeout in ms
+     */
+    public long idleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+
+    /**
+     * Returns the time without write progress (while there is data to write)
+     * after which the stream is cancelled, zero if stalls are not detected.
+     * 
+     * @return stall timeout in ms
+     */
+    public long stallTimeoutMs() {
+        return stallTimeoutMs;
+    }
+
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the interval (in items) at which items are traced for clients
+     * that support tracing, zero if items are not traced.
+     * 
+     * @return trace interval
+     */
+    public int traceEvery() {
+        return traceEvery;
+    }
+
     public static Builder publisher(Publisher<? extends ByteBuffer> publisher) {
         return new Builder(publisher);
     }
@@ -71,6 +150,15 @@ public final class Response {
         private WriterFactory writerFactory = WriterFactory.DEFAULT;
         private int flushAfterItems = 1;
         private int flushAfterBytes;
+        private long flushAfterMs;
+        private AfterOnNextFactory afterOnNextFactory;
+        private boolean batch;
+        private boolean compress;
+        private byte[] dictionary;
+        private long idleTimeoutMs;
+        private long stallTimeoutMs;
+        private ServerMetrics metrics = ServerMetrics.NONE;
+        private int traceEvery;
 
         Builder(Publisher<? extends ByteBuffer> publisher) {
             this.publisher = publisher;
@@ -116,9 +204,194 @@ public final class Response {
             return this;
         }
 
+        /**
+         * Flushes at most every {@code ms} milliseconds instead of after every
+         * item so that items emitted in bursts share flushes. No item waits longer
+         * than {@code ms} before being flushed. Combine with
+         * {@link #flushAfterBytes(int)} to also flush when enough bytes are
+         * buffered. The stream is still flushed whenever the emitted count
+         * reaches the requested count.
+         * 
+         * <p>
+         * Sets the item count flush trigger to off, call
+         * {@link #flushAfterItems(int)} afterwards to use both.
+         * 
+         * @param ms
+         *            maximum milliseconds an item waits to be flushed
+         * @return this
+         */
+        public Builder flushAfterMillis(long ms) {
+            Preconditions.checkArgument(ms > 0, "ms must be positive");
+            this.flushAfterMs = ms;
+            this.flushAfterItems = 0;
+            return this;
+        }
+
+        /**
+         * Sets the flush policy, overriding {@link #flushAfterItems(int)},
+         * {@link #flushAfterBytes(int)} and {@link #flushAfterMillis(long)}. Use
+         * {@link AfterOnNextFactory#adaptive()} to have the thresholds chosen per
+         * stream from item sizes, arrival rate and client request sizes.
+         * 
+         * @param factory
+         *            creates a flush policy for each stream
+         * @return this
+         */
+        public Builder afterOnNextFactory(AfterOnNextFactory factory) {
+            Preconditions.checkNotNull(factory, "factory cannot be null");
+            this.afterOnNextFactory = factory;
+            return this;
+        }
+
+        /**
+         * Sets whether items that are queued at the same time may be sent to the
+         * client as a single batch frame. Batching is only used if the client
+         * reports that it supports it. Default is false.
+         * 
+         * @param batch
+         *            whether to batch queued items
+         * @return this
+         */
+        public Builder batch(boolean batch) {
+            this.batch = batch;
+            return this;
+        }
+
+        public Builder compress() {
+            return compress(true);
+        }
+
+        /**
+         * Sets whether the stream is deflate compressed for clients that support
+         * it. Compressed output is only forced out at flush points so fewer
+         * flushes give better compression. If after the first 64KB the
+         * compressed size is more than 90% of the uncompressed size then
+         * compression is switched off for the rest of the stream. Default is
+         * false.
+         * 
+         * @param compress
+         *            whether to compress the stream
+         * @return this
+         */
+        public Builder compress(boolean compress) {
+            this.compress = compress;
+            return this;
+        }
+
+        /**
+         * Sets a preset dictionary for compression and enables compression. The
+         * dictionary is sent once at the start of each stream and then every
+         * item can be compressed against it, which helps streams of small
+         * similar items most. See {@link Dictionaries} for building one from
+         * sample items.
+         * 
+         * @param dictionary
+         *            preset deflate dictionary of at most 32KB
+         * @return this
+         */
+        public Builder dictionary(byte[] dictionary) {
+            Preconditions.checkNotNull(dictionary, "dictionary cannot be null");
+            Preconditions.checkArgument(dictionary.length <= Protocol.MAX_DICTIONARY_LENGTH,
+                    "dictionary cannot be longer than " + Protocol.MAX_DICTIONARY_LENGTH);
+            this.dictionary = dictionary.clone();
+            this.compress = true;
+            return this;
+        }
+
+        /**
+         * Cancels the stream (and ends the response) when there has been no
+         * request from the client and nothing written to the client for
+         * {@code duration}. This removes streams orphaned by clients that
+         * have gone without cancelling. A quiet stream whose client is
+         * waiting for items is also idle so the duration should be longer
+         * than the longest expected gap between items (or heartbeats). Expiry
+         * may happen up to 100ms later than {@code duration}. Default is no
+         * expiry.
+         * 
+         * @param duration
+         *            idle time before the stream is cancelled, zero for no
+         *            expiry
+         * @param unit
+         *            unit of {@code duration}
+         * @return this
+         */
+        public Builder idleTimeout(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "duration cannot be negative");
+            Preconditions.checkNotNull(unit, "unit cannot be null");
+            this.idleTimeoutMs = unit.toMillis(duration);
+            return this;
+        }
+
+        /**
+         * Cancels the stream when it has had data waiting to be written (a
+         * write blocked on the client or, for asynchronous responses, bytes
+         * the container has not taken) and no write progress for
+         * {@code duration}, so that a client that has stopped reading does
+         * not hold a thread or let items pile up. The output is closed so a
+         * blocked write fails and the stall is reported to
+         * {@link ServerMetrics#streamStalled(long, long)}. Unlike
+         * {@link #idleTimeout(long, TimeUnit)} a stream with nothing to write
+         * never stalls. A multiplexed channel stalls when the shared
+         * connection does, which then fails with all its channels. Detection
+         * may be up to 100ms late. Default is no detection.
+         * 
+         * @param duration
+         *            time without progress before the stream is cancelled,
+         *            zero for no detection
+         * @param unit
+         *            unit of {@code duration}
+         * @return this
+         */
+        public Builder stallTimeout(long duration, TimeUnit unit) {
+            Preconditions.checkArgument(duration >= 0, "duration cannot be negative");
+            Preconditions.checkNotNull(unit, "unit cannot be null");
+            this.stallTimeoutMs = unit.toMillis(duration);
+            return this;
+        }
+
+        /**
+         * Reports the events of each stream (opening, items and bytes
+         * written, flushes and their causes, requests, queue depth and how
+         * the stream ended) to {@code metrics}. Default is
+         * {@link ServerMetrics#NONE} which skips the per item bookkeeping.
+         * 
+         * @param metrics
+         *            receives measurements
+         * @return this
+         */
+        public Builder metrics(ServerMetrics metrics) {
+            Preconditions.checkNotNull(metrics, "metrics cannot be null");
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Traces every {@code sampleEvery}-th item (starting with the first) of
+         * streams to clients that support tracing (clients with metrics, see
+         * {@code Client.Builder.metrics}). A traced item is sent with the
+         * times it arrived from the publisher and was written and the time the
+         * flush that sent it started follows it, so that the client can
+         * report queueing, flush delay and network time separately. A traced
+         * item always starts a new batch frame. Default is zero which traces
+         * nothing.
+         * 
+         * @param sampleEvery
+         *            trace interval in items, zero to not trace
+         * @return this
+         */
+        public Builder trace(int sampleEvery) {
+            Preconditions.checkArgument(sampleEvery >= 0, "sampleEvery cannot be negative");
+            this.traceEvery = sampleEvery;
+            return this;
+        }
+
         public Response build() {
-            return new Response(publisher, requestScheduler, async, writerFactory,
-                    AfterOnNextFactory.flushAfter(flushAfterItems, flushAfterBytes));
+            AfterOnNextFactory f = afterOnNextFactory;
+            if (f == null) {
+                f = AfterOnNextFactory.flushAfter(flushAfterItems, flushAfterBytes, flushAfterMs);
+            }
+            return new Response(publisher, requestScheduler, async, writerFactory, f, batch,
+                    compress, dictionary, idleTimeoutMs, stallTimeoutMs, metrics, traceEvery);
         }
     }
 
@@ -0,0 +1,138 @@
+package org.davidmoten.rx2.http;
+
+/**
+ * Receives measurements of the streams of a {@link Response} (see
+ * {@link Response.Builder#metrics(ServerMetrics)}). Methods are called
+ * synchronously on the threads doing the work (per item on the thread
+ * writing the stream) so implementations should be quick and must not block,
+ * for example incrementing counters. Methods of one stream may be called from
+ * different threads, though not concurrently except for
+ * {@link #requested(long, long)}. All methods do nothing by default.
+ */
+public interface ServerMetrics {
+
+    /**
+     * Reports nothing. Streams without metrics skip the bookkeeping that is
+     * only needed for metrics.
+     */
+    public static final ServerMetrics NONE = new ServerMetrics() {
+    };
+
+    /**
+     * Why the stream was flushed.
+     */
+    public enum FlushCause {
+        /**
+         * the flush policy's item count was reached
+         */
+        ITEMS,
+        /**
+         * the flush policy's byte count was reached
+         */
+        BYTES,
+        /**
+         * the items written reached the number requested by the client
+         */
+        REQUESTED,
+        /**
+         * written bytes had waited for the flush policy's linger time
+         */
+        LINGER,
+        /**
+         * the stream completed or failed
+         */
+        TERMINAL;
+    }
+
+    /**
+     * Called when the stream id has been written to the client.
+     *
+     * @param id
+     *            stream id
+     */
+    default void streamOpened(long id) {
+    }
+
+    default void streamCompleted(long id) {
+    }
+
+    /**
+     * Called when the source failed (the error is sent to the client) or
+     * writing to the client failed.
+     *
+     * @param id
+     *            stream id
+     * @param error
+     *            the failure
+     */
+    default void streamFailed(long id, Throwable error) {
+    }
+
+    /**
+     * Called when the stream was cancelled by the client, by idle expiry,
+     * by stall detection or by the servlet being destroyed.
+     *
+     * @param id
+     *            stream id
+     */
+    default void streamCancelled(long id) {
+    }
+
+    /**
+     * Called when the stream has made no write progress with data waiting to
+     * be written for the stall timeout (see
+     * {@link Response.Builder#stallTimeout(long, java.util.concurrent.TimeUnit)}).
+     * The stream is then cancelled (reported by
+     * {@link #streamCancelled(long)}) and its output closed.
+     *
+     * @param id
+     *            stream id
+     * @param stalledMs
+     *            the stall timeout
+     */
+    default void streamStalled(long id, long stalledMs) {
+    }
+
+    /**
+     * Called when the client requests more items (from a request call or a
+     * credit in the request body).
+     *
+     * @param id
+     *            stream id
+     * @param n
+     *            number of items requested
+     */
+    default void requested(long id, long n) {
+    }
+
+    /**
+     * Called after a frame has been written.
+     *
+     * @param id
+     *            stream id
+     * @param items
+     *            items in the frame (more than one for a batch)
+     * @param bytes
+     *            item bytes in the frame (excluding framing)
+     */
+    default void written(long id, int items, long bytes) {
+    }
+
+    default void flushed(long id, FlushCause cause) {
+    }
+
+    /**
+     * Called when the thread writing the stream has caught up with (or is
+     * waiting for the client to read) what is queued.
+     *
+     * @param id
+     *            stream id
+     * @param items
+     *            items emitted by the source and not yet written
+     * @param bytes
+     *            total size of those items
+     */
+    default void queueDepth(long id, long items, long bytes) {
+    }
+
+}
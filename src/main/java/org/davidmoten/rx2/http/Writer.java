@@ -4,8 +4,6 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 
-import org.davidmoten.rx2.io.internal.Util;
-
 public interface Writer {
 
     public void write(ByteBuffer bb) throws IOException;
@@ -15,7 +13,7 @@ public interface Writer {
     public void flush() throws IOException;
 
     public void close() throws IOException;
-    
+
     public default void write(byte[] buffer, int offset, int length) throws IOException {
         int to = offset + length;
         for (int i = offset; i < to; i++) {
@@ -27,35 +25,57 @@ public interface Writer {
         write(bytes, 0, bytes.length);
     }
 
+    /**
+     * Writes the 4 bytes of {@code v} in big-endian order.
+     *
+     * @param v
+     *            value to write
+     * @throws IOException
+     *             on write failure
+     */
+    public default void writeInt(int v) throws IOException {
+        write((v >>> 24) & 0xFF);
+        write((v >>> 16) & 0xFF);
+        write((v >>> 8) & 0xFF);
+        write((v >>> 0) & 0xFF);
+    }
+
+    /**
+     * Writes the 8 bytes of {@code v} in big-endian order.
+     *
+     * @param v
+     *            value to write
+     * @throws IOException
+     *             on write failure
+     */
+    public default void writeLong(long v) throws IOException {
+        writeInt((int) (v >>> 32));
+        writeInt((int) v);
+    }
+
+    /**
+     * Writes the first {@code headerLength} bytes of {@code header} followed by
+     * the remaining bytes of {@code bb}. Implementations are encouraged to
+     * combine the two into a single write to the underlying stream. The position
+     * of {@code bb} is not changed.
+     *
+     * @param header
+     *            frame header bytes
+     * @param headerLength
+     *            number of bytes of {@code header} to write
+     * @param bb
+     *            frame payload
+     * @throws IOException
+     *             on write failure
+     */
+    public default void writeFrame(byte[] header, int headerLength, ByteBuffer bb)
+            throws IOException {
+        write(header, 0, headerLength);
+        write(bb);
+    }
+
     public static Writer createDefault(OutputStream out) {
-        return new Writer() {
-
-            @Override
-            public void write(ByteBuffer bb) throws IOException {
-                out.write(Util.toBytes(bb));
-            }
-
-            @Override
-            public void write(int b) throws IOException {
-                out.write(b);
-            }
-
-            @Override
-            public void flush() throws IOException {
-                out.flush();
-            }
-
-            @Override
-            public void write(byte[] bytes, int offset, int length) throws IOException {
-                out.write(bytes, offset, length);
-            }
-
-            @Override
-            public void close() throws IOException {
-                out.close();
-            }
-            
-        };
+        return new DefaultWriter(out);
     }
 
 }
@@ -0,0 +1,131 @@
+package org.davidmoten.rx2.io;
+
+import java.nio.ByteBuffer;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * A pool of heap {@link ByteBuffer}s in power-of-two size classes used by the
+ * client to receive items without allocating a new array per item. Buffers
+ * larger than the maximum pooled size are allocated on demand and are not
+ * retained on release.
+ *
+ * <p>
+ * This class is thread-safe. A pool may be shared by many streams.
+ */
+public final class BufferPool {
+
+    private static final int MIN_SIZE_SHIFT = 6;
+
+    private final int maxSizeShift;
+    private final SizeClass[] classes;
+
+    private BufferPool(int maxBufferSize, int maxBuffersPerSize) {
+        this.maxSizeShift = Math.max(MIN_SIZE_SHIFT, shift(maxBufferSize));
+        this.classes = new SizeClass[maxSizeShift - MIN_SIZE_SHIFT + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(1 << (i + MIN_SIZE_SHIFT), maxBuffersPerSize);
+        }
+    }
+
+    /**
+     * Returns a new pool that retains buffers of up to 64KB, at most 64 per size
+     * class.
+     *
+     * @return a new pool
+     */
+    public static BufferPool create() {
+        return create(65536, 64);
+    }
+
+    /**
+     * Returns a new pool.
+     *
+     * @param maxBufferSize
+     *            largest buffer size that will be retained by the pool (rounded
+     *            up to a power of two)
+     * @param maxBuffersPerSize
+     *            maximum number of idle buffers retained for each size class
+     * @return a new pool
+     */
+    public static BufferPool create(int maxBufferSize, int maxBuffersPerSize) {
+        Preconditions.checkArgument(maxBufferSize > 0 && maxBufferSize <= 1 << 30,
+                "maxBufferSize must be between 1 and 2^30");
+        Preconditions.checkArgument(maxBuffersPerSize >= 0, "maxBuffersPerSize must be >= 0");
+        return new BufferPool(maxBufferSize, maxBuffersPerSize);
+    }
+
+    /**
+     * Returns a heap buffer with position 0 and limit {@code size}. The buffer's
+     * capacity may be greater than {@code size}.
+     *
+     * @param size
+     *            required number of bytes
+     * @return buffer with {@code size} bytes remaining
+     */
+    public ByteBuffer acquire(int size) {
+        int shift = Math.max(MIN_SIZE_SHIFT, shift(size));
+        final ByteBuffer bb;
+        if (shift > maxSizeShift) {
+            bb = ByteBuffer.allocate(size);
+        } else {
+            bb = classes[shift - MIN_SIZE_SHIFT].acquire();
+        }
+        bb.limit(size);
+        return bb;
+    }
+
+    /**
+     * Returns {@code bb} to the pool. The caller must not use {@code bb} after
+     * this call. Buffers that were not obtained from a pool are ignored.
+     *
+     * @param bb
+     *            buffer to return to the pool
+     */
+    public void release(ByteBuffer bb) {
+        int capacity = bb.capacity();
+        if (!bb.hasArray() || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int shift = shift(capacity);
+        if (shift >= MIN_SIZE_SHIFT && shift <= maxSizeShift) {
+            bb.clear();
+            classes[shift - MIN_SIZE_SHIFT].release(bb);
+        }
+    }
+
+    // smallest s such that 1 << s >= n
+    private static int shift(int n) {
+        return n <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(n - 1);
+    }
+
+    private static final class SizeClass {
+
+        private final int size;
+        private final ByteBuffer[] stack;
+        private int count;
+
+        SizeClass(int size, int maxBuffers) {
+            this.size = size;
+            this.stack = new ByteBuffer[maxBuffers];
+        }
+
+        ByteBuffer acquire() {
+            synchronized (this) {
+                if (count > 0) {
+                    ByteBuffer bb = stack[--count];
+                    stack[count] = null;
+                    return bb;
+                }
+            }
+            return ByteBuffer.allocate(size);
+        }
+
+        synchronized void release(ByteBuffer bb) {
+            if (count < stack.length) {
+                stack[count++] = bb;
+            }
+        }
+    }
+
+}
@@ -16,14 +16,28 @@ import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 
+import org.davidmoten.rx2.io.internal.DuplexExchange;
+import org.davidmoten.rx2.io.internal.Exchange;
 import org.davidmoten.rx2.io.internal.FlowableFromInputStream;
+import org.davidmoten.rx2.io.internal.FlowableMetrics;
+import org.davidmoten.rx2.io.internal.FlowableFromSocketChannel;
+import org.davidmoten.rx2.io.internal.FlowableRequestWindow;
 import org.davidmoten.rx2.io.internal.FlowableSingleFlatMapPublisher;
 import org.davidmoten.rx2.io.internal.HttpMethod;
+import org.davidmoten.rx2.io.internal.Jfr;
+import org.davidmoten.rx2.io.internal.MuxClient;
+import org.davidmoten.rx2.io.internal.Protocol;
+import org.davidmoten.rx2.io.internal.RttEstimate;
 import org.davidmoten.rx2.io.internal.Util;
 
 import com.github.davidmoten.guavamini.Preconditions;
@@ -34,11 +48,18 @@ import io.reactivex.Scheduler;
 import io.reactivex.Single;
 import io.reactivex.functions.BiConsumer;
 import io.reactivex.functions.Consumer;
+import io.reactivex.internal.util.BackpressureHelper;
 import io.reactivex.plugins.RxJavaPlugins;
 import io.reactivex.schedulers.Schedulers;
 
 public final class Client {
 
+    private static final long DEFAULT_MULTIPLEX_BUFFER_BYTES = 1024 * 1024;
+
+    // limits request calls per host:port across all built Flowables
+    private static final ConcurrentMap<String, Semaphore> REQUEST_CONNECTIONS = //
+            new ConcurrentHashMap<>();
+
     private Client() {
         // prevent instantiation
     }
@@ -79,7 +100,16 @@ public final class Client {
         private SSLSocketFactory sslSocketFactory;
         private List<Consumer<HttpURLConnection>> transforms = new ArrayList<>();
         private Proxy proxy;
-        private Scheduler requestScheduler = Schedulers.trampoline();
+        private Scheduler requestScheduler = Schedulers.io();
+        private BufferPool bufferPool;
+        private boolean releaseAfterOnNext;
+        private int minRequestWindow;
+        private int maxRequestWindow;
+        private int maxRequestConnections = 5;
+        private boolean duplex;
+        private Http2Sessions http2;
+        private EventLoops eventLoops;
+        private ClientMetrics metrics = ClientMetrics.NONE;
 
         Builder(String url, HttpMethod method) {
             this.url = url;
@@ -218,11 +248,198 @@ public final class Client {
             return sslSocketFactory(sslContext.getSocketFactory());
         }
 
+        /**
+         * Sets the scheduler that request calls to the server are made on. Each
+         * stream makes at most one request call at a time and requests made
+         * while a call is in flight are merged into the next call. Default is
+         * {@link Schedulers#io()} so that the thread reading the stream does not
+         * wait for request calls.
+         * 
+         * @param scheduler
+         *            scheduler for request calls
+         * @return this
+         */
         public Builder requestScheduler(Scheduler scheduler) {
+            Preconditions.checkNotNull(scheduler);
             this.requestScheduler = scheduler;
             return this;
         }
 
+        /**
+         * Arriving items are read into buffers acquired from {@code pool} instead
+         * of newly allocated arrays. The subscriber is responsible for returning
+         * each emitted {@link ByteBuffer} to the pool using
+         * {@link BufferPool#release(ByteBuffer)} once it has finished with it.
+         * 
+         * @param pool
+         *            the pool to acquire buffers from
+         * @return this
+         */
+        public Builder bufferPool(BufferPool pool) {
+            return bufferPool(pool, false);
+        }
+
+        /**
+         * Arriving items are read into buffers acquired from {@code pool} instead
+         * of newly allocated arrays. If {@code releaseAfterOnNext} is true then each
+         * emitted {@link ByteBuffer} is returned to the pool as soon as the
+         * downstream {@code onNext} call returns, in which case the subscriber
+         * must not retain a reference to it (synchronous operators like
+         * {@code map} are fine). Otherwise the subscriber is responsible for
+         * calling {@link BufferPool#release(ByteBuffer)}. Automatic release cannot
+         * be combined with {@link #adaptiveRequests()} because that buffers items
+         * ahead of downstream requests.
+         * 
+         * @param pool
+         *            the pool to acquire buffers from
+         * @param releaseAfterOnNext
+         *            whether to return buffers to the pool automatically after
+         *            each emission
+         * @return this
+         */
+        public Builder bufferPool(BufferPool pool, boolean releaseAfterOnNext) {
+            Preconditions.checkNotNull(pool);
+            this.bufferPool = pool;
+            this.releaseAfterOnNext = releaseAfterOnNext;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of request and cancel calls that may be in
+         * flight at once to the host and port of the url, shared across all
+         * subscriptions and all built {@link Flowable}s (the limit of the first
+         * one built for a host and port applies).
+         * Each call reads its response to the end so that the JDK keep-alive
+         * cache can reuse the connection (and, for HTTPS, the TLS session of
+         * the configured socket factory). The JDK keeps at most
+         * {@code http.maxConnections} (system property, default 5) idle
+         * connections per host so this limit should not be larger. Default is
+         * 5.
+         * 
+         * @param max
+         *            maximum concurrent request calls
+         * @return this
+         */
+        public Builder maxRequestConnections(int max) {
+            Preconditions.checkArgument(max > 0, "max must be positive");
+            this.maxRequestConnections = max;
+            return this;
+        }
+
+        /**
+         * Sends requests and cancellation in the body of the subscribe call
+         * instead of making separate request calls, saving a round trip and a
+         * connection per request and letting any node behind a load balancer
+         * serve the stream. The subscribe call is made as an HTTP/1.1
+         * {@code POST} with a chunked body directly over a socket so
+         * {@link #transform(Consumer)} actions are not applied and a proxy
+         * cannot be used. If the server does not support duplex streams (or
+         * the response is not asynchronous) the client falls back to request
+         * calls.
+         * 
+         * @return this
+         */
+        public Builder duplex() {
+            this.duplex = true;
+            return this;
+        }
+
+        /**
+         * Subscribes over HTTP/2 on the connections of {@code sessions} which may
+         * be shared with other builders so that many streams to the same host
+         * use one connection (one HTTP/2 stream each). Requests and
+         * cancellation are sent on the stream as in {@link #duplex()}. If the
+         * server does not support duplex streams the client falls back to
+         * request calls over HTTP/1.1. The {@link #transform(Consumer)}
+         * actions, ssl socket factory and proxy are not used.
+         * 
+         * @param sessions
+         *            shared HTTP/2 connections
+         * @return this
+         */
+        public Builder http2(Http2Sessions sessions) {
+            Preconditions.checkNotNull(sessions);
+            this.http2 = sessions;
+            this.duplex = true;
+            return this;
+        }
+
+        /**
+         * Serves the stream from one of the threads of {@code loops} (which
+         * may be shared with other builders) using a non-blocking connection
+         * instead of holding a thread that blocks reading the stream for its
+         * whole life. Requests and cancellation are sent in the body of the
+         * subscribe call as in {@link #duplex()} (falling back to request
+         * calls if the server does not support duplex streams). Items are
+         * emitted on the event loop's thread so downstream processing must not
+         * block (use {@code observeOn} otherwise). Only http urls and
+         * {@link Client#get(String)} are supported and a proxy, buffer pool,
+         * HTTP/2, ssl socket factory or {@link #transform(Consumer)} actions
+         * cannot be used.
+         * 
+         * @param loops
+         *            event loops to serve the stream
+         * @return this
+         */
+        public Builder eventLoops(EventLoops loops) {
+            Preconditions.checkNotNull(loops);
+            this.eventLoops = loops;
+            return this;
+        }
+
+        /**
+         * Manages requests to the server independently of downstream requests
+         * with a window of 16 to 4096 items. See
+         * {@link #adaptiveRequests(int, int)}.
+         * 
+         * @return this
+         */
+        public Builder adaptiveRequests() {
+            return adaptiveRequests(16, 4096);
+        }
+
+        /**
+         * Manages requests to the server independently of downstream requests so
+         * that the server is not left waiting for a request (no need for
+         * {@code rebatchRequests}). The round-trip time of request calls and the
+         * item arrival rate are measured and enough credit is kept outstanding
+         * with the server to cover the bandwidth-delay product. Credit is topped
+         * up when half of it has been used. Items that arrive before downstream
+         * requests them are buffered (at most {@code maxWindow}). Only request
+         * calls are timed, so this cannot be combined with {@link #duplex()},
+         * {@link #http2(Http2Sessions)} or {@link #eventLoops(EventLoops)}.
+         * 
+         * @param minWindow
+         *            minimum number of items requested ahead
+         * @param maxWindow
+         *            maximum number of items requested ahead
+         * @return this
+         */
+        public Builder adaptiveRequests(int minWindow, int maxWindow) {
+            Preconditions.checkArgument(minWindow > 0, "minWindow must be positive");
+            Preconditions.checkArgument(maxWindow >= minWindow,
+                    "maxWindow must be at least minWindow");
+            this.minRequestWindow = minWindow;
+            this.maxRequestWindow = maxWindow;
+            return this;
+        }
+
+        /**
+         * Reports the events of each stream (subscription, items and bytes
+         * read, request call latency, buffered items and how the stream
+         * ended) to {@code metrics}. Default is {@link ClientMetrics#NONE}
+         * which adds nothing to the stream.
+         * 
+         * @param metrics
+         *            receives measurements
+         * @return this
+         */
+        public Builder metrics(ClientMetrics metrics) {
+            Preconditions.checkNotNull(metrics);
+            this.metrics = metrics;
+            return this;
+        }
+
         /**
          * Sets the deserializer to be used on the arriving {@link ByteBuffer}s.
          * 
@@ -247,6 +464,47 @@ public final class Client {
             return deserializer(Serializer.javaIo());
         }
 
+        /**
+         * Returns a {@link Multiplexer} whose channels share one call to the
+         * url with at most 1MB of items buffered across channels. See
+         * {@link #multiplex(long)}.
+         * 
+         * @return multiplexer
+         */
+        public Multiplexer multiplex() {
+            return multiplex(DEFAULT_MULTIPLEX_BUFFER_BYTES);
+        }
+
+        /**
+         * Returns a {@link Multiplexer} whose channels share one call to the
+         * url (an HTTP/1.1 {@code POST} with a chunked body as in
+         * {@link #duplex()}, or an HTTP/2 stream if {@link #http2(Http2Sessions)}
+         * is set). Each channel has its own credit with the server and emits on
+         * its own worker of the request scheduler. Items that have arrived but
+         * have not been requested by their channel's subscriber are buffered
+         * and once {@code maxBufferBytes} are buffered across all channels
+         * reading stops until the slow channels catch up. The servlet must be
+         * asynchronous. The {@link #transform(Consumer)} actions are not applied
+         * and a proxy or event loops cannot be used.
+         * 
+         * @param maxBufferBytes
+         *            maximum bytes of items buffered across all channels
+         * @return multiplexer
+         */
+        public Multiplexer multiplex(long maxBufferBytes) {
+            Preconditions.checkArgument(maxBufferBytes > 0, "maxBufferBytes must be positive");
+            Preconditions.checkArgument(proxy == null && eventLoops == null,
+                    "a proxy or event loops cannot be used with multiplex");
+            URL u = toUrl(url);
+            Options options = new Options(method, connectTimeoutMs, readTimeoutMs,
+                    requestHeaders, sslSocketFactory, transforms, proxy, requestScheduler,
+                    bufferPool, releaseAfterOnNext, minRequestWindow, maxRequestWindow,
+                    maxRequestConnections, true, http2, eventLoops, metrics);
+            return new Multiplexer(new MuxClient(
+                    () -> openExchange(u, options, Protocol.ALL.deflate(false).trace(false)),
+                    requestScheduler, maxBufferBytes), metrics);
+        }
+
         /**
          * Returns the built {@code Flowable<ByteBuffer>} based on all the builder
          * options specified.
@@ -254,8 +512,28 @@ public final class Client {
          * @return the built Flowable.
          */
         public Flowable<ByteBuffer> build() {
-            return toFlowable(url, new Options(method, connectTimeoutMs, readTimeoutMs,
-                    requestHeaders, sslSocketFactory, transforms, proxy, requestScheduler));
+            Preconditions.checkArgument(!duplex || proxy == null,
+                    "a proxy cannot be used with duplex");
+            Preconditions.checkArgument(!releaseAfterOnNext || maxRequestWindow == 0,
+                    "buffers released after onNext cannot be used with adaptive requests");
+            Preconditions.checkArgument(
+                    maxRequestWindow == 0 || !duplex && http2 == null && eventLoops == null,
+                    "duplex, HTTP/2 or event loops cannot be used with adaptive requests");
+            if (eventLoops != null) {
+                Preconditions.checkArgument(url.regionMatches(true, 0, "http:", 0, 5),
+                        "only http urls can be used with event loops");
+                Preconditions.checkArgument(proxy == null && bufferPool == null && http2 == null
+                        && sslSocketFactory == null && transforms.isEmpty()
+                        && method == HttpMethod.GET,
+                        "a proxy, buffer pool, HTTP/2, ssl socket factory, transforms or POST"
+                                + " cannot be used with event loops");
+            }
+            Flowable<ByteBuffer> f = toFlowable(url, new Options(method, connectTimeoutMs,
+                    readTimeoutMs, requestHeaders, sslSocketFactory, transforms, proxy,
+                    requestScheduler, bufferPool, releaseAfterOnNext, minRequestWindow,
+                    maxRequestWindow, maxRequestConnections, duplex, http2, eventLoops,
+                    metrics));
+            return metered(f, metrics);
         }
     }
 
@@ -265,23 +543,127 @@ public final class Client {
                 in -> new FlowableFromInputStream(in, requester));
     }
 
-    private static Flowable<ByteBuffer> toFlowable(String url, Options options) {
-        URL u;
+    private static Flowable<ByteBuffer> read(Single<InputStream> inSource,
+            BiConsumer<Long, Long> requester, Options options, Protocol protocol) {
+        return new FlowableSingleFlatMapPublisher<>(inSource,
+                in -> new FlowableFromInputStream(in, requester, options.bufferPool,
+                        options.releaseAfterOnNext, protocol, options.metrics));
+    }
+
+    static Flowable<ByteBuffer> metered(Flowable<ByteBuffer> f, ClientMetrics metrics) {
+        if (metrics == ClientMetrics.NONE) {
+            return f;
+        } else {
+            return new FlowableMetrics(f, metrics);
+        }
+    }
+
+    private static URL toUrl(String url) {
         try {
-            u = new URL(url);
+            return new URL(url);
         } catch (MalformedURLException e) {
             throw new RuntimeException(e);
         }
-        BiConsumer<Long, Long> requester = new Requester(url, options);
+    }
+
+    private static Flowable<ByteBuffer> toFlowable(String url, Options options) {
+        URL u = toUrl(url);
+        // shared by all subscriptions to the same url
+        RttEstimate rtt = new RttEstimate();
+        Semaphore connections = requestConnections(u, options.maxRequestConnections);
+
+        if (options.eventLoops != null) {
+            return Flowable.defer(() -> new FlowableFromSocketChannel(
+                    options.eventLoops.next(), u, options.requestHeaders,
+                    options.connectTimeoutMs, options.readTimeoutMs,
+                    () -> new Requester(url, options, rtt, connections)));
+        }
 
         return Flowable.using( //
-                () -> {
-                    final HttpURLConnection con = open(u, options);
-                    prepareConnection(con, options);
-                    return con.getInputStream();
+                () -> options.duplex ? connectDuplex(u, url, options, rtt, connections)
+                        : connect(u, url, options, rtt, connections), //
+                c -> {
+                    Flowable<ByteBuffer> f = read(Single.just(c.in), c.requester, options,
+                            c.protocol);
+                    if (options.maxRequestWindow > 0) {
+                        return new FlowableRequestWindow(f, rtt,
+                                options.minRequestWindow, options.maxRequestWindow,
+                                options.metrics);
+                    } else {
+                        return f;
+                    }
                 }, //
-                in -> read(Single.just(in), requester), //
-                in -> Util.close(in));
+                c -> Util.close(c.in));
+    }
+
+    @VisibleForTesting
+    static Semaphore requestConnections(URL u, int max) {
+        int port = u.getPort() == -1 ? u.getDefaultPort() : u.getPort();
+        return REQUEST_CONNECTIONS.computeIfAbsent(u.getHost() + ":" + port,
+                k -> new Semaphore(max));
+    }
+
+    private static Connection connect(URL u, String url, Options options, RttEstimate rtt,
+            Semaphore connections) throws IOException {
+        final HttpURLConnection con = open(u, options);
+        prepareConnection(con, options);
+        Protocol offered = Protocol.ALL.duplex(false).mux(false).trace(traced(options));
+        con.setRequestProperty(Protocol.VERSION_HEADER, String.valueOf(offered.version()));
+        con.setRequestProperty(Protocol.FEATURES_HEADER, offered.featuresHeader());
+        InputStream in = con.getInputStream();
+        // a server that does not understand the request headers uses
+        // version 1 without features
+        Protocol protocol = Protocol.parse(con.getHeaderField(Protocol.VERSION_HEADER),
+                con.getHeaderField(Protocol.FEATURES_HEADER));
+        return new Connection(in, protocol, new Requester(url, options, rtt, connections));
+    }
+
+    private static Connection connectDuplex(URL u, String url, Options options,
+            RttEstimate rtt, Semaphore connections) throws IOException {
+        Exchange exchange = openExchange(u, options,
+                Protocol.ALL.mux(false).trace(traced(options)));
+        Protocol protocol = Protocol.parse(exchange.header(Protocol.VERSION_HEADER),
+                exchange.header(Protocol.FEATURES_HEADER));
+        if (protocol.duplex()) {
+            return new Connection(exchange.inputStream(), protocol,
+                    (id, request) -> exchange.credit(request));
+        } else {
+            // the server will not read credits so use request calls
+            exchange.endCredits();
+            return new Connection(exchange.inputStream(), protocol,
+                    new Requester(url, options, rtt, connections));
+        }
+    }
+
+    // tracing is only offered if the latencies are reported
+    private static boolean traced(Options options) {
+        return options.metrics != ClientMetrics.NONE;
+    }
+
+    private static Exchange openExchange(URL u, Options options, Protocol offered)
+            throws IOException {
+        Map<String, String> headers = new HashMap<>(options.requestHeaders);
+        headers.put(Protocol.VERSION_HEADER, String.valueOf(offered.version()));
+        headers.put(Protocol.FEATURES_HEADER, offered.featuresHeader());
+        if (options.http2 != null) {
+            return options.http2.open(u, headers, options.connectTimeoutMs,
+                    options.readTimeoutMs);
+        } else {
+            return DuplexExchange.open(u, headers, options.sslSocketFactory,
+                    options.connectTimeoutMs, options.readTimeoutMs);
+        }
+    }
+
+    private static final class Connection {
+        final InputStream in;
+        final Protocol protocol;
+        final BiConsumer<Long, Long> requester;
+
+        Connection(InputStream in, Protocol protocol, BiConsumer<Long, Long> requester) {
+            this.in = in;
+            this.protocol = protocol;
+            this.requester = requester;
+        }
     }
 
     private static HttpURLConnection open(URL url, Options options) throws IOException {
@@ -327,11 +709,26 @@ public final class Client {
         final List<Consumer<HttpURLConnection>> transforms;
         final Proxy proxy;
         final Scheduler requestScheduler;
+        final BufferPool bufferPool;
+        final boolean releaseAfterOnNext;
+        // 0 if requests are not managed
+        final int minRequestWindow;
+        final int maxRequestWindow;
+        final int maxRequestConnections;
+        final boolean duplex;
+        // null if HTTP/2 is not used
+        final Http2Sessions http2;
+        // null if streams are read by blocking threads
+        final EventLoops eventLoops;
+        final ClientMetrics metrics;
 
         Options(HttpMethod method, int connectTimeoutMs, int readTimeoutMs,
                 Map<String, String> requestHeaders, SSLSocketFactory sslSocketFactory,
                 List<Consumer<HttpURLConnection>> transforms, Proxy proxy,
-                Scheduler requestScheduler) {
+                Scheduler requestScheduler, BufferPool bufferPool, boolean releaseAfterOnNext,
+                int minRequestWindow, int maxRequestWindow, int maxRequestConnections,
+                boolean duplex, Http2Sessions http2, EventLoops eventLoops,
+                ClientMetrics metrics) {
             this.method = method;
             this.connectTimeoutMs = connectTimeoutMs;
             this.readTimeoutMs = readTimeoutMs;
@@ -340,36 +737,123 @@ public final class Client {
             this.transforms = transforms;
             this.proxy = proxy;
             this.requestScheduler = requestScheduler;
+            this.bufferPool = bufferPool;
+            this.releaseAfterOnNext = releaseAfterOnNext;
+            this.minRequestWindow = minRequestWindow;
+            this.maxRequestWindow = maxRequestWindow;
+            this.maxRequestConnections = maxRequestConnections;
+            this.duplex = duplex;
+            this.http2 = http2;
+            this.eventLoops = eventLoops;
+            this.metrics = metrics;
         }
     }
 
-    static final class Requester implements BiConsumer<Long, Long> {
+    /**
+     * Makes the request and cancel calls for one stream. Calls are made on the
+     * request scheduler, at most one at a time. Requests that arrive while a call
+     * is in flight are added together and sent in the next call. Once a cancel
+     * has been sent no more calls are made.
+     */
+    static final class Requester extends AtomicInteger implements BiConsumer<Long, Long> {
+
+        private static final long serialVersionUID = -4181390484838938342L;
+
+        private static final int MAX_RESPONSE_BYTES = 65536;
 
         private final String url;
         private final Options options;
+        // round-trip times of request calls
+        private final RttEstimate rtt;
+        // limits concurrent calls so that idle connections fit in the JDK
+        // keep-alive cache
+        private final Semaphore connections;
+        // requested but not yet sent
+        private final AtomicLong pending = new AtomicLong();
+        private volatile boolean cancelled;
+        private volatile long id;
+        // only accessed by the dispatch loop
+        private boolean cancelSent;
 
         Requester(String url, Options options) {
+            this(url, options, new RttEstimate(), new Semaphore(options.maxRequestConnections));
+        }
+
+        Requester(String url, Options options, RttEstimate rtt, Semaphore connections) {
             this.url = url;
             this.options = options;
+            this.rtt = rtt;
+            this.connections = connections;
         }
 
         @Override
         public void accept(Long id, Long request) throws Exception {
-            options.requestScheduler.scheduleDirect(() -> {
-                try {
-                    HttpURLConnection con = (HttpURLConnection) new URL(
-                            url + "?id=" + id + "&r=" + request) //
-                                    .openConnection();
-                    prepareConnection(con, options);
-                    int code = con.getResponseCode();
-                    if (code != 200) {
-                        throw new IOException(
-                                "response code from request call was not 200: " + code);
+            this.id = id;
+            if (request < 0) {
+                cancelled = true;
+            } else {
+                BackpressureHelper.add(pending, request);
+            }
+            if (getAndIncrement() == 0) {
+                options.requestScheduler.scheduleDirect(this::dispatch);
+            }
+        }
+
+        private void dispatch() {
+            int missed = 1;
+            while (true) {
+                if (!cancelSent) {
+                    if (cancelled) {
+                        cancelSent = true;
+                        pending.set(0);
+                        call(-1);
+                    } else {
+                        long n = pending.getAndSet(0);
+                        if (n > 0) {
+                            call(n);
+                        }
                     }
-                } catch (Throwable e) {
-                    RxJavaPlugins.onError(e);
                 }
-            });
+                missed = addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void call(long request) {
+            try {
+                connections.acquire();
+            } catch (InterruptedException e) {
+                RxJavaPlugins.onError(e);
+                return;
+            }
+            Object event = Jfr.beginRequestCall();
+            boolean success = false;
+            try {
+                long start = System.nanoTime();
+                HttpURLConnection con = open(new URL(url + "?id=" + id + "&r=" + request),
+                        options);
+                prepareConnection(con, options);
+                int code = con.getResponseCode();
+                // read the response to the end (not disconnect) so that the
+                // connection goes back to the keep-alive cache
+                Util.drainAndClose(code >= 400 ? con.getErrorStream() : con.getInputStream(),
+                        MAX_RESPONSE_BYTES);
+                if (code != 200) {
+                    throw new IOException("response code from request call was not 200: " + code);
+                }
+                long latency = System.nanoTime() - start;
+                rtt.record(latency);
+                success = true;
+                options.metrics.requestCall(request, latency);
+            } catch (Throwable e) {
+                options.metrics.requestCallFailed(request, e);
+                RxJavaPlugins.onError(e);
+            } finally {
+                Jfr.endRequestCall(event, id, request, success);
+                connections.release();
+            }
         }
     }
 
@@ -0,0 +1,111 @@
+package org.davidmoten.rx2.io;
+
+/**
+ * Receives measurements of the streams of a {@link Client} builder (see
+ * {@link Client.Builder#metrics(ClientMetrics)}). Methods are called
+ * synchronously on the threads doing the work (per item on the thread reading
+ * the stream) so implementations should be quick and must not block, for
+ * example incrementing counters. All methods do nothing by default.
+ */
+public interface ClientMetrics {
+
+    /**
+     * Reports nothing.
+     */
+    public static final ClientMetrics NONE = new ClientMetrics() {
+    };
+
+    /**
+     * Called when a stream is subscribed to.
+     */
+    default void streamOpened() {
+    }
+
+    default void streamCompleted() {
+    }
+
+    default void streamFailed(Throwable error) {
+    }
+
+    /**
+     * Called when the subscriber cancels a stream.
+     */
+    default void streamCancelled() {
+    }
+
+    /**
+     * Called for each item read from the server as it is emitted to the
+     * subscriber.
+     *
+     * @param bytes
+     *            size of the item
+     */
+    default void itemRead(int bytes) {
+    }
+
+    /**
+     * Called after each item arrives if requests are managed (see
+     * {@link Client.Builder#adaptiveRequests()}).
+     *
+     * @param depth
+     *            items that have arrived and not yet been requested by the
+     *            subscriber
+     */
+    default void queueDepth(int depth) {
+    }
+
+    /**
+     * Called when a request (or cancel) call to the server has succeeded.
+     * Streams that send requests in the body of the subscribe call (duplex,
+     * HTTP/2 and multiplexed streams) make no request calls.
+     *
+     * @param n
+     *            number requested, negative for a cancel call
+     * @param latencyNanos
+     *            round-trip time of the call
+     */
+    default void requestCall(long n, long latencyNanos) {
+    }
+
+    /**
+     * Called when a request (or cancel) call to the server has failed.
+     *
+     * @param n
+     *            number requested, negative for a cancel call
+     * @param error
+     *            the failure
+     */
+    default void requestCallFailed(long n, Throwable error) {
+    }
+
+    /**
+     * Called for each traced item once its flush time has arrived if the
+     * server traces items (see
+     * {@code org.davidmoten.rx2.http.Response.Builder.trace(int)}). Clients
+     * with metrics offer tracing to the server. Network time is the
+     * client's clock at arrival minus the server's clock at the start of the
+     * flush, so any skew between the two clocks is added to it and it may be
+     * negative if they are not synchronized (the {@link Latency} histograms
+     * record negative values as zero).
+     *
+     * @param queueNanos
+     *            time from the publisher's {@code onNext} to the write
+     * @param flushDelayNanos
+     *            time from the write to the start of the flush that sent it
+     * @param networkNanos
+     *            time from the start of the flush to arrival at the client
+     */
+    default void itemLatency(long queueNanos, long flushDelayNanos, long networkNanos) {
+    }
+
+    /**
+     * Called once with the latency histograms of a traced stream when it
+     * completes, fails or is cancelled.
+     *
+     * @param latency
+     *            latencies of the stream's traced items
+     */
+    default void streamLatency(Latency latency) {
+    }
+
+}
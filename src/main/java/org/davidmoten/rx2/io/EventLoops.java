@@ -0,0 +1,66 @@
+package org.davidmoten.rx2.io;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.davidmoten.rx2.io.internal.EventLoop;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * Event loop threads that serve the streams of the {@link Client} builders
+ * that use them (see {@link Client.Builder#eventLoops(EventLoops)}). Each
+ * stream is a non-blocking connection assigned to one of the loops so a few
+ * threads can serve thousands of streams.
+ */
+public final class EventLoops implements AutoCloseable {
+
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    private final EventLoop[] loops;
+    private final AtomicInteger index = new AtomicInteger();
+
+    private EventLoops(int threads) {
+        int n = COUNTER.incrementAndGet();
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop("rx2-http-loop-" + n + "-" + (i + 1));
+        }
+    }
+
+    /**
+     * Returns one event loop per available processor.
+     *
+     * @return new event loops
+     */
+    public static EventLoops create() {
+        return create(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Returns {@code threads} event loops. The threads are daemon threads.
+     *
+     * @param threads
+     *            number of event loop threads
+     * @return new event loops
+     */
+    public static EventLoops create(int threads) {
+        Preconditions.checkArgument(threads > 0, "threads must be positive");
+        return new EventLoops(threads);
+    }
+
+    // round robin
+    EventLoop next() {
+        return loops[Math.floorMod(index.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * Stops the threads. Streams that are still open emit an error.
+     */
+    @Override
+    public void close() {
+        for (EventLoop loop : loops) {
+            loop.close();
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+package org.davidmoten.rx2.io;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * A histogram of non-negative long values (nanoseconds for example) in log
+ * linear buckets: values below 32 are counted exactly and every power of two
+ * above that is split into 16 buckets, so a reported percentile is within about
+ * 6% of the true value. Recording does not allocate.
+ *
+ * <p>
+ * This class is not thread-safe. It is written by one thread and may be read by
+ * others once writing has finished.
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // values below this have their own bucket
+    private static final int EXACT = 2 * SUB_BUCKETS;
+
+    private static final int EXACT_BITS = SUB_BUCKET_BITS + 1;
+
+    private final long[] counts = new long[bucket(Long.MAX_VALUE) + 1];
+    private long count;
+    private long sum;
+    private long max;
+
+    /**
+     * Records {@code value}, negative values being recorded as zero.
+     *
+     * @param value
+     *            value to record
+     */
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts[bucket(v)]++;
+        count++;
+        sum += v;
+        if (v > max) {
+            max = v;
+        }
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    /**
+     * Returns the mean of the recorded values, zero if none.
+     *
+     * @return mean
+     */
+    public double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Returns an upper bound (at most the maximum) of the recorded values at
+     * the given percentile, zero if nothing has been recorded.
+     *
+     * @param percentile
+     *            between 0 and 100
+     * @return value at the percentile
+     */
+    public long percentile(double percentile) {
+        Preconditions.checkArgument(percentile >= 0 && percentile <= 100,
+                "percentile must be between 0 and 100");
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long n = 0;
+        for (int i = 0; i < counts.length; i++) {
+            n += counts[i];
+            if (n >= rank) {
+                return Math.min(highest(i), max);
+            }
+        }
+        return max;
+    }
+
+    static int bucket(long v) {
+        if (v < EXACT) {
+            return (int) v;
+        }
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        return EXACT + (e - EXACT_BITS) * SUB_BUCKETS
+                + (int) ((v >>> (e - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    // highest value counted in bucket i
+    static long highest(int i) {
+        if (i < EXACT) {
+            return i;
+        }
+        int e = EXACT_BITS + (i - EXACT) / SUB_BUCKETS;
+        long sub = SUB_BUCKETS + (i - EXACT) % SUB_BUCKETS;
+        int shift = e - SUB_BUCKET_BITS;
+        long next = (sub + 1) << shift;
+        // the last bucket ends at 2^63 which overflows
+        return next <= 0 ? Long.MAX_VALUE : next - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "Histogram[count=" + count + ", mean=" + Math.round(mean()) + ", p50="
+                + percentile(50) + ", p99=" + percentile(99) + ", p99.9=" + percentile(99.9)
+                + ", max=" + max + "]";
+    }
+
+}
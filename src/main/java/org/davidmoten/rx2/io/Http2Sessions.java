@@ -0,0 +1,151 @@
+package org.davidmoten.rx2.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.davidmoten.rx2.io.internal.Exchange;
+import org.davidmoten.rx2.io.internal.Http2Exchange;
+import org.eclipse.jetty.http2.ErrorCode;
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.FuturePromise;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+/**
+ * HTTP/2 connections (one per host and port) shared by all streams of the
+ * {@link Client} builders that use them (see
+ * {@link Client.Builder#http2(Http2Sessions)}). Each stream is an HTTP/2 stream
+ * of the shared connection. Requires {@code org.eclipse.jetty.http2:http2-client}
+ * on the classpath, and for https a Jetty ALPN client module as well.
+ *
+ * <p>
+ * Note that the server limits the number of concurrent streams on a connection
+ * (128 by default for Jetty).
+ */
+public final class Http2Sessions implements AutoCloseable {
+
+    private final HTTP2Client client;
+    private final SslContextFactory sslContextFactory;
+    private final boolean stopClientOnClose;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    private Http2Sessions(HTTP2Client client, SslContextFactory sslContextFactory,
+            boolean stopClientOnClose) {
+        this.client = client;
+        this.sslContextFactory = sslContextFactory;
+        this.stopClientOnClose = stopClientOnClose;
+    }
+
+    /**
+     * Returns sessions for cleartext HTTP/2 (h2c with prior knowledge). The
+     * connections have no idle timeout because streams may be quiet for long
+     * periods.
+     *
+     * @return new sessions
+     */
+    public static Http2Sessions create() {
+        HTTP2Client client = new HTTP2Client();
+        client.setIdleTimeout(0);
+        start(client);
+        return new Http2Sessions(client, null, true);
+    }
+
+    /**
+     * Returns sessions that use {@code client} (started if it has not been),
+     * and {@code sslContextFactory} for https urls. The client is not stopped
+     * on {@link #close()}.
+     *
+     * @param client
+     *            Jetty HTTP/2 client
+     * @param sslContextFactory
+     *            used for https urls, may be null if only http urls are used
+     * @return new sessions
+     */
+    public static Http2Sessions create(HTTP2Client client, SslContextFactory sslContextFactory) {
+        Preconditions.checkNotNull(client);
+        if (!client.isStarted()) {
+            start(client);
+        }
+        return new Http2Sessions(client, sslContextFactory, false);
+    }
+
+    private static void start(HTTP2Client client) {
+        try {
+            client.start();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    Exchange open(URL url, Map<String, String> requestHeaders, int connectTimeoutMs,
+            int readTimeoutMs) throws IOException {
+        return Http2Exchange.open(session(url, connectTimeoutMs), url, requestHeaders,
+                connectTimeoutMs, readTimeoutMs);
+    }
+
+    // connects at most once at a time so that concurrent subscriptions share
+    // the new session
+    private synchronized Session session(URL url, int connectTimeoutMs) throws IOException {
+        boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        String key = url.getProtocol() + "://" + url.getHost() + ":" + port;
+        Session session = sessions.get(key);
+        if (session != null && !session.isClosed()) {
+            return session;
+        }
+        InetSocketAddress address = new InetSocketAddress(url.getHost(), port);
+        FuturePromise<Session> promise = new FuturePromise<>();
+        if (secure) {
+            if (sslContextFactory == null) {
+                throw new IOException("an SslContextFactory is required for " + url);
+            }
+            client.connect(sslContextFactory, address, new Session.Listener.Adapter(), promise);
+        } else {
+            client.connect(address, new Session.Listener.Adapter(), promise);
+        }
+        try {
+            session = connectTimeoutMs > 0 ? promise.get(connectTimeoutMs, TimeUnit.MILLISECONDS)
+                    : promise.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("connect timed out: " + key);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException(e.getCause());
+        }
+        sessions.put(key, session);
+        return session;
+    }
+
+    /**
+     * Closes the connections (ending their streams) and stops the client if it
+     * was created by {@link #create()}.
+     */
+    @Override
+    public void close() {
+        for (Session session : sessions.values()) {
+            session.close(ErrorCode.NO_ERROR.code, "closed", Callback.NOOP);
+        }
+        sessions.clear();
+        if (stopClientOnClose) {
+            try {
+                client.stop();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+package org.davidmoten.rx2.io;
+
+/**
+ * Latency histograms (in nanoseconds) of the traced items of one stream, from
+ * the publisher's {@code onNext} on the server to the arrival of the item at the
+ * client, split into the time queued on the server before being written, the
+ * time between the write and the start of the flush that sent it and the time
+ * from the start of that flush to arrival (network time, which includes time
+ * spent in buffers and in the flush itself). Network time is the client's
+ * clock at arrival minus the server's clock at the start of the flush, so the
+ * skew between the two clocks is added to it (and to the total) and it is
+ * only meaningful when they are synchronized. Negative times (a server clock
+ * ahead of the client's) are recorded as zero.
+ *
+ * <p>
+ * This class is not thread-safe, it is written by the thread reading the stream.
+ */
+public final class Latency {
+
+    private final Histogram queueing = new Histogram();
+    private final Histogram flushDelay = new Histogram();
+    private final Histogram network = new Histogram();
+    private final Histogram total = new Histogram();
+
+    /**
+     * Records the latencies of a traced item.
+     *
+     * @param queueNanos
+     *            time from {@code onNext} to the write
+     * @param flushDelayNanos
+     *            time from the write to the start of the flush
+     * @param networkNanos
+     *            time from the start of the flush to arrival
+     */
+    public void record(long queueNanos, long flushDelayNanos, long networkNanos) {
+        queueing.record(queueNanos);
+        flushDelay.record(flushDelayNanos);
+        network.record(networkNanos);
+        total.record(queueNanos + flushDelayNanos + networkNanos);
+    }
+
+    public Histogram queueing() {
+        return queueing;
+    }
+
+    public Histogram flushDelay() {
+        return flushDelay;
+    }
+
+    public Histogram network() {
+        return network;
+    }
+
+    public Histogram total() {
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return "Latency[queueing=" + queueing + ", flushDelay=" + flushDelay + ", network="
+                + network + ", total=" + total + "]";
+    }
+
+}
@@ -0,0 +1,70 @@
+package org.davidmoten.rx2.io;
+
+import java.nio.ByteBuffer;
+
+import org.davidmoten.rx2.io.internal.MuxClient;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+import io.reactivex.Flowable;
+
+/**
+ * Many streams (channels) from one servlet carried by a single multiplexed
+ * call (see {@link Client.Builder#multiplex()}). Each channel is served by the
+ * servlet as if it had been called with the channel's query string and has its
+ * own backpressure so a slow subscriber only holds up the other channels once
+ * the shared buffer is full.
+ */
+public final class Multiplexer implements AutoCloseable {
+
+    private final MuxClient client;
+    private final ClientMetrics metrics;
+
+    Multiplexer(MuxClient client, ClientMetrics metrics) {
+        this.client = client;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns a stream that opens a new channel on each subscription. The
+     * servlet sees {@code query} as the query string (and parameters) of the
+     * request. The multiplexed call is made when the first channel is
+     * subscribed to (and again if the call fails).
+     *
+     * @param query
+     *            query string of the channel without the leading '?', for
+     *            example {@code "name=prices&currency=AUD"}
+     * @return channel stream
+     */
+    public Flowable<ByteBuffer> channel(String query) {
+        Preconditions.checkNotNull(query);
+        return Client.metered(client.channel(query), metrics);
+    }
+
+    /**
+     * Returns a stream that opens a new channel on each subscription (see
+     * {@link #channel(String)}) with items deserialized by
+     * {@code deserializer}.
+     *
+     * @param <T>
+     *            stream type
+     * @param query
+     *            query string of the channel without the leading '?'
+     * @param deserializer
+     *            the deserializer to be used
+     * @return channel stream
+     */
+    public <T> Flowable<T> channel(String query, Deserializer<T> deserializer) {
+        Preconditions.checkNotNull(deserializer);
+        return channel(query).map(deserializer::deserialize);
+    }
+
+    /**
+     * Ends the multiplexed call. Channels that are still open emit an error.
+     */
+    @Override
+    public void close() {
+        client.close();
+    }
+
+}
@@ -0,0 +1,176 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.davidmoten.rx2.http.ServerMetrics.FlushCause;
+
+/**
+ * Flush policy for one stream that moves between flushing every item (when
+ * items arrive slowly, latency-optimal) and flushing groups of items (when
+ * items arrive quickly, throughput-optimal). It keeps moving averages of the
+ * time between items, the item size and the client request size and flushes
+ * after the number of items expected to arrive within the latency budget,
+ * capped by the client request size (the stream is flushed anyway when
+ * emissions reach the requested amount) and by a maximum number of bytes. The
+ * latency budget is also used as the linger time so a burst's last items are
+ * not held back when the stream goes quiet.
+ *
+ * <p>
+ * The threshold getters may be called from any thread for monitoring.
+ */
+public final class AdaptiveAfterOnNext implements AfterOnNext {
+
+    private static final int MAX_ITEMS = 1024;
+
+    // moving averages weight the latest sample by 1/8
+    private static final int SHIFT = 3;
+
+    private final long maxLatencyMs;
+    private final long maxLatencyNanos;
+    private final int maxBytes;
+    private final Consumer<AdaptiveAfterOnNext> onTerminate;
+
+    // only accessed by the publisher's onNext calls
+    private long lastArrival;
+
+    // only accessed by the draining thread
+    private boolean sized;
+    private int countItems;
+    private long countBytes;
+    private boolean bytesReached;
+
+    private volatile long meanGapNanos = Long.MAX_VALUE;
+    private volatile long meanItemBytes;
+    // 0 until the first request
+    private volatile long meanRequest;
+    private volatile int itemsThreshold = 1;
+
+    AdaptiveAfterOnNext(long maxLatencyMs, int maxBytes,
+            Consumer<AdaptiveAfterOnNext> onTerminate) {
+        this.maxLatencyMs = maxLatencyMs;
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMs);
+        this.maxBytes = maxBytes;
+        this.onTerminate = onTerminate;
+    }
+
+    @Override
+    public void onArrival() {
+        // timed on arrival rather than on write because items are written in
+        // bursts (batches, or after a slow write) whatever their arrival rate
+        long now = System.nanoTime();
+        if (lastArrival != 0) {
+            long gap = now - lastArrival;
+            long mean = meanGapNanos;
+            meanGapNanos = mean == Long.MAX_VALUE ? gap : mean + ((gap - mean) >> SHIFT);
+        }
+        lastArrival = now;
+    }
+
+    @Override
+    public boolean flushRequested(int numBytes) {
+        if (!sized) {
+            sized = true;
+            meanItemBytes = numBytes;
+        } else {
+            long size = meanItemBytes;
+            meanItemBytes = size + ((numBytes - size) >> SHIFT);
+        }
+        countItems++;
+        countBytes += numBytes;
+        int threshold = computeItemsThreshold();
+        itemsThreshold = threshold;
+        if (countItems >= threshold) {
+            bytesReached = false;
+            return true;
+        } else if (countBytes >= maxBytes) {
+            bytesReached = true;
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public FlushCause flushCause() {
+        return bytesReached ? FlushCause.BYTES : FlushCause.ITEMS;
+    }
+
+    private int computeItemsThreshold() {
+        long gap = meanGapNanos;
+        if (gap >= maxLatencyNanos) {
+            // items are sparse, holding one back would cost more than the budget
+            return 1;
+        }
+        long items = maxLatencyNanos / Math.max(1, gap);
+        long r = meanRequest;
+        if (r > 0) {
+            items = Math.min(items, r);
+        }
+        items = Math.min(items, MAX_ITEMS);
+        return (int) Math.max(1, items);
+    }
+
+    @Override
+    public long lingerMs() {
+        return maxLatencyMs;
+    }
+
+    @Override
+    public void onRequest(long n) {
+        long r = Math.min(n, MAX_ITEMS);
+        long mean = meanRequest;
+        meanRequest = mean == 0 ? r : mean + ((r - mean) >> SHIFT);
+    }
+
+    @Override
+    public void flushed() {
+        countItems = 0;
+        countBytes = 0;
+    }
+
+    @Override
+    public void terminated() {
+        onTerminate.accept(this);
+    }
+
+    /**
+     * Returns the number of items currently written between flushes (1 is
+     * latency-optimal).
+     *
+     * @return items per flush
+     */
+    public int itemsThreshold() {
+        return itemsThreshold;
+    }
+
+    /**
+     * Returns the number of bytes expected to be written between flushes at the
+     * current items threshold.
+     *
+     * @return expected bytes per flush
+     */
+    public long bytesThreshold() {
+        return Math.min(maxBytes, itemsThreshold * meanItemBytes);
+    }
+
+    public long meanGapNanos() {
+        return meanGapNanos;
+    }
+
+    public long meanItemBytes() {
+        return meanItemBytes;
+    }
+
+    public long meanRequest() {
+        return meanRequest;
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveAfterOnNext[itemsThreshold=" + itemsThreshold + ", bytesThreshold="
+                + bytesThreshold() + ", meanGapNanos=" + meanGapNanos + ", meanItemBytes="
+                + meanItemBytes + ", meanRequest=" + meanRequest + "]";
+    }
+
+}
@@ -0,0 +1,40 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Creates an {@link AdaptiveAfterOnNext} flush policy per stream. Use
+ * {@link #streams()} to monitor the thresholds chosen for the streams that are
+ * currently active.
+ */
+public final class AdaptiveAfterOnNextFactory implements AfterOnNextFactory {
+
+    private final long maxLatencyMs;
+    private final int maxBytes;
+    private final Set<AdaptiveAfterOnNext> streams = ConcurrentHashMap.newKeySet();
+
+    AdaptiveAfterOnNextFactory(long maxLatencyMs, int maxBytes) {
+        this.maxLatencyMs = maxLatencyMs;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public AfterOnNext create() {
+        AdaptiveAfterOnNext a = new AdaptiveAfterOnNext(maxLatencyMs, maxBytes, streams::remove);
+        streams.add(a);
+        return a;
+    }
+
+    /**
+     * Returns a live view of the flush policies of the active streams.
+     *
+     * @return active stream flush policies
+     */
+    public Collection<AdaptiveAfterOnNext> streams() {
+        return Collections.unmodifiableSet(streams);
+    }
+
+}
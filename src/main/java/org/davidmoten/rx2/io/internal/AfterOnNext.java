@@ -1,7 +1,64 @@
 package org.davidmoten.rx2.io.internal;
 
+import org.davidmoten.rx2.http.ServerMetrics.FlushCause;
+
 public interface AfterOnNext {
 
     boolean flushRequested(int numBytes);
 
+    /**
+     * Returns what made the last call of {@link #flushRequested(int)} that
+     * returned true request the flush. Only called if metrics are reported.
+     * 
+     * @return {@link FlushCause#ITEMS} or {@link FlushCause#BYTES}
+     */
+    default FlushCause flushCause() {
+        return FlushCause.ITEMS;
+    }
+
+    /**
+     * Returns the maximum time in milliseconds that written bytes may wait
+     * before being flushed, or 0 if there is no limit.
+     * 
+     * @return linger time in milliseconds
+     */
+    default long lingerMs() {
+        return 0;
+    }
+
+    /**
+     * Called when an item arrives from the publisher, before it is queued to
+     * be written (and before the {@link #flushRequested(int)} call for it).
+     * Calls are serialized but may be concurrent with the other methods.
+     */
+    default void onArrival() {
+        // do nothing
+    }
+
+    /**
+     * Called when the client requests {@code n} more items. May be called
+     * concurrently with the other methods.
+     * 
+     * @param n
+     *            number of items requested
+     */
+    default void onRequest(long n) {
+        // do nothing
+    }
+
+    /**
+     * Called after the stream has been flushed for any reason.
+     */
+    default void flushed() {
+        // do nothing
+    }
+
+    /**
+     * Called once when the stream has finished (completed, errored or
+     * cancelled).
+     */
+    default void terminated() {
+        // do nothing
+    }
+
 }
@@ -1,12 +1,63 @@
 package org.davidmoten.rx2.io.internal;
 
+import org.davidmoten.rx2.http.ServerMetrics.FlushCause;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
 public interface AfterOnNextFactory {
 
     AfterOnNext create();
 
     public static final AfterOnNextFactory DEFAULT = flushAfter(0, 0); 
     
+    /**
+     * Returns a factory for flush policies that adapt to each stream (see
+     * {@link AdaptiveAfterOnNext}) with a latency budget of 1ms and a maximum
+     * of 64KB between flushes.
+     * 
+     * @return adaptive flush policy factory
+     */
+    public static AdaptiveAfterOnNextFactory adaptive() {
+        return adaptive(1, 65536);
+    }
+
+    /**
+     * Returns a factory for flush policies that adapt to each stream (see
+     * {@link AdaptiveAfterOnNext}).
+     * 
+     * @param maxLatencyMs
+     *            the longest an item may be held back to share a flush with
+     *            later items
+     * @param maxBytes
+     *            the stream is always flushed once this many bytes have been
+     *            written since the last flush
+     * @return adaptive flush policy factory
+     */
+    public static AdaptiveAfterOnNextFactory adaptive(long maxLatencyMs, int maxBytes) {
+        Preconditions.checkArgument(maxLatencyMs > 0, "maxLatencyMs must be positive");
+        Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+        return new AdaptiveAfterOnNextFactory(maxLatencyMs, maxBytes);
+    }
+
     public static AfterOnNextFactory flushAfter(int numItems, int numBytes) {
+        return flushAfter(numItems, numBytes, 0);
+    }
+
+    /**
+     * Returns a factory for flush policies that flush after {@code numItems}
+     * items or {@code numBytes} bytes (ignored if 0) and ensure that no written
+     * bytes wait for longer than {@code lingerMs} (ignored if 0) before being
+     * flushed.
+     * 
+     * @param numItems
+     *            flush after this many items
+     * @param numBytes
+     *            flush after this many bytes
+     * @param lingerMs
+     *            maximum time unflushed bytes may wait
+     * @return flush policy factory
+     */
+    public static AfterOnNextFactory flushAfter(int numItems, int numBytes, long lingerMs) {
         return new AfterOnNextFactory() {
 
             @Override
@@ -15,6 +66,7 @@ public interface AfterOnNextFactory {
 
                     int countItems;
                     int countBytes;
+                    FlushCause cause = FlushCause.ITEMS;
 
                     @Override
                     public boolean flushRequested(int n) {
@@ -23,8 +75,10 @@ public interface AfterOnNextFactory {
                         final boolean flush;
                         if (numItems > 0 && countItems == numItems) {
                             flush = true;
+                            cause = FlushCause.ITEMS;
                         } else if (numBytes > 0 && countBytes >= numBytes) {
                             flush = true;
+                            cause = FlushCause.BYTES;
                         } else {
                             flush = false;
                         }
@@ -35,6 +89,24 @@ public interface AfterOnNextFactory {
                         return flush;
                     }
 
+                    @Override
+                    public FlushCause flushCause() {
+                        return cause;
+                    }
+
+                    @Override
+                    public long lingerMs() {
+                        return lingerMs;
+                    }
+
+                    @Override
+                    public void flushed() {
+                        // counts start again after any flush (linger or
+                        // requested included)
+                        countItems = 0;
+                        countBytes = 0;
+                    }
+
                 };
             }
 
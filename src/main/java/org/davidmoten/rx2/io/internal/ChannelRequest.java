@@ -0,0 +1,85 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * The request seen by the servlet for one channel of a multiplexed call
+ * ({@link Protocol#mux()}). It is the multiplexed call's request but with the
+ * query string and parameters of the channel.
+ */
+final class ChannelRequest extends HttpServletRequestWrapper {
+
+    private final String query;
+    private final Map<String, String[]> parameters;
+
+    ChannelRequest(HttpServletRequest request, String query) {
+        super(request);
+        this.query = query;
+        this.parameters = Collections.unmodifiableMap(parse(query));
+    }
+
+    private static Map<String, String[]> parse(String query) {
+        Map<String, List<String>> map = new LinkedHashMap<>();
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int eq = pair.indexOf('=');
+            String key = decode(eq == -1 ? pair : pair.substring(0, eq));
+            String value = eq == -1 ? "" : decode(pair.substring(eq + 1));
+            map.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+        }
+        Map<String, String[]> result = new LinkedHashMap<>();
+        for (Entry<String, List<String>> entry : map.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toArray(new String[0]));
+        }
+        return result;
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String getQueryString() {
+        return query;
+    }
+
+    @Override
+    public String getParameter(String name) {
+        String[] values = parameters.get(name);
+        return values == null ? null : values[0];
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        return parameters;
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+        return Collections.enumeration(parameters.keySet());
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        String[] values = parameters.get(name);
+        return values == null ? null : values.clone();
+    }
+
+}
@@ -0,0 +1,104 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes an HTTP/1.1 chunked message body. Returns end of stream after the
+ * last chunk and its trailers have been read.
+ */
+final class ChunkedInputStream extends InputStream {
+
+    private final InputStream in;
+    // bytes left in the current chunk
+    private long remaining;
+    // true once the first chunk header has been read
+    private boolean started;
+    private boolean finished;
+
+    ChunkedInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("unexpected end of chunk");
+        }
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n == -1) {
+            throw new EOFException("unexpected end of chunk");
+        }
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (finished) {
+            return 0;
+        }
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    // returns false if the last chunk has been read
+    private boolean nextChunk() throws IOException {
+        if (remaining > 0) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+        if (started) {
+            // each chunk's data is followed by CRLF
+            String crlf = DuplexExchange.readLine(in);
+            if (!crlf.isEmpty()) {
+                throw new IOException("expected CRLF after chunk but read: " + crlf);
+            }
+        }
+        started = true;
+        String line = DuplexExchange.readLine(in);
+        int semicolon = line.indexOf(';');
+        String size = (semicolon == -1 ? line : line.substring(0, semicolon)).trim();
+        try {
+            remaining = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid chunk size: " + line);
+        }
+        if (remaining < 0) {
+            throw new IOException("invalid chunk size: " + line);
+        }
+        if (remaining == 0) {
+            // skip trailers
+            while (!DuplexExchange.readLine(in).isEmpty()) {
+                // ignore
+            }
+            finished = true;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
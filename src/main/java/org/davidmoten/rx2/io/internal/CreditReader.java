@@ -0,0 +1,69 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.io.IOException;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the credits of a duplex stream ({@link Protocol#duplex()}) from the
+ * request body without blocking and applies them to the stream's
+ * subscription. If the request body fails (for example because the client
+ * has gone) the stream is cancelled.
+ */
+final class CreditReader implements ReadListener {
+
+    private static final Logger log = LoggerFactory.getLogger(CreditReader.class);
+
+    private final ServletInputStream in;
+    private final Subscription subscription;
+    private final byte[] buffer = new byte[Protocol.CREDIT_LENGTH * 64];
+    // partially read credit, only accessed by the container's read callbacks
+    private final byte[] credit = new byte[Protocol.CREDIT_LENGTH];
+    private int creditLength;
+
+    CreditReader(ServletInputStream in, Subscription subscription) {
+        this.in = in;
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        int n;
+        while (in.isReady() && (n = in.read(buffer)) != -1) {
+            for (int i = 0; i < n; i++) {
+                credit[creditLength++] = buffer[i];
+                if (creditLength == Protocol.CREDIT_LENGTH) {
+                    creditLength = 0;
+                    apply(Util.getLong(credit, 0));
+                }
+            }
+        }
+    }
+
+    private void apply(long n) {
+        log.debug("credit {}", n);
+        if (n > 0) {
+            subscription.request(n);
+        } else if (n < 0) {
+            subscription.cancel();
+        }
+    }
+
+    @Override
+    public void onAllDataRead() {
+        // the client sends no more credits but the stream continues
+        log.debug("credits ended");
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        log.debug("credit read failed, cancelling stream", t);
+        subscription.cancel();
+    }
+
+}
@@ -0,0 +1,160 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+import org.davidmoten.rx2.http.Writer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compresses everything written to it as a raw deflate stream. Compressed
+ * output is only forced out ({@link Deflater#SYNC_FLUSH}) when
+ * {@link #flush()} is called so the compression window spans the items
+ * between flushes. Once {@link #SAMPLE_BYTES} have been written, if the
+ * compressed size is more than {@link #MAX_RATIO} of the uncompressed size
+ * the deflate stream is finished at the next flush and subsequent writes are
+ * passed through uncompressed.
+ *
+ * <p>
+ * Not thread-safe. Call {@link #end()} when the stream is finished to release
+ * the native resources of the {@link Deflater}.
+ */
+final class DeflaterWriter implements Writer {
+
+    private static final Logger log = LoggerFactory.getLogger(DeflaterWriter.class);
+
+    static final int SAMPLE_BYTES = 65536;
+
+    static final double MAX_RATIO = 0.9;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Writer out;
+    private final Deflater deflater;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] small = new byte[8];
+    // copies of direct buffers, allocated on first use (the deflater has
+    // consumed its input by the time write returns so it can be reused)
+    private byte[] input;
+    private boolean enabled = true;
+
+    DeflaterWriter(Writer out, int level, byte[] dictionary) {
+        this.out = out;
+        this.deflater = new Deflater(level, true);
+        if (dictionary != null && dictionary.length > 0) {
+            deflater.setDictionary(dictionary);
+        }
+    }
+
+    boolean enabled() {
+        return enabled;
+    }
+
+    @Override
+    public void write(ByteBuffer bb) throws IOException {
+        if (!enabled) {
+            out.write(bb);
+        } else if (bb.hasArray()) {
+            write(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+        } else {
+            int p = bb.position();
+            if (input == null) {
+                input = new byte[BUFFER_SIZE];
+            }
+            byte[] b = input;
+            while (bb.hasRemaining()) {
+                int n = Math.min(bb.remaining(), b.length);
+                bb.get(b, 0, n);
+                write(b, 0, n);
+            }
+            bb.position(p);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        small[0] = (byte) b;
+        write(small, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (!enabled) {
+            out.write(bytes, offset, length);
+            return;
+        }
+        deflater.setInput(bytes, offset, length);
+        while (!deflater.needsInput()) {
+            int n = deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+            if (n > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+    }
+
+    @Override
+    public void writeInt(int v) throws IOException {
+        Util.putInt(small, 0, v);
+        write(small, 0, 4);
+    }
+
+    @Override
+    public void writeLong(long v) throws IOException {
+        Util.putInt(small, 0, (int) (v >>> 32));
+        Util.putInt(small, 4, (int) v);
+        write(small, 0, 8);
+    }
+
+    @Override
+    public void writeFrame(byte[] header, int headerLength, ByteBuffer bb) throws IOException {
+        write(header, 0, headerLength);
+        write(bb);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (enabled) {
+            if (worthwhile()) {
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, n);
+                } while (n == buffer.length);
+            } else {
+                log.debug("compression ratio too low, finishing deflate stream after {} bytes",
+                        deflater.getBytesRead());
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    out.write(buffer, 0, n);
+                }
+                end();
+            }
+        }
+        out.flush();
+    }
+
+    private boolean worthwhile() {
+        long in = deflater.getBytesRead();
+        return in < SAMPLE_BYTES || deflater.getBytesWritten() <= in * MAX_RATIO;
+    }
+
+    /**
+     * Releases the {@link Deflater}. Subsequent writes are not compressed.
+     */
+    void end() {
+        if (enabled) {
+            enabled = false;
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        end();
+        out.close();
+    }
+
+}
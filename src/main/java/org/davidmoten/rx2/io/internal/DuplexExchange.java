@@ -0,0 +1,344 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An HTTP/1.1 POST made directly over a socket whose chunked request body is
+ * written while the response is read. {@link java.net.HttpURLConnection}
+ * cannot be used for a duplex stream ({@link Protocol#duplex()}) because it
+ * does not return the response until the request body is complete.
+ */
+public final class DuplexExchange implements Exchange, Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(DuplexExchange.class);
+
+    static final int MAX_LINE_LENGTH = 8192;
+
+    static final byte[] CHUNK_HEADER = ascii(
+            Integer.toHexString(Protocol.CREDIT_LENGTH) + "\r\n");
+
+    static final byte[] CRLF = ascii("\r\n");
+
+    static final byte[] LAST_CHUNK = ascii("0\r\n\r\n");
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final InputStream body;
+    private final Map<String, String> headers;
+    private final byte[] credit = new byte[Protocol.CREDIT_LENGTH];
+    // guarded by this
+    private boolean creditsEnded;
+
+    private DuplexExchange(Socket socket, OutputStream out, InputStream body,
+            Map<String, String> headers) {
+        this.socket = socket;
+        this.out = out;
+        this.body = new FilterInputStream(body) {
+            @Override
+            public void close() throws IOException {
+                DuplexExchange.this.close();
+            }
+        };
+        this.headers = headers;
+    }
+
+    /**
+     * Connects to {@code url}, sends the request headers and reads the response
+     * headers. The request body is left open for credits.
+     *
+     * @param url
+     *            http or https url
+     * @param requestHeaders
+     *            headers to add to the request
+     * @param sslSocketFactory
+     *            factory for https connections, the default factory is used if
+     *            null
+     * @param connectTimeoutMs
+     *            connect timeout, 0 for none
+     * @param readTimeoutMs
+     *            read timeout, 0 for none
+     * @return the open exchange
+     * @throws IOException
+     *             if the connection fails or the response code is not 200
+     */
+    public static DuplexExchange open(URL url, Map<String, String> requestHeaders,
+            SSLSocketFactory sslSocketFactory, int connectTimeoutMs, int readTimeoutMs)
+            throws IOException {
+        Socket socket = connect(url, sslSocketFactory, connectTimeoutMs, readTimeoutMs);
+        try {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            out.write(ascii(requestHead(url, requestHeaders)));
+            // some containers (Jetty for one) do not dispatch a request with a
+            // body until some of the body has arrived so send a zero credit
+            writeCredit(out, new byte[Protocol.CREDIT_LENGTH], 0);
+            out.flush();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            int code;
+            Map<String, String> headers;
+            do {
+                code = statusCode(readLine(in));
+                headers = readHeaders(in);
+                // skip interim responses like 100 Continue
+            } while (code >= 100 && code < 200);
+            if (code != 200) {
+                throw new IOException(
+                        "Server returned HTTP response code: " + code + " for URL: " + url);
+            }
+            return new DuplexExchange(socket, out, body(in, headers), headers);
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static Socket connect(URL url, SSLSocketFactory sslSocketFactory,
+            int connectTimeoutMs, int readTimeoutMs) throws IOException {
+        boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+        if (!secure && !"http".equalsIgnoreCase(url.getProtocol())) {
+            throw new IOException("unsupported protocol: " + url.getProtocol());
+        }
+        String host = url.getHost();
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        Socket socket = new Socket();
+        try {
+            // credits are small and must not wait for delayed acks
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+            socket.setSoTimeout(readTimeoutMs);
+            if (!secure) {
+                return socket;
+            }
+            SSLSocketFactory factory = sslSocketFactory == null
+                    ? (SSLSocketFactory) SSLSocketFactory.getDefault()
+                    : sslSocketFactory;
+            SSLSocket ssl = (SSLSocket) factory.createSocket(socket, host, port, true);
+            SSLParameters parameters = ssl.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            ssl.setSSLParameters(parameters);
+            ssl.startHandshake();
+            return ssl;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    static String requestHead(URL url, Map<String, String> requestHeaders) {
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        StringBuilder s = new StringBuilder();
+        s.append("POST ").append(path).append(" HTTP/1.1\r\n");
+        s.append("Host: ").append(url.getHost());
+        if (url.getPort() != -1) {
+            s.append(":").append(url.getPort());
+        }
+        s.append("\r\n");
+        // not a form so that the server does not read the body for parameters
+        s.append("Content-Type: application/octet-stream\r\n");
+        s.append("Transfer-Encoding: chunked\r\n");
+        for (Entry<String, String> entry : requestHeaders.entrySet()) {
+            s.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+        }
+        s.append("\r\n");
+        return s.toString();
+    }
+
+    static int statusCode(String statusLine) throws IOException {
+        // HTTP/1.1 200 OK
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+            throw new IOException("invalid status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid status line: " + statusLine);
+        }
+    }
+
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private static InputStream body(InputStream in, Map<String, String> headers) {
+        String transferEncoding = headers.get("transfer-encoding");
+        if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ENGLISH)
+                .contains("chunked")) {
+            return new ChunkedInputStream(in);
+        }
+        String contentLength = headers.get("content-length");
+        if (contentLength != null) {
+            return new LimitedInputStream(in, Long.parseLong(contentLength));
+        }
+        // ends when the server closes the connection
+        return in;
+    }
+
+    /**
+     * Reads a line terminated by LF (the preceding CR is dropped) from
+     * {@code in}.
+     *
+     * @param in
+     *            stream to read from
+     * @return line without the terminator
+     * @throws IOException
+     *             on read failure, end of stream or an overlong line
+     */
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder s = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("unexpected end of stream reading line");
+            } else if (b == '\n') {
+                int n = s.length();
+                if (n > 0 && s.charAt(n - 1) == '\r') {
+                    s.setLength(n - 1);
+                }
+                return s.toString();
+            } else if (s.length() == MAX_LINE_LENGTH) {
+                throw new IOException("line too long");
+            }
+            s.append((char) b);
+        }
+    }
+
+    @Override
+    public String header(String name) {
+        return headers.get(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    @Override
+    public InputStream inputStream() {
+        return body;
+    }
+
+    @Override
+    public synchronized void credit(long n) throws IOException {
+        if (writable()) {
+            try {
+                writeCredit(out, credit, n);
+                out.flush();
+            } catch (IOException e) {
+                // the server may close its side once it has finished the
+                // response, the response shows how the stream ended
+                log.debug("credit not sent", e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void send(byte[] message) throws IOException {
+        if (writable()) {
+            out.write(ascii(Integer.toHexString(message.length) + "\r\n"));
+            out.write(message);
+            out.write(CRLF);
+            out.flush();
+        }
+    }
+
+    // returns false if the stream has finished or been cancelled
+    private boolean writable() throws IOException {
+        if (creditsEnded) {
+            throw new IOException("credits have been ended");
+        }
+        return !socket.isClosed();
+    }
+
+    private static void writeCredit(OutputStream out, byte[] credit, long n) throws IOException {
+        Util.putInt(credit, 0, (int) (n >>> 32));
+        Util.putInt(credit, 4, (int) n);
+        out.write(CHUNK_HEADER);
+        out.write(credit);
+        out.write(CRLF);
+    }
+
+    @Override
+    public synchronized void endCredits() throws IOException {
+        if (!creditsEnded && !socket.isClosed()) {
+            creditsEnded = true;
+            out.write(LAST_CHUNK);
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+    }
+
+}
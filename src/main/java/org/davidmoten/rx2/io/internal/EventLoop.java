@@ -0,0 +1,188 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A thread that runs a {@link Selector} for many non-blocking channels and
+ * runs tasks submitted from other threads. Everything to do with a channel
+ * happens on the loop's thread so channel handlers need no locking.
+ */
+public final class EventLoop implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(EventLoop.class);
+
+    private static final int READ_BUFFER_SIZE = 65536;
+
+    private static final long TIMEOUT_CHECK_INTERVAL_MS = 1000;
+
+    /**
+     * Handles the selected operations of a registered channel. Methods are
+     * only called on the loop's thread and must not throw.
+     */
+    public interface Handler {
+
+        void ready(SelectionKey key);
+
+        /**
+         * Called about once a second so that the handler can time out.
+         *
+         * @param nowMs
+         *            current time in ms
+         */
+        void checkTimeout(long nowMs);
+
+        /**
+         * Called when the loop is closed while the channel is registered.
+         *
+         * @param e
+         *            the reason
+         */
+        void closed(IOException e);
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // shared by all channels of the loop because reads are only made on the
+    // loop's thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private volatile boolean closed;
+    private long lastTimeoutCheck = System.currentTimeMillis();
+
+    public EventLoop(String name) {
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs {@code task} on the loop's thread. Tasks submitted after the loop
+     * has been closed are not run.
+     *
+     * @param task
+     *            task to run
+     */
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Registers {@code channel} with the loop's selector. Must be called on the
+     * loop's thread.
+     *
+     * @param channel
+     *            non-blocking channel
+     * @param ops
+     *            interest set
+     * @param handler
+     *            handles the selected operations
+     * @return the selection key
+     * @throws ClosedChannelException
+     *             if the channel is closed
+     */
+    public SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+            throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    /**
+     * Returns the buffer that channels of this loop read into. Must only be
+     * used on the loop's thread and not retained.
+     *
+     * @return read buffer
+     */
+    public ByteBuffer readBuffer() {
+        return readBuffer;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void run() {
+        while (!closed) {
+            runTasks();
+            try {
+                selector.select(TIMEOUT_CHECK_INTERVAL_MS);
+            } catch (IOException e) {
+                log.warn("select failed", e);
+            }
+            wakeupPending.set(false);
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (key.isValid()) {
+                    try {
+                        ((Handler) key.attachment()).ready(key);
+                    } catch (RuntimeException e) {
+                        log.warn("channel handler failed", e);
+                    }
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastTimeoutCheck >= TIMEOUT_CHECK_INTERVAL_MS) {
+                lastTimeoutCheck = now;
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid()) {
+                        ((Handler) key.attachment()).checkTimeout(now);
+                    }
+                }
+            }
+        }
+        tasks.clear();
+        IOException e = new IOException("event loop closed");
+        for (SelectionKey key : selector.keys()) {
+            ((Handler) key.attachment()).closed(e);
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            log.warn("selector close failed", ex);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.warn("event loop task failed", e);
+            }
+        }
+    }
+
+    /**
+     * Stops the loop. Channels that are still registered are passed to their
+     * handler's {@link Handler#closed(IOException)}.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+}
@@ -0,0 +1,58 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A subscribe call whose request body carries the credits of a duplex stream
+ * ({@link Protocol#duplex()}) while its response is read.
+ */
+public interface Exchange {
+
+    /**
+     * Returns the value of the response header {@code name} (case-insensitive)
+     * or null if not present.
+     *
+     * @param name
+     *            header name
+     * @return header value or null
+     */
+    String header(String name);
+
+    /**
+     * Returns the response body. Closing it ends the exchange.
+     *
+     * @return response body
+     */
+    InputStream inputStream();
+
+    /**
+     * Sends a credit to the server. May be called from any thread.
+     *
+     * @param n
+     *            positive to request more items, negative to cancel
+     * @throws IOException
+     *             if the credits have been ended or the write fails
+     */
+    void credit(long n) throws IOException;
+
+    /**
+     * Sends {@code message} as the next part of the request body. May be
+     * called from any thread.
+     *
+     * @param message
+     *            bytes to send
+     * @throws IOException
+     *             if the credits have been ended or the write fails
+     */
+    void send(byte[] message) throws IOException;
+
+    /**
+     * Completes the request body, no more credits can be sent.
+     *
+     * @throws IOException
+     *             if the write fails
+     */
+    void endCredits() throws IOException;
+
+}
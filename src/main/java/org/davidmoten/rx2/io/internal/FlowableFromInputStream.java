@@ -8,6 +8,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
+import org.davidmoten.rx2.io.BufferPool;
+import org.davidmoten.rx2.io.ClientMetrics;
 import org.reactivestreams.Subscriber;
 import org.reactivestreams.Subscription;
 import org.slf4j.Logger;
@@ -27,16 +29,71 @@ public final class FlowableFromInputStream extends Flowable<ByteBuffer> {
     
     private final InputStream in;
     private final BiConsumer<Long, Long> requester;
+    private final BufferPool pool;
+    private final boolean releaseAfterOnNext;
+    private final Protocol protocol;
+    private final ClientMetrics metrics;
 
     public FlowableFromInputStream(InputStream in, BiConsumer<Long, Long> requester) {
+        this(in, requester, null, false, Protocol.DEFAULT);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param in
+     *            stream to read from
+     * @param requester
+     *            makes request and cancel calls to the server
+     * @param pool
+     *            if non-null then items are read into buffers acquired from this
+     *            pool
+     * @param releaseAfterOnNext
+     *            if true then each pooled buffer is returned to the pool as soon
+     *            as {@code onNext} returns
+     * @param protocol
+     *            the protocol version and features agreed with the server
+     */
+    public FlowableFromInputStream(InputStream in, BiConsumer<Long, Long> requester,
+            BufferPool pool, boolean releaseAfterOnNext, Protocol protocol) {
+        this(in, requester, pool, releaseAfterOnNext, protocol, ClientMetrics.NONE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param in
+     *            stream to read from
+     * @param requester
+     *            makes request and cancel calls to the server
+     * @param pool
+     *            if non-null then items are read into buffers acquired from this
+     *            pool
+     * @param releaseAfterOnNext
+     *            if true then each pooled buffer is returned to the pool as soon
+     *            as {@code onNext} returns
+     * @param protocol
+     *            the protocol version and features agreed with the server
+     * @param metrics
+     *            receives the latencies of traced items if the protocol traces
+     *            items
+     */
+    public FlowableFromInputStream(InputStream in, BiConsumer<Long, Long> requester,
+            BufferPool pool, boolean releaseAfterOnNext, Protocol protocol,
+            ClientMetrics metrics) {
         this.in = in;
         this.requester = requester;
+        this.pool = pool;
+        this.releaseAfterOnNext = releaseAfterOnNext;
+        this.protocol = protocol;
+        this.metrics = metrics;
     }
 
     @Override
     protected void subscribeActual(Subscriber<? super ByteBuffer> subscriber) {
         log.debug("subscribeActual");
-        FromStreamSubscription subscription = new FromStreamSubscription(in, requester, subscriber);
+        FromStreamSubscription subscription = new FromStreamSubscription(in, requester, subscriber,
+                pool, releaseAfterOnNext, protocol, metrics);
         subscription.start();
     }
 
@@ -49,7 +106,16 @@ public final class FlowableFromInputStream extends Flowable<ByteBuffer> {
 
         private static final long ID_UNKNOWN = 0;
 
+        private static final int READ_BUFFER_SIZE = 16384;
+
+        private static final int MAX_DRAIN_BYTES = 8192;
+
+        // returned by readLength when a trace frame was read
+        private static final int LENGTH_TRACE = Integer.MIN_VALUE + 2;
+
         private final InputStream in;
+        // in, or the inflating view of in if the stream is compressed
+        private InputStream source;
         private final Subscriber<? super ByteBuffer> child;
         
         // allocation costs are higher as requests come in because we
@@ -57,17 +123,45 @@ public final class FlowableFromInputStream extends Flowable<ByteBuffer> {
         private final AtomicReference<IdRequested> requested;
 
         private final BiConsumer<Long, Long> requester;
+        private final BufferPool pool;
+        private final boolean releaseAfterOnNext;
+        private final Protocol protocol;
         private int length = 0;
         private byte[] buffer;
+        // non-null when buffer is the backing array of a pooled ByteBuffer
+        private ByteBuffer pooled;
         private int bufferIndex;
+        // bytes read from the stream but not yet consumed are
+        // readBuffer[readPosition..readLimit)
+        private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+        private int readPosition;
+        private int readLimit;
+        // item lengths of the current batch frame
+        private int[] batchLengths;
+        private int batchIndex;
+        private int batchCount;
+        // token of the frame being read for JDK Flight Recorder
+        private Object frameEvent;
+        // null if items are not traced
+        private final LatencyTracer tracer;
+        // true if the next item is traced (with the given server times)
+        private boolean traced;
+        private long traceEnqueueTime;
+        private long traceWriteTime;
         private volatile Throwable error;
         private static final IdRequested HAVE_NOT_READ_ID = new IdRequested(0, 0);
 
         FromStreamSubscription(InputStream in, BiConsumer<Long, Long> requester,
-                Subscriber<? super ByteBuffer> child) {
+                Subscriber<? super ByteBuffer> child, BufferPool pool,
+                boolean releaseAfterOnNext, Protocol protocol, ClientMetrics metrics) {
             this.in = in;
+            this.source = in;
             this.requester = requester;
             this.child = child;
+            this.pool = pool;
+            this.releaseAfterOnNext = releaseAfterOnNext;
+            this.protocol = protocol;
+            this.tracer = protocol.trace() ? new LatencyTracer(metrics) : null;
             this.requested = new AtomicReference<>(HAVE_NOT_READ_ID);
         }
 
@@ -80,7 +174,18 @@ public final class FlowableFromInputStream extends Flowable<ByteBuffer> {
             log.debug("reading id");
             long id;
             try {
-                id = Util.readLong(in);
+                ensureAvailable(8);
+                id = Util.getLong(readBuffer, readPosition);
+                readPosition += 8;
+                if (protocol.deflate()) {
+                    byte[] dictionary = readDictionary();
+                    // everything after the dictionary is compressed including
+                    // what has already been buffered
+                    source = new InflatingInputStream(in, readBuffer, readPosition,
+                            readLimit - readPosition, dictionary);
+                    readPosition = 0;
+                    readLimit = 0;
+                }
             } catch (Throwable e) {
                 Exceptions.throwIfFatal(e);
                 closeStreamSilently();
@@ -185,37 +290,94 @@ public final class FlowableFromInputStream extends Flowable<ByteBuffer> {
                                 emitError(err);
                                 return;
                             } else {
+                                if (frameEvent == null) {
+                                    frameEvent = Jfr.beginFrame();
+                                }
                                 try {
-                                    length = Util.readInt(in);
+                                    length = readLength();
                                 } catch (IOException ex) {
                                     emitError(ex);
                                     return;
                                 }
-                                if (length == Integer.MIN_VALUE) {
-                                    closeStreamSilently();
+                                if (length == Protocol.LENGTH_BATCH || length == LENGTH_TRACE) {
+                                    // batch length table or trace frame has been read
+                                    continue;
+                                }
+                                if (length == Protocol.LENGTH_COMPLETE) {
+                                    // the complete frame is the end of the stream,
+                                    // reading to EOF lets an HTTP connection be
+                                    // reused
+                                    Util.drainAndClose(in, MAX_DRAIN_BYTES);
+                                    closeSourceSilently();
+                                    reportLatency();
+                                    terminated();
                                     child.onComplete();
                                     return;
                                 }
-                                buffer = new byte[Math.abs(length)];
+                                if (length >= 0 && pool != null) {
+                                    pooled = pool.acquire(length);
+                                    buffer = pooled.array();
+                                } else {
+                                    buffer = new byte[Math.abs(length)];
+                                }
                                 bufferIndex = 0;
                             }
                         }
                         try {
-                            int count = in.read(buffer, bufferIndex,
-                                    Math.abs(length) - bufferIndex);
-                            if (count == -1) {
-                                emitError(new EOFException(
-                                        "encountered EOF before expected length was read"));
-                                return;
+                            int needed = Math.abs(length) - bufferIndex;
+                            int available = readLimit - readPosition;
+                            if (available > 0 || needed == 0) {
+                                int n = Math.min(available, needed);
+                                System.arraycopy(readBuffer, readPosition, buffer, bufferIndex, n);
+                                readPosition += n;
+                                bufferIndex += n;
+                            } else {
+                                // nothing buffered so read from the stream, large payloads
+                                // go straight to the item buffer to avoid a second copy
+                                final int count;
+                                if (needed >= READ_BUFFER_SIZE) {
+                                    count = source.read(buffer, bufferIndex, needed);
+                                } else {
+                                    readPosition = 0;
+                                    count = source.read(readBuffer, 0, READ_BUFFER_SIZE);
+                                    readLimit = Math.max(count, 0);
+                                }
+                                if (count == -1) {
+                                    emitError(new EOFException(
+                                            "encountered EOF before expected length was read"));
+                                    return;
+                                }
+                                if (needed >= READ_BUFFER_SIZE) {
+                                    bufferIndex += count;
+                                }
+                                // loop round again to copy from readBuffer or check
+                                // whether the item is complete
                             }
-                            bufferIndex += count;
                             if (bufferIndex == Math.abs(length)) {
+                                Jfr.endFrame(frameEvent, length);
+                                frameEvent = null;
                                 if (length < 0) {
                                     String t = new String(buffer, 0, -length,
                                             StandardCharsets.UTF_8);
                                     buffer = null;
+                                    reportLatency();
+                                    terminated();
                                     child.onError(new RuntimeException(t));
                                     return;
+                                }
+                                if (traced) {
+                                    traced = false;
+                                    tracer.received(traceEnqueueTime, traceWriteTime);
+                                }
+                                if (pooled != null) {
+                                    ByteBuffer bb = pooled;
+                                    pooled = null;
+                                    buffer = null;
+                                    child.onNext(bb);
+                                    if (releaseAfterOnNext) {
+                                        pool.release(bb);
+                                    }
+                                    e++;
                                 } else {
                                     child.onNext(ByteBuffer.wrap(buffer, 0, length));
                                     buffer = null;
@@ -238,14 +400,153 @@ public final class FlowableFromInputStream extends Flowable<ByteBuffer> {
             }
         }
 
+        /**
+         * Reads the next frame header (or takes the next length from the current
+         * batch).
+         * 
+         * @return the item length, the negated error length,
+         *         {@link Protocol#LENGTH_COMPLETE} for completion or
+         *         {@link Protocol#LENGTH_BATCH} if a batch length table was read
+         * @throws IOException
+         *             on read failure or malformed header
+         */
+        private int readLength() throws IOException {
+            if (batchIndex < batchCount) {
+                return batchLengths[batchIndex++];
+            }
+            if (protocol.version() == 1) {
+                ensureAvailable(4);
+                int v = Util.getInt(readBuffer, readPosition);
+                readPosition += 4;
+                if (v == Protocol.LENGTH_BATCH) {
+                    ensureAvailable(4);
+                    int count = Util.getInt(readBuffer, readPosition);
+                    readPosition += 4;
+                    readBatchLengths(count);
+                }
+                return v;
+            } else {
+                int v = readVarint();
+                if ((v & 1) == 0) {
+                    return v >>> 1;
+                }
+                int code = v >>> 1;
+                if (code == Protocol.CODE_COMPLETE) {
+                    return Protocol.LENGTH_COMPLETE;
+                } else if (code == Protocol.CODE_ERROR) {
+                    int n = readNonNegativeVarint();
+                    if (n == 0) {
+                        throw new IOException("empty error frame");
+                    }
+                    return -n;
+                } else if (code == Protocol.CODE_BATCH) {
+                    readBatchLengths(readNonNegativeVarint());
+                    return Protocol.LENGTH_BATCH;
+                } else if (code == Protocol.CODE_TRACE_ITEM && tracer != null) {
+                    ensureAvailable(16);
+                    traceEnqueueTime = Util.getLong(readBuffer, readPosition);
+                    traceWriteTime = Util.getLong(readBuffer, readPosition + 8);
+                    readPosition += 16;
+                    traced = true;
+                    return LENGTH_TRACE;
+                } else if (code == Protocol.CODE_TRACE_FLUSH && tracer != null) {
+                    ensureAvailable(8);
+                    long flushTime = Util.getLong(readBuffer, readPosition);
+                    readPosition += 8;
+                    tracer.flushed(flushTime);
+                    return LENGTH_TRACE;
+                } else {
+                    throw new IOException("unknown control code: " + code);
+                }
+            }
+        }
+
+        private byte[] readDictionary() throws IOException {
+            int length = readNonNegativeVarint();
+            if (length > Protocol.MAX_DICTIONARY_LENGTH) {
+                throw new IOException("dictionary too long: " + length);
+            }
+            byte[] dictionary = new byte[length];
+            int index = 0;
+            while (index < length) {
+                ensureAvailable(1);
+                int n = Math.min(length - index, readLimit - readPosition);
+                System.arraycopy(readBuffer, readPosition, dictionary, index, n);
+                readPosition += n;
+                index += n;
+            }
+            return dictionary;
+        }
+
+        private void readBatchLengths(int count) throws IOException {
+            if (count <= 0) {
+                throw new IOException("invalid batch count: " + count);
+            }
+            if (batchLengths == null || batchLengths.length < count) {
+                batchLengths = new int[count];
+            }
+            for (int i = 0; i < count; i++) {
+                batchLengths[i] = readNonNegativeVarint();
+            }
+            batchIndex = 0;
+            batchCount = count;
+        }
+
+        private int readNonNegativeVarint() throws IOException {
+            int v = readVarint();
+            if (v < 0) {
+                throw new IOException("varint out of range");
+            }
+            return v;
+        }
+
+        // reads an unsigned varint of up to 32 bits
+        private int readVarint() throws IOException {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                ensureAvailable(1);
+                byte b = readBuffer[readPosition++];
+                v |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return v;
+                }
+            }
+            throw new IOException("malformed varint");
+        }
+
+        // blocks until at least n bytes are available in readBuffer
+        private void ensureAvailable(int n) throws IOException {
+            while (readLimit - readPosition < n) {
+                if (READ_BUFFER_SIZE - readPosition < n) {
+                    // compact
+                    System.arraycopy(readBuffer, readPosition, readBuffer, 0,
+                            readLimit - readPosition);
+                    readLimit -= readPosition;
+                    readPosition = 0;
+                }
+                int count = source.read(readBuffer, readLimit, READ_BUFFER_SIZE - readLimit);
+                if (count == -1) {
+                    throw new EOFException();
+                }
+                readLimit += count;
+            }
+        }
+
         private void emitError(Throwable e) {
             if (!cancelled()) {
-                closeStreamSilently();
+                closeSourceSilently();
+                reportLatency();
                 System.out.println("emitting error " + e.getMessage());
                 child.onError(e);
             }
         }
 
+        private void reportLatency() {
+            if (tracer != null) {
+                tracer.report();
+            }
+        }
+
         private boolean tryCancelled() {
             return requested.get() == null;
         }
@@ -254,10 +555,22 @@ public final class FlowableFromInputStream extends Flowable<ByteBuffer> {
             Util.close(in);
         }
 
+        // must only be called from the draining thread because closing source
+        // releases the inflater
+        private void closeSourceSilently() {
+            Util.close(source);
+        }
+
         private boolean cancelled() {
             return requested.get() == null;
         }
 
+        // the server has ended the stream so a later cancel (Flowable.using
+        // cancels after onComplete) must not send a cancel request
+        private void terminated() {
+            requested.set(null);
+        }
+
         @Override
         public void cancel() {
             while (true) {
@@ -270,6 +583,7 @@ public final class FlowableFromInputStream extends Flowable<ByteBuffer> {
                     if (idr.id != ID_UNKNOWN) {
                         cancelUpstream(idr.id);
                     }
+                    reportLatency();
                     break;
                 }
             }
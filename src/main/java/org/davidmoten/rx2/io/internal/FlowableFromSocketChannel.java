@@ -0,0 +1,519 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.reactivex.Flowable;
+import io.reactivex.exceptions.Exceptions;
+import io.reactivex.functions.BiConsumer;
+import io.reactivex.internal.queue.SpscLinkedArrayQueue;
+import io.reactivex.internal.subscriptions.EmptySubscription;
+import io.reactivex.internal.subscriptions.SubscriptionHelper;
+import io.reactivex.internal.util.BackpressureHelper;
+
+/**
+ * Subscribes to a stream with a duplex call ({@link Protocol#duplex()}) over a
+ * non-blocking {@link SocketChannel} served by an {@link EventLoop} so that no
+ * thread is held for the life of the stream. Frames are decoded as bytes
+ * arrive and the server is only sent credit for items requested downstream.
+ * Items are emitted on the event loop's thread (or the requesting thread).
+ * If the server does not support duplex streams then request calls are made
+ * instead. Only http urls are supported.
+ */
+public final class FlowableFromSocketChannel extends Flowable<ByteBuffer> {
+
+    private final EventLoop loop;
+    private final URL url;
+    private final Map<String, String> requestHeaders;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final Callable<BiConsumer<Long, Long>> requesterFactory;
+
+    /**
+     * Constructor.
+     *
+     * @param loop
+     *            event loop that serves the channel
+     * @param url
+     *            http url of the stream
+     * @param requestHeaders
+     *            headers to add to the request
+     * @param connectTimeoutMs
+     *            connect timeout, 0 for none
+     * @param readTimeoutMs
+     *            maximum time to wait for requested data, 0 for none
+     * @param requesterFactory
+     *            creates the maker of request and cancel calls if the server
+     *            does not support duplex streams
+     */
+    public FlowableFromSocketChannel(EventLoop loop, URL url, Map<String, String> requestHeaders,
+            int connectTimeoutMs, int readTimeoutMs,
+            Callable<BiConsumer<Long, Long>> requesterFactory) {
+        this.loop = loop;
+        this.url = url;
+        this.requestHeaders = requestHeaders;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.requesterFactory = requesterFactory;
+    }
+
+    @Override
+    protected void subscribeActual(Subscriber<? super ByteBuffer> subscriber) {
+        if (loop.isClosed()) {
+            EmptySubscription.error(new IOException("event loop closed"), subscriber);
+            return;
+        }
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        // resolved here rather than blocking the event loop
+        InetSocketAddress address = new InetSocketAddress(url.getHost(), port);
+        if (address.isUnresolved()) {
+            EmptySubscription.error(new UnknownHostException(url.getHost()), subscriber);
+            return;
+        }
+        Map<String, String> headers = new HashMap<>(requestHeaders);
+        Protocol offered = Protocol.ALL.deflate(false).mux(false).trace(false);
+        headers.put(Protocol.VERSION_HEADER, String.valueOf(offered.version()));
+        headers.put(Protocol.FEATURES_HEADER, offered.featuresHeader());
+        byte[] head = DuplexExchange.ascii(DuplexExchange.requestHead(url, headers));
+        ChannelSubscription subscription = new ChannelSubscription(subscriber, loop, address,
+                head, connectTimeoutMs, readTimeoutMs, requesterFactory);
+        subscriber.onSubscribe(subscription);
+        loop.execute(subscription::connect);
+    }
+
+    static final class ChannelSubscription extends AtomicInteger implements Subscription,
+            EventLoop.Handler, ResponseDecoder.Listener, FrameDecoder.Listener {
+
+        private static final long serialVersionUID = -2394021487562818291L;
+
+        private static final Logger log = LoggerFactory.getLogger(ChannelSubscription.class);
+
+        private static final int CREDIT_CHUNK_LENGTH = DuplexExchange.CHUNK_HEADER.length
+                + Protocol.CREDIT_LENGTH + DuplexExchange.CRLF.length;
+
+        // maximum reads of one channel before other channels get a turn
+        private static final int MAX_READS = 16;
+
+        private static final long ID_UNKNOWN = 0;
+
+        private final Subscriber<? super ByteBuffer> child;
+        private final EventLoop loop;
+        private final InetSocketAddress address;
+        private final int connectTimeoutMs;
+        private final int readTimeoutMs;
+        private final Callable<BiConsumer<Long, Long>> requesterFactory;
+        private final SpscLinkedArrayQueue<ByteBuffer> queue = new SpscLinkedArrayQueue<>(16);
+        private final AtomicLong requested = new AtomicLong();
+        // requested downstream but not yet sent to the server
+        private final AtomicLong credit = new AtomicLong();
+        private final AtomicBoolean creditScheduled = new AtomicBoolean();
+        private volatile boolean cancelled;
+        private volatile boolean done;
+        private Throwable error;
+        // only accessed by the drain loop
+        private long emitted;
+
+        // the fields below are only accessed on the event loop's thread
+
+        private final ResponseDecoder response = new ResponseDecoder(this);
+        private SocketChannel channel;
+        private SelectionKey key;
+        // bytes to be written to the channel, in read mode
+        private ByteBuffer out;
+        private FrameDecoder frames;
+        private boolean duplex;
+        // makes request calls if the server does not support duplex streams
+        private BiConsumer<Long, Long> requester;
+        private long id = ID_UNKNOWN;
+        // items the server has been asked for but not yet sent
+        private long outstanding;
+        private long connectDeadline;
+        private long lastReadTime;
+        private boolean finished;
+
+        ChannelSubscription(Subscriber<? super ByteBuffer> child, EventLoop loop,
+                InetSocketAddress address, byte[] head, int connectTimeoutMs, int readTimeoutMs,
+                Callable<BiConsumer<Long, Long>> requesterFactory) {
+            this.child = child;
+            this.loop = loop;
+            this.address = address;
+            this.connectTimeoutMs = connectTimeoutMs;
+            this.readTimeoutMs = readTimeoutMs;
+            this.requesterFactory = requesterFactory;
+            this.out = ByteBuffer.allocate(head.length + CREDIT_CHUNK_LENGTH);
+            out.put(head);
+            // some containers (Jetty for one) do not dispatch a request with a
+            // body until some of the body has arrived so send a zero credit
+            putCredit(out, 0);
+            out.flip();
+        }
+
+        void connect() {
+            if (cancelled) {
+                return;
+            }
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                // credits are small and must not wait for delayed acks
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                long now = System.currentTimeMillis();
+                connectDeadline = connectTimeoutMs == 0 ? Long.MAX_VALUE : now + connectTimeoutMs;
+                lastReadTime = now;
+                if (channel.connect(address)) {
+                    key = loop.register(channel, SelectionKey.OP_READ, this);
+                    flush();
+                } else {
+                    key = loop.register(channel, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void ready(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    flush();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        private void read() throws IOException {
+            ByteBuffer b = loop.readBuffer();
+            for (int i = 0; i < MAX_READS && !finished; i++) {
+                b.clear();
+                int n = channel.read(b);
+                if (n == -1) {
+                    response.endOfInput();
+                    if (!finished) {
+                        fail(new EOFException("connection closed before the stream ended"));
+                    }
+                    return;
+                } else if (n == 0) {
+                    return;
+                }
+                lastReadTime = System.currentTimeMillis();
+                b.flip();
+                response.decode(b);
+            }
+        }
+
+        private void flush() throws IOException {
+            if (!channel.isConnected()) {
+                return;
+            }
+            channel.write(out);
+            int ops = key.interestOps();
+            if (out.hasRemaining()) {
+                key.interestOps(ops | SelectionKey.OP_WRITE);
+            } else if ((ops & SelectionKey.OP_WRITE) != 0) {
+                key.interestOps(ops & ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void write(byte[] bytes) throws IOException {
+            ensureWritable(bytes.length);
+            out.put(bytes);
+            out.flip();
+            flush();
+        }
+
+        private void writeCredit(long n) throws IOException {
+            ensureWritable(CREDIT_CHUNK_LENGTH);
+            putCredit(out, n);
+            out.flip();
+            flush();
+        }
+
+        // leaves out in write mode with at least n bytes free
+        private void ensureWritable(int n) {
+            out.compact();
+            if (out.remaining() < n) {
+                out.flip();
+                ByteBuffer b = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.remaining() + n));
+                b.put(out);
+                out = b;
+            }
+        }
+
+        private static void putCredit(ByteBuffer b, long n) {
+            b.put(DuplexExchange.CHUNK_HEADER);
+            b.putLong(n);
+            b.put(DuplexExchange.CRLF);
+        }
+
+        @Override
+        public void checkTimeout(long nowMs) {
+            if (finished) {
+                return;
+            }
+            if (!channel.isConnected()) {
+                if (nowMs > connectDeadline) {
+                    fail(new SocketTimeoutException("connect timed out: " + address));
+                }
+            } else if (readTimeoutMs > 0 && (frames == null || outstanding > 0)
+                    && nowMs - lastReadTime > readTimeoutMs) {
+                fail(new SocketTimeoutException("Read timed out"));
+            }
+        }
+
+        @Override
+        public void closed(IOException e) {
+            fail(e);
+        }
+
+        @Override
+        public void onHead(int status, Map<String, String> headers) throws IOException {
+            if (status != 200) {
+                throw new IOException("Server returned HTTP response code: " + status
+                        + " for URL: " + address);
+            }
+            Protocol protocol = Protocol.parse(
+                    headers.get(Protocol.VERSION_HEADER.toLowerCase(Locale.ENGLISH)),
+                    headers.get(Protocol.FEATURES_HEADER.toLowerCase(Locale.ENGLISH)));
+            if (protocol.deflate()) {
+                throw new IOException("server used deflate which was not offered");
+            }
+            frames = new FrameDecoder(protocol, this);
+            duplex = protocol.duplex();
+            if (!duplex) {
+                // the server will not read credits so use request calls
+                write(DuplexExchange.LAST_CHUNK);
+                try {
+                    requester = requesterFactory.call();
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+            sendCredits();
+        }
+
+        @Override
+        public void onBody(ByteBuffer data) throws IOException {
+            frames.decode(data);
+        }
+
+        @Override
+        public void onEnd() throws IOException {
+            if (!frames.finished()) {
+                throw new EOFException("response ended before the stream ended");
+            }
+        }
+
+        @Override
+        public void onId(long id) {
+            this.id = id;
+            if (!duplex) {
+                sendCredits();
+            }
+        }
+
+        @Override
+        public void onItem(ByteBuffer item) {
+            outstanding--;
+            queue.offer(item);
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            finish(null);
+        }
+
+        @Override
+        public void onError(String error) {
+            finish(new RuntimeException(error));
+        }
+
+        private void fail(Throwable e) {
+            if (!finished) {
+                log.debug("stream failed", e);
+                finish(e);
+            }
+        }
+
+        private void finish(Throwable e) {
+            finished = true;
+            closeChannel();
+            error = e;
+            done = true;
+            drain();
+        }
+
+        private void closeChannel() {
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.debug("close failed", e);
+                }
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (SubscriptionHelper.validate(n)) {
+                BackpressureHelper.add(requested, n);
+                BackpressureHelper.add(credit, n);
+                if (creditScheduled.compareAndSet(false, true)) {
+                    loop.execute(() -> {
+                        creditScheduled.set(false);
+                        sendCredits();
+                    });
+                }
+                drain();
+            }
+        }
+
+        // passes on credit once the server's protocol (and if needed the
+        // stream id) is known
+        private void sendCredits() {
+            if (finished || cancelled || frames == null || (!duplex && id == ID_UNKNOWN)) {
+                return;
+            }
+            long n = credit.getAndSet(0);
+            if (n == 0) {
+                return;
+            }
+            outstanding = BackpressureHelper.addCap(outstanding, n);
+            try {
+                if (duplex) {
+                    writeCredit(n);
+                } else {
+                    requester.accept(id, n);
+                }
+            } catch (Throwable e) {
+                Exceptions.throwIfFatal(e);
+                fail(e);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                loop.execute(this::cancelOnLoop);
+                if (getAndIncrement() == 0) {
+                    queue.clear();
+                }
+            }
+        }
+
+        private void cancelOnLoop() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            try {
+                if (duplex) {
+                    // best effort, the server also cancels when the connection
+                    // closes
+                    ensureWritable(CREDIT_CHUNK_LENGTH);
+                    putCredit(out, -1);
+                    out.flip();
+                    if (channel.isConnected()) {
+                        channel.write(out);
+                    }
+                } else if (requester != null && id != ID_UNKNOWN) {
+                    requester.accept(id, -1L);
+                }
+            } catch (Throwable e) {
+                Exceptions.throwIfFatal(e);
+                log.debug("cancel not sent", e);
+            }
+            closeChannel();
+        }
+
+        private void drain() {
+            if (getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            Subscriber<? super ByteBuffer> a = child;
+            SpscLinkedArrayQueue<ByteBuffer> q = queue;
+            long e = emitted;
+            while (true) {
+                long r = requested.get();
+                while (e != r) {
+                    if (cancelled) {
+                        q.clear();
+                        return;
+                    }
+                    boolean d = done;
+                    ByteBuffer v = q.poll();
+                    boolean empty = v == null;
+                    if (d && empty) {
+                        terminate(a);
+                        return;
+                    }
+                    if (empty) {
+                        break;
+                    }
+                    a.onNext(v);
+                    e++;
+                }
+                if (cancelled) {
+                    q.clear();
+                    return;
+                }
+                if (done && q.isEmpty()) {
+                    terminate(a);
+                    return;
+                }
+                emitted = e;
+                missed = addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void terminate(Subscriber<? super ByteBuffer> a) {
+            // so that nothing more is emitted
+            cancelled = true;
+            Throwable err = error;
+            if (err != null) {
+                a.onError(err);
+            } else {
+                a.onComplete();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,95 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.nio.ByteBuffer;
+
+import org.davidmoten.rx2.io.ClientMetrics;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import io.reactivex.Flowable;
+import io.reactivex.internal.subscriptions.SubscriptionHelper;
+
+/**
+ * Reports the subscription, items and termination of a stream to
+ * {@link ClientMetrics}. Only used if metrics are installed so that streams
+ * without metrics pay nothing.
+ */
+public final class FlowableMetrics extends Flowable<ByteBuffer> {
+
+    private final Publisher<ByteBuffer> source;
+    private final ClientMetrics metrics;
+
+    public FlowableMetrics(Publisher<ByteBuffer> source, ClientMetrics metrics) {
+        this.source = source;
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected void subscribeActual(Subscriber<? super ByteBuffer> child) {
+        metrics.streamOpened();
+        source.subscribe(new MetricsSubscriber(child, metrics));
+    }
+
+    private static final class MetricsSubscriber implements Subscriber<ByteBuffer>, Subscription {
+
+        private final Subscriber<? super ByteBuffer> child;
+        private final ClientMetrics metrics;
+        private Subscription parent;
+        // only reported once (cancel may race with termination)
+        private volatile boolean done;
+
+        MetricsSubscriber(Subscriber<? super ByteBuffer> child, ClientMetrics metrics) {
+            this.child = child;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (SubscriptionHelper.validate(parent, s)) {
+                parent = s;
+                child.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(ByteBuffer bb) {
+            metrics.itemRead(bb.remaining());
+            child.onNext(bb);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            if (!done) {
+                done = true;
+                metrics.streamFailed(e);
+            }
+            child.onError(e);
+        }
+
+        @Override
+        public void onComplete() {
+            if (!done) {
+                done = true;
+                metrics.streamCompleted();
+            }
+            child.onComplete();
+        }
+
+        @Override
+        public void request(long n) {
+            parent.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            if (!done) {
+                done = true;
+                metrics.streamCancelled();
+            }
+            parent.cancel();
+        }
+
+    }
+
+}
@@ -0,0 +1,275 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.davidmoten.rx2.io.ClientMetrics;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import io.reactivex.Flowable;
+import io.reactivex.internal.fuseable.SimplePlainQueue;
+import io.reactivex.internal.queue.SpscLinkedArrayQueue;
+import io.reactivex.internal.subscriptions.SubscriptionHelper;
+import io.reactivex.internal.util.BackpressureHelper;
+
+/**
+ * Decouples requests made to the server from downstream requests. Credit is
+ * kept outstanding with the server to cover the bandwidth-delay product: the
+ * window is twice the number of items expected to arrive during one request
+ * round trip (measured by {@link RttEstimate}) at the measured arrival rate,
+ * clamped to {@code [minWindow, maxWindow]}. When outstanding credit falls to
+ * half the window it is topped up so that the server is not left waiting for
+ * a request. Items that arrive before they are requested downstream are
+ * buffered, at most {@code maxWindow} of them.
+ */
+public final class FlowableRequestWindow extends Flowable<ByteBuffer> {
+
+    private final Publisher<ByteBuffer> source;
+    private final RttEstimate rtt;
+    private final int minWindow;
+    private final int maxWindow;
+    private final ClientMetrics metrics;
+
+    public FlowableRequestWindow(Publisher<ByteBuffer> source, RttEstimate rtt, int minWindow,
+            int maxWindow) {
+        this(source, rtt, minWindow, maxWindow, ClientMetrics.NONE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param source
+     *            stream from the server
+     * @param rtt
+     *            round-trip times of request calls
+     * @param minWindow
+     *            minimum number of items requested ahead
+     * @param maxWindow
+     *            maximum number of items requested ahead
+     * @param metrics
+     *            told the number of buffered items after each arrival
+     */
+    public FlowableRequestWindow(Publisher<ByteBuffer> source, RttEstimate rtt, int minWindow,
+            int maxWindow, ClientMetrics metrics) {
+        this.source = source;
+        this.rtt = rtt;
+        this.minWindow = minWindow;
+        this.maxWindow = maxWindow;
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected void subscribeActual(Subscriber<? super ByteBuffer> child) {
+        source.subscribe(new WindowSubscriber(child, rtt, minWindow, maxWindow, metrics));
+    }
+
+    static final class WindowSubscriber extends AtomicInteger
+            implements Subscriber<ByteBuffer>, Subscription {
+
+        private static final long serialVersionUID = -3364387563722407285L;
+
+        // moving averages weight the latest sample by 1/8
+        private static final int SHIFT = 3;
+
+        private final Subscriber<? super ByteBuffer> child;
+        private final RttEstimate rtt;
+        private final int minWindow;
+        private final int maxWindow;
+        private final ClientMetrics metrics;
+        private final boolean metered;
+        private final SimplePlainQueue<ByteBuffer> queue = new SpscLinkedArrayQueue<>(16);
+        private final AtomicLong requested = new AtomicLong();
+        // requested from upstream but not yet arrived
+        private final AtomicLong outstanding = new AtomicLong();
+        // arrived but not yet emitted
+        private final AtomicInteger buffered = new AtomicInteger();
+        // serializes top-ups (from onNext and request) so that calls of
+        // parent.request are serial
+        private final AtomicInteger topUpWip = new AtomicInteger();
+        private Subscription parent;
+        private volatile boolean started;
+        private volatile boolean done;
+        private Throwable error;
+        private volatile boolean cancelled;
+        // arrival statistics, only accessed in onNext
+        private long lastArrival;
+        private volatile long meanGapNanos;
+
+        WindowSubscriber(Subscriber<? super ByteBuffer> child, RttEstimate rtt, int minWindow,
+                int maxWindow) {
+            this(child, rtt, minWindow, maxWindow, ClientMetrics.NONE);
+        }
+
+        WindowSubscriber(Subscriber<? super ByteBuffer> child, RttEstimate rtt, int minWindow,
+                int maxWindow, ClientMetrics metrics) {
+            this.child = child;
+            this.rtt = rtt;
+            this.minWindow = minWindow;
+            this.maxWindow = maxWindow;
+            this.metrics = metrics;
+            this.metered = metrics != ClientMetrics.NONE;
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            if (SubscriptionHelper.validate(parent, s)) {
+                parent = s;
+                child.onSubscribe(this);
+            }
+        }
+
+        @Override
+        public void onNext(ByteBuffer bb) {
+            long now = System.nanoTime();
+            if (lastArrival != 0) {
+                long gap = now - lastArrival;
+                long mean = meanGapNanos;
+                meanGapNanos = mean == 0 ? Math.max(1, gap)
+                        : Math.max(1, mean + ((gap - mean) >> SHIFT));
+            }
+            lastArrival = now;
+            outstanding.decrementAndGet();
+            buffered.incrementAndGet();
+            queue.offer(bb);
+            drain();
+            if (metered) {
+                metrics.queueDepth(buffered.get());
+            }
+            topUp();
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            error = e;
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            done = true;
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (SubscriptionHelper.validate(n)) {
+                BackpressureHelper.add(requested, n);
+                started = true;
+                drain();
+                topUp();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                parent.cancel();
+                if (getAndIncrement() == 0) {
+                    queue.clear();
+                }
+            }
+        }
+
+        int window() {
+            long r = rtt.nanos();
+            long gap = meanGapNanos;
+            if (r == 0 || gap == 0) {
+                return minWindow;
+            }
+            long w = 2 * (r / gap + 1);
+            return (int) Math.max(minWindow, Math.min(maxWindow, w));
+        }
+
+        private void topUp() {
+            if (topUpWip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            while (true) {
+                requestMore();
+                missed = topUpWip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        // requests more from upstream if outstanding credit has fallen to the
+        // low watermark, only called by the thread holding topUpWip
+        private void requestMore() {
+            if (!started || cancelled || done) {
+                return;
+            }
+            long credit = outstanding.get();
+            int w = window();
+            long k = w - credit - buffered.get();
+            if (credit <= w / 2 && k > 0) {
+                outstanding.addAndGet(k);
+                parent.request(k);
+            }
+        }
+
+        private void drain() {
+            if (getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            while (true) {
+                long r = requested.get();
+                long e = 0;
+                while (e != r) {
+                    if (cancelled) {
+                        queue.clear();
+                        return;
+                    }
+                    boolean d = done;
+                    ByteBuffer bb = queue.poll();
+                    if (bb == null) {
+                        if (d) {
+                            terminate();
+                            return;
+                        }
+                        break;
+                    }
+                    buffered.decrementAndGet();
+                    child.onNext(bb);
+                    e++;
+                }
+                if (e == r) {
+                    if (cancelled) {
+                        queue.clear();
+                        return;
+                    }
+                    if (done && queue.isEmpty()) {
+                        terminate();
+                        return;
+                    }
+                }
+                if (e != 0) {
+                    BackpressureHelper.produced(requested, e);
+                }
+                missed = addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void terminate() {
+            Throwable err = error;
+            if (err != null) {
+                error = null;
+                child.onError(err);
+            } else {
+                child.onComplete();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,279 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the stream id and frames of a response body incrementally from
+ * whatever bytes have arrived (the non-blocking counterpart of
+ * {@link FlowableFromInputStream}). Bytes of an incomplete frame header are
+ * kept until the rest arrives. Compressed streams ({@link Protocol#deflate()})
+ * are not supported.
+ */
+final class FrameDecoder {
+
+    interface Listener {
+
+        void onId(long id);
+
+        void onItem(ByteBuffer item);
+
+        void onComplete();
+
+        /**
+         * Called with the stack trace sent by the server in an error frame.
+         *
+         * @param error
+         *            server error
+         */
+        void onError(String error);
+    }
+
+    private static final long INCOMPLETE = -1;
+
+    private final Protocol protocol;
+    private final Listener listener;
+    // unconsumed bytes are buffer[position..limit)
+    private byte[] buffer = new byte[256];
+    private int position;
+    private int limit;
+    // read position while parsing a frame header that may be incomplete
+    private int p;
+    private boolean idRead;
+    // non-null while the bytes of an item (or error) are arriving
+    private byte[] item;
+    private int itemIndex;
+    private boolean itemIsError;
+    // item lengths of the current batch frame
+    private int[] batchLengths;
+    private int batchIndex;
+    private int batchCount;
+    private boolean finished;
+
+    FrameDecoder(Protocol protocol, Listener listener) {
+        if (protocol.deflate()) {
+            throw new IllegalArgumentException("deflate is not supported");
+        }
+        this.protocol = protocol;
+        this.listener = listener;
+    }
+
+    /**
+     * Decodes all of {@code src}, calling the listener for each complete
+     * frame. Bytes after the complete frame are ignored.
+     *
+     * @param src
+     *            body bytes
+     * @throws IOException
+     *             on a malformed frame
+     */
+    void decode(ByteBuffer src) throws IOException {
+        if (finished) {
+            return;
+        }
+        if (item != null && position == limit) {
+            // most of a large item goes straight to the item array
+            int n = Math.min(src.remaining(), item.length - itemIndex);
+            src.get(item, itemIndex, n);
+            itemIndex += n;
+            if (itemIndex == item.length) {
+                emitItem();
+            }
+        }
+        append(src);
+        parse();
+    }
+
+    boolean finished() {
+        return finished;
+    }
+
+    private void append(ByteBuffer src) {
+        int n = src.remaining();
+        if (n == 0) {
+            return;
+        }
+        if (buffer.length - limit < n) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+            if (buffer.length - limit < n) {
+                byte[] b = new byte[Math.max(buffer.length * 2, limit + n)];
+                System.arraycopy(buffer, 0, b, 0, limit);
+                buffer = b;
+            }
+        }
+        src.get(buffer, limit, n);
+        limit += n;
+    }
+
+    private void parse() throws IOException {
+        while (!finished) {
+            if (item != null) {
+                int n = Math.min(limit - position, item.length - itemIndex);
+                System.arraycopy(buffer, position, item, itemIndex, n);
+                position += n;
+                itemIndex += n;
+                if (itemIndex < item.length) {
+                    break;
+                }
+                emitItem();
+            } else if (batchIndex < batchCount) {
+                startItem(batchLengths[batchIndex++], false);
+            } else if (!idRead) {
+                if (limit - position < 8) {
+                    break;
+                }
+                idRead = true;
+                long id = Util.getLong(buffer, position);
+                position += 8;
+                listener.onId(id);
+            } else if (!parseHeader()) {
+                break;
+            }
+        }
+        if (position == limit) {
+            position = 0;
+            limit = 0;
+        }
+    }
+
+    // returns false if the header is incomplete, in which case nothing is
+    // consumed
+    private boolean parseHeader() throws IOException {
+        p = position;
+        if (protocol.version() == 1) {
+            if (limit - p < 4) {
+                return false;
+            }
+            int v = Util.getInt(buffer, p);
+            p += 4;
+            if (v >= 0) {
+                position = p;
+                startItem(v, false);
+            } else if (v == Protocol.LENGTH_COMPLETE) {
+                position = p;
+                complete();
+            } else if (v == Protocol.LENGTH_BATCH) {
+                if (limit - p < 4) {
+                    return false;
+                }
+                int count = Util.getInt(buffer, p);
+                p += 4;
+                return batch(count);
+            } else {
+                position = p;
+                startItem(-v, true);
+            }
+            return true;
+        } else {
+            long v = varint();
+            if (v == INCOMPLETE) {
+                return false;
+            }
+            if ((v & 1) == 0) {
+                position = p;
+                startItem((int) (v >>> 1), false);
+                return true;
+            }
+            long code = v >>> 1;
+            if (code == Protocol.CODE_COMPLETE) {
+                position = p;
+                complete();
+                return true;
+            } else if (code == Protocol.CODE_ERROR) {
+                long n = varint();
+                if (n == INCOMPLETE) {
+                    return false;
+                }
+                if (n == 0) {
+                    throw new IOException("empty error frame");
+                }
+                position = p;
+                startItem(nonNegative(n), true);
+                return true;
+            } else if (code == Protocol.CODE_BATCH) {
+                long count = varint();
+                if (count == INCOMPLETE) {
+                    return false;
+                }
+                return batch(nonNegative(count));
+            } else {
+                throw new IOException("unknown control code: " + code);
+            }
+        }
+    }
+
+    private boolean batch(int count) throws IOException {
+        if (count <= 0) {
+            throw new IOException("invalid batch count: " + count);
+        }
+        if (batchLengths == null || batchLengths.length < count) {
+            batchLengths = new int[count];
+        }
+        for (int i = 0; i < count; i++) {
+            long n = varint();
+            if (n == INCOMPLETE) {
+                return false;
+            }
+            batchLengths[i] = nonNegative(n);
+        }
+        position = p;
+        batchIndex = 0;
+        batchCount = count;
+        return true;
+    }
+
+    private void startItem(int length, boolean error) {
+        item = new byte[length];
+        itemIndex = 0;
+        itemIsError = error;
+        if (length == 0) {
+            emitItem();
+        }
+    }
+
+    private void emitItem() {
+        byte[] b = item;
+        item = null;
+        if (itemIsError) {
+            finished = true;
+            listener.onError(new String(b, StandardCharsets.UTF_8));
+        } else {
+            listener.onItem(ByteBuffer.wrap(b));
+        }
+    }
+
+    private void complete() {
+        finished = true;
+        listener.onComplete();
+    }
+
+    // reads an unsigned varint of up to 32 bits at p
+    private long varint() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (p == limit) {
+                return INCOMPLETE;
+            }
+            byte b = buffer[p++];
+            v |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (v > 0xFFFFFFFFL) {
+                    throw new IOException("malformed varint");
+                }
+                return v;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private static int nonNegative(long v) throws IOException {
+        if (v > Integer.MAX_VALUE) {
+            throw new IOException("varint out of range");
+        }
+        return (int) v;
+    }
+
+}
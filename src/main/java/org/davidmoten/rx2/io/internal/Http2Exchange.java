@@ -0,0 +1,477 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http.MetaData;
+import org.eclipse.jetty.http2.ErrorCode;
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.api.Stream;
+import org.eclipse.jetty.http2.frames.DataFrame;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.eclipse.jetty.http2.frames.ResetFrame;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.FutureCallback;
+import org.eclipse.jetty.util.FuturePromise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.reactivex.internal.util.BackpressureHelper;
+
+/**
+ * A duplex subscribe call ({@link Protocol#duplex()}) made as one stream of a
+ * shared HTTP/2 session. Credits are sent as DATA frames of the request on the
+ * same connection. Response DATA frames are only acknowledged to HTTP/2 flow
+ * control once they have been read so a slow reader applies backpressure to
+ * the server.
+ *
+ * <p>
+ * Request DATA frames are written asynchronously, one at a time, so that a
+ * thread sending a credit (often the subscriber's thread calling request) never
+ * waits for the HTTP/2 send window. Credits sent while a frame is being written
+ * are merged into the next frame.
+ */
+public final class Http2Exchange implements Exchange, Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(Http2Exchange.class);
+
+    private final Stream stream;
+    private final MetaData.Response response;
+    private final Body body;
+    private final Callback written = new Written();
+    // guarded by this
+    private final ArrayDeque<ByteBuffer> outgoing = new ArrayDeque<>();
+    // credit not yet written, -1 if cancelled
+    private long pendingCredit;
+    private boolean writing;
+    private boolean creditsEnded;
+    private boolean endWritten;
+    private boolean writeFailed;
+    private IOException writeError;
+    private volatile boolean closed;
+
+    private Http2Exchange(Stream stream, MetaData.Response response, Body body) {
+        this.stream = stream;
+        this.response = response;
+        this.body = body;
+    }
+
+    /**
+     * Opens a new stream on {@code session}, sends the request headers and a
+     * zero credit and waits for the response headers.
+     *
+     * @param session
+     *            HTTP/2 session to the host of {@code url}
+     * @param url
+     *            url of the stream
+     * @param requestHeaders
+     *            headers to add to the request
+     * @param connectTimeoutMs
+     *            maximum time to wait for the stream to open, 0 for none
+     * @param readTimeoutMs
+     *            maximum time to wait for data, 0 for none
+     * @return the open exchange
+     * @throws IOException
+     *             if the stream fails or the response code is not 200
+     */
+    public static Http2Exchange open(Session session, URL url, Map<String, String> requestHeaders,
+            int connectTimeoutMs, int readTimeoutMs) throws IOException {
+        HttpFields fields = new HttpFields();
+        requestHeaders.forEach(fields::put);
+        fields.put(HttpHeader.CONTENT_TYPE, "application/octet-stream");
+        MetaData.Request request = new MetaData.Request("POST", new HttpURI(url.toString()),
+                HttpVersion.HTTP_2, fields);
+        Body body = new Body(readTimeoutMs);
+        FuturePromise<MetaData.Response> response = new FuturePromise<>();
+        FuturePromise<Stream> promise = new FuturePromise<>();
+        session.newStream(new HeadersFrame(request, null, false), promise,
+                new Listener(response, body));
+        Stream stream = get(promise, connectTimeoutMs);
+        // the stream may be quiet for long periods
+        stream.setIdleTimeout(readTimeoutMs);
+        Http2Exchange exchange = null;
+        try {
+            // Jetty does not dispatch a request with a body until some of the
+            // body has arrived
+            send(stream, ByteBuffer.wrap(Util.toBytes(0L)), connectTimeoutMs);
+            MetaData.Response r = get(response, readTimeoutMs);
+            if (r.getStatus() != 200) {
+                throw new IOException("Server returned HTTP response code: " + r.getStatus()
+                        + " for URL: " + url);
+            }
+            exchange = new Http2Exchange(stream, r, body);
+            body.exchange = exchange;
+            return exchange;
+        } finally {
+            if (exchange == null) {
+                reset(stream);
+                body.release();
+            }
+        }
+    }
+
+    @Override
+    public String header(String name) {
+        return response.getFields().get(name);
+    }
+
+    @Override
+    public InputStream inputStream() {
+        return body;
+    }
+
+    @Override
+    public synchronized void credit(long n) throws IOException {
+        checkCanSend();
+        if (n < 0 || pendingCredit < 0) {
+            // a cancel replaces credit that has not been written
+            pendingCredit = -1;
+        } else {
+            pendingCredit = BackpressureHelper.addCap(pendingCredit, n);
+        }
+        writeNext();
+    }
+
+    @Override
+    public synchronized void send(byte[] message) throws IOException {
+        checkCanSend();
+        outgoing.add(ByteBuffer.wrap(message));
+        writeNext();
+    }
+
+    @Override
+    public synchronized void endCredits() throws IOException {
+        if (!creditsEnded) {
+            creditsEnded = true;
+            writeNext();
+        }
+    }
+
+    // guarded by this
+    private void checkCanSend() throws IOException {
+        if (creditsEnded) {
+            throw new IOException("credits have been ended");
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    // guarded by this, writes messages then merged credit then the end of the
+    // request body
+    private void writeNext() {
+        // the stream has finished or been cancelled
+        if (writing || writeFailed || closed) {
+            return;
+        }
+        ByteBuffer data;
+        boolean last = false;
+        if (!outgoing.isEmpty()) {
+            data = outgoing.poll();
+        } else if (pendingCredit != 0) {
+            data = ByteBuffer.wrap(Util.toBytes(pendingCredit));
+            pendingCredit = 0;
+        } else if (creditsEnded && !endWritten) {
+            data = ByteBuffer.allocate(0);
+            last = true;
+            endWritten = true;
+        } else {
+            return;
+        }
+        writing = true;
+        stream.data(new DataFrame(stream.getId(), data, last), written);
+    }
+
+    private final class Written implements Callback {
+
+        @Override
+        public void succeeded() {
+            synchronized (Http2Exchange.this) {
+                writing = false;
+                writeNext();
+            }
+        }
+
+        @Override
+        public void failed(Throwable x) {
+            synchronized (Http2Exchange.this) {
+                writing = false;
+                writeFailed = true;
+                outgoing.clear();
+                // the server resets the stream once it has finished the
+                // response, the response shows how the stream ended
+                if (!stream.isReset()) {
+                    writeError = x instanceof IOException ? (IOException) x : new IOException(x);
+                }
+            }
+            log.debug("request data not sent", x);
+        }
+
+    }
+
+    // waits for the frame to be written
+    private static void send(Stream stream, ByteBuffer data, long timeoutMs) throws IOException {
+        FutureCallback callback = new FutureCallback();
+        stream.data(new DataFrame(stream.getId(), data, false), callback);
+        get(callback, timeoutMs);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        // the server has finished or the stream is cancelled, either way the
+        // credits are no longer needed
+        reset(stream);
+        body.release();
+    }
+
+    private static void reset(Stream stream) {
+        if (!stream.isClosed()) {
+            stream.reset(new ResetFrame(stream.getId(), ErrorCode.CANCEL_STREAM_ERROR.code),
+                    Callback.NOOP);
+        }
+    }
+
+    private static <T> T get(Future<T> future, long timeoutMs) throws IOException {
+        try {
+            if (timeoutMs > 0) {
+                return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+            } else {
+                return future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("HTTP/2 stream timed out");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    private static final class Listener extends Stream.Listener.Adapter {
+
+        private final FuturePromise<MetaData.Response> response;
+        private final Body body;
+
+        Listener(FuturePromise<MetaData.Response> response, Body body) {
+            this.response = response;
+            this.body = body;
+        }
+
+        @Override
+        public void onHeaders(Stream stream, HeadersFrame frame) {
+            MetaData metaData = frame.getMetaData();
+            if (metaData.isResponse()) {
+                response.succeeded((MetaData.Response) metaData);
+            }
+            if (frame.isEndStream()) {
+                body.end();
+            }
+        }
+
+        @Override
+        public void onData(Stream stream, DataFrame frame, Callback callback) {
+            body.data(frame.getData(), callback);
+            if (frame.isEndStream()) {
+                body.end();
+            }
+        }
+
+        @Override
+        public void onReset(Stream stream, ResetFrame frame) {
+            IOException e = new IOException(
+                    "HTTP/2 stream reset by server: " + ErrorCode.toString(frame.getError(), null));
+            response.failed(e);
+            body.error(e);
+        }
+
+        @Override
+        public void onFailure(Stream stream, int error, String reason, Throwable failure,
+                Callback callback) {
+            IOException e = failure instanceof IOException ? (IOException) failure
+                    : new IOException("HTTP/2 stream failed: " + reason, failure);
+            response.failed(e);
+            body.error(e);
+            callback.succeeded();
+        }
+
+        @Override
+        public boolean onIdleTimeout(Stream stream, Throwable x) {
+            SocketTimeoutException e = new SocketTimeoutException("HTTP/2 stream idle timeout");
+            response.failed(e);
+            body.error(e);
+            return true;
+        }
+
+    }
+
+    /**
+     * The response body, fed by the session's thread and read by the stream's
+     * reading thread. Each DATA frame's callback is completed (returning flow
+     * control credit to the server) once the frame has been read.
+     */
+    private static final class Body extends InputStream {
+
+        private static final Object END = new Object();
+
+        private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+        private final int readTimeoutMs;
+        private volatile boolean released;
+        // set once open, closing the body closes the exchange
+        Http2Exchange exchange;
+        // written by the reading thread, read on close
+        private volatile Frame current;
+        // only accessed by the reading thread
+        private boolean finished;
+
+        Body(int readTimeoutMs) {
+            this.readTimeoutMs = readTimeoutMs;
+        }
+
+        void data(ByteBuffer data, Callback callback) {
+            queue.offer(new Frame(data, callback));
+            if (released) {
+                release();
+            }
+        }
+
+        void end() {
+            queue.offer(END);
+        }
+
+        void error(IOException e) {
+            queue.offer(e);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (current == null) {
+                if (finished) {
+                    return -1;
+                }
+                Object o = take();
+                if (o == END) {
+                    finished = true;
+                } else if (o instanceof IOException) {
+                    finished = true;
+                    throw (IOException) o;
+                } else if (o instanceof Frame) {
+                    Frame f = (Frame) o;
+                    if (f.data.hasRemaining()) {
+                        current = f;
+                    } else {
+                        f.consumed();
+                    }
+                }
+            }
+            int n = Math.min(len, current.data.remaining());
+            current.data.get(b, off, n);
+            if (!current.data.hasRemaining()) {
+                current.consumed();
+                current = null;
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            Frame f = current;
+            return f == null ? 0 : f.data.remaining();
+        }
+
+        private Object take() throws IOException {
+            try {
+                if (readTimeoutMs > 0) {
+                    Object o = queue.poll(readTimeoutMs, TimeUnit.MILLISECONDS);
+                    if (o == null) {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                    return o;
+                } else {
+                    return queue.take();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        // returns flow control credit for frames that will not be read
+        void release() {
+            released = true;
+            Object o;
+            while ((o = queue.poll()) != null) {
+                if (o instanceof Frame) {
+                    ((Frame) o).consumed();
+                }
+            }
+        }
+
+        // may be called by a cancelling thread while the reading thread reads
+        @Override
+        public void close() {
+            Frame f = current;
+            if (f != null) {
+                f.consumed();
+            }
+            if (exchange != null) {
+                exchange.close();
+            } else {
+                release();
+            }
+        }
+
+    }
+
+    private static final class Frame extends AtomicBoolean {
+
+        private static final long serialVersionUID = -2311512547312876514L;
+
+        final ByteBuffer data;
+        private final Callback callback;
+
+        Frame(ByteBuffer data, Callback callback) {
+            this.data = data;
+            this.callback = callback;
+        }
+
+        // may be called by the reading thread and a cancelling thread
+        void consumed() {
+            if (compareAndSet(false, true)) {
+                callback.succeeded();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a raw deflate stream written by {@link DeflaterWriter}. When the
+ * deflate stream finishes (because the server stopped compressing) the bytes
+ * that follow it are returned as is.
+ *
+ * <p>
+ * Not thread-safe. {@link #close()} must be called from the reading thread.
+ */
+final class InflatingInputStream extends InputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] input;
+    // bytes last passed to the inflater are input[0..inputLimit)
+    private int inputLimit;
+    private boolean inflating = true;
+    // bytes that followed the end of the deflate stream are
+    // input[rawPosition..inputLimit)
+    private int rawPosition;
+
+    /**
+     * Constructor.
+     *
+     * @param in
+     *            the compressed stream
+     * @param initial
+     *            bytes already read from {@code in}
+     * @param offset
+     *            offset of the first byte in {@code initial}
+     * @param length
+     *            number of bytes in {@code initial}
+     * @param dictionary
+     *            the preset dictionary used by the server, may be empty
+     */
+    InflatingInputStream(InputStream in, byte[] initial, int offset, int length,
+            byte[] dictionary) {
+        this.in = in;
+        this.input = new byte[Math.max(BUFFER_SIZE, length)];
+        System.arraycopy(initial, offset, input, 0, length);
+        this.inputLimit = length;
+        if (dictionary.length > 0) {
+            // a raw deflate stream does not signal that it needs the dictionary
+            inflater.setDictionary(dictionary);
+        }
+        inflater.setInput(input, 0, length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!inflating) {
+            if (rawPosition < inputLimit) {
+                int n = Math.min(len, inputLimit - rawPosition);
+                System.arraycopy(input, rawPosition, b, off, n);
+                rawPosition += n;
+                return n;
+            } else {
+                return in.read(b, off, len);
+            }
+        }
+        while (true) {
+            int n;
+            try {
+                n = inflater.inflate(b, off, len);
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+            if (n > 0) {
+                return n;
+            } else if (inflater.finished()) {
+                // the server stopped compressing, the unread input is raw
+                rawPosition = inputLimit - inflater.getRemaining();
+                inflating = false;
+                inflater.end();
+                return read(b, off, len);
+            } else if (inflater.needsDictionary()) {
+                throw new IOException("deflate stream requires a dictionary");
+            } else if (inflater.needsInput()) {
+                int count = in.read(input, 0, input.length);
+                if (count == -1) {
+                    throw new EOFException("encountered EOF inside deflate stream");
+                }
+                inputLimit = count;
+                inflater.setInput(input, 0, count);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (inflating) {
+            inflating = false;
+            inflater.end();
+        }
+        in.close();
+    }
+
+}
@@ -0,0 +1,77 @@
+package org.davidmoten.rx2.io.internal;
+
+import org.davidmoten.rx2.http.ServerMetrics.FlushCause;
+
+/**
+ * Hooks for JDK Flight Recorder events. This version (used on Java 8) does
+ * nothing, on Java 11+ the jar's {@code META-INF/versions/11} version of this
+ * class records the events. A {@code begin} method returns a token (null if the
+ * event is not being recorded) that is passed to the matching {@code end}
+ * method.
+ */
+public final class Jfr {
+
+    private Jfr() {
+        // prevent instantiation
+    }
+
+    /**
+     * Called when the server subscribes to the stream for a client.
+     *
+     * @param id
+     *            stream id
+     * @param request
+     *            initial request
+     * @param protocol
+     *            negotiated protocol
+     */
+    public static void streamSubscribed(long id, long request, Protocol protocol) {
+        // do nothing
+    }
+
+    public static Object beginFlush() {
+        return null;
+    }
+
+    public static void endFlush(Object event, long id, FlushCause cause) {
+        // do nothing
+    }
+
+    public static Object beginRequestCall() {
+        return null;
+    }
+
+    /**
+     * Ends a client request (or cancel) call.
+     *
+     * @param event
+     *            token from {@link #beginRequestCall()}
+     * @param id
+     *            stream id
+     * @param n
+     *            number requested, negative for a cancel call
+     * @param success
+     *            whether the call succeeded
+     */
+    public static void endRequestCall(Object event, long id, long n, boolean success) {
+        // do nothing
+    }
+
+    public static Object beginFrame() {
+        return null;
+    }
+
+    /**
+     * Ends the read of a frame by the client (from the start of its header to
+     * the end of its payload so includes waiting for bytes).
+     *
+     * @param event
+     *            token from {@link #beginFrame()}
+     * @param length
+     *            item length, negative for an error frame
+     */
+    public static void endFrame(Object event, int length) {
+        // do nothing
+    }
+
+}
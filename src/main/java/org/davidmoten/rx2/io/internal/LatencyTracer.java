@@ -0,0 +1,76 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.davidmoten.rx2.io.ClientMetrics;
+import org.davidmoten.rx2.io.Latency;
+
+/**
+ * Client side of item tracing ({@link Protocol#trace()}) for one stream. The
+ * server's times for a traced item arrive before the item, its flush time
+ * arrives (in a later frame) after the flush so received items wait here until
+ * then. Called by the thread reading the stream except for {@link #report()}.
+ */
+final class LatencyTracer {
+
+    // bounds memory if flush times stop arriving, later items are not traced
+    private static final int MAX_PENDING = 1024;
+
+    private final ClientMetrics metrics;
+    private final Latency latency = new Latency();
+    // enqueue, write and arrival times of received items without a flush
+    // time
+    private final long[] pending = new long[MAX_PENDING * 3];
+    private int pendingCount;
+    private final AtomicBoolean reported = new AtomicBoolean();
+
+    LatencyTracer(ClientMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Called when a traced item has arrived.
+     *
+     * @param enqueueTime
+     *            server epoch nanos when the item arrived from the publisher
+     * @param writeTime
+     *            server epoch nanos when the item was written
+     */
+    void received(long enqueueTime, long writeTime) {
+        if (pendingCount < MAX_PENDING) {
+            int i = pendingCount * 3;
+            pending[i] = enqueueTime;
+            pending[i + 1] = writeTime;
+            pending[i + 2] = Util.epochNanos();
+            pendingCount++;
+        }
+    }
+
+    /**
+     * Called with the time that the flush of the items received since the
+     * last call started.
+     *
+     * @param flushTime
+     *            server epoch nanos
+     */
+    void flushed(long flushTime) {
+        for (int i = 0; i < pendingCount * 3; i += 3) {
+            long queue = pending[i + 1] - pending[i];
+            long flushDelay = flushTime - pending[i + 1];
+            long network = pending[i + 2] - flushTime;
+            latency.record(queue, flushDelay, network);
+            metrics.itemLatency(queue, flushDelay, network);
+        }
+        pendingCount = 0;
+    }
+
+    /**
+     * Reports the stream's latencies (once).
+     */
+    void report() {
+        if (reported.compareAndSet(false, true)) {
+            metrics.streamLatency(latency);
+        }
+    }
+
+}
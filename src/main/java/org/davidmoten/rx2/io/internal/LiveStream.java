@@ -0,0 +1,158 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.davidmoten.rx2.http.ServerMetrics;
+import org.reactivestreams.Subscription;
+
+import io.reactivex.internal.util.BackpressureHelper;
+
+/**
+ * A stream registered with a {@link ServletHandler} that serves stats. It is
+ * the registered {@link Subscription} of the stream (delegating to the
+ * stream's subscription) and the stream's {@link ServerMetrics} (recording the
+ * numbers shown by the stats call and then forwarding to the response's
+ * metrics). The numbers are written by the stream's threads and read by the
+ * stats call without locking, so a snapshot of a busy stream may be a little
+ * inconsistent.
+ */
+final class LiveStream implements Subscription, ServerMetrics {
+
+    private final ServerMetrics metrics;
+    private final String client;
+    private final long startTime = System.currentTimeMillis();
+    private final AtomicLong requested = new AtomicLong();
+    // the following are written by the thread writing the stream
+    private volatile long emitted;
+    private volatile long bytes;
+    private volatile long queuedItems;
+    private volatile long queuedBytes;
+    // 0 if nothing has been written
+    private volatile long lastWriteTime;
+    // set before registration
+    private long id;
+    private Subscription subscription;
+
+    LiveStream(ServerMetrics metrics, String client) {
+        this.metrics = metrics;
+        this.client = client;
+    }
+
+    /**
+     * Sets the stream's id and subscription. Must be called before this is
+     * registered.
+     *
+     * @param id
+     *            stream id
+     * @param subscription
+     *            the stream's subscription
+     * @return this
+     */
+    LiveStream attach(long id, Subscription subscription) {
+        this.id = id;
+        this.subscription = subscription;
+        return this;
+    }
+
+    long id() {
+        return id;
+    }
+
+    String client() {
+        return client;
+    }
+
+    long startTime() {
+        return startTime;
+    }
+
+    long requested() {
+        return requested.get();
+    }
+
+    long emitted() {
+        return emitted;
+    }
+
+    long bytes() {
+        return bytes;
+    }
+
+    long queuedItems() {
+        return queuedItems;
+    }
+
+    long queuedBytes() {
+        return queuedBytes;
+    }
+
+    long lastWriteTime() {
+        return lastWriteTime;
+    }
+
+    // Subscription
+
+    @Override
+    public void request(long n) {
+        subscription.request(n);
+    }
+
+    @Override
+    public void cancel() {
+        subscription.cancel();
+    }
+
+    // ServerMetrics
+
+    @Override
+    public void streamOpened(long id) {
+        metrics.streamOpened(id);
+    }
+
+    @Override
+    public void streamCompleted(long id) {
+        metrics.streamCompleted(id);
+    }
+
+    @Override
+    public void streamFailed(long id, Throwable error) {
+        metrics.streamFailed(id, error);
+    }
+
+    @Override
+    public void streamCancelled(long id) {
+        metrics.streamCancelled(id);
+    }
+
+    @Override
+    public void streamStalled(long id, long stalledMs) {
+        metrics.streamStalled(id, stalledMs);
+    }
+
+    @Override
+    public void requested(long id, long n) {
+        BackpressureHelper.add(requested, n);
+        metrics.requested(id, n);
+    }
+
+    @Override
+    public void written(long id, int items, long bytes) {
+        this.emitted += items;
+        this.bytes += bytes;
+        lastWriteTime = System.currentTimeMillis();
+        metrics.written(id, items, bytes);
+    }
+
+    @Override
+    public void flushed(long id, FlushCause cause) {
+        metrics.flushed(id, cause);
+    }
+
+    @Override
+    public void queueDepth(long id, long items, long bytes) {
+        queuedItems = items;
+        queuedBytes = bytes;
+        metrics.queueDepth(id, items, bytes);
+    }
+
+}
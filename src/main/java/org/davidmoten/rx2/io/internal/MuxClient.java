@@ -0,0 +1,462 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+import io.reactivex.Flowable;
+import io.reactivex.Scheduler;
+import io.reactivex.Scheduler.Worker;
+import io.reactivex.internal.queue.SpscLinkedArrayQueue;
+import io.reactivex.internal.subscriptions.EmptySubscription;
+import io.reactivex.internal.subscriptions.SubscriptionHelper;
+import io.reactivex.internal.util.BackpressureHelper;
+
+/**
+ * Client side of a multiplexed call ({@link Protocol#mux()}). Channels share
+ * one connection which is made when a channel is first subscribed (and again
+ * after a failure). One thread reads the connection and hands items to the
+ * channels, each of which emits on its own worker so a slow subscriber does
+ * not hold up the others. Items waiting to be emitted are limited to
+ * {@code maxBufferBytes} across all channels, beyond that reading stops until
+ * the slow channels catch up.
+ */
+public final class MuxClient implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(MuxClient.class);
+
+    private static final Protocol CHANNEL_PROTOCOL = Protocol.ALL.deflate(false).trace(false);
+
+    // servers write segments of at most 64KB
+    private static final int MAX_SEGMENT_LENGTH = MuxOutputStream.MAX_SEGMENT_LENGTH;
+
+    /**
+     * Makes the multiplexed call.
+     */
+    public interface Connector {
+        Exchange connect() throws IOException;
+    }
+
+    private final Connector connector;
+    private final Scheduler scheduler;
+    private final long maxBufferBytes;
+    private final AtomicInteger nextChannel = new AtomicInteger();
+    // guarded by this
+    private Connection connection;
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param connector
+     *            makes the multiplexed call
+     * @param scheduler
+     *            runs the reading thread and the channel emissions
+     * @param maxBufferBytes
+     *            maximum bytes of items read but not yet emitted across all
+     *            channels
+     */
+    public MuxClient(Connector connector, Scheduler scheduler, long maxBufferBytes) {
+        Preconditions.checkArgument(maxBufferBytes > 0, "maxBufferBytes must be positive");
+        this.connector = connector;
+        this.scheduler = scheduler;
+        this.maxBufferBytes = maxBufferBytes;
+    }
+
+    /**
+     * Returns a stream that opens a channel with {@code query} as its query
+     * string on each subscription.
+     *
+     * @param query
+     *            query string of the channel (without the leading '?')
+     * @return channel stream
+     */
+    public Flowable<ByteBuffer> channel(String query) {
+        byte[] q = query.getBytes(StandardCharsets.UTF_8);
+        Preconditions.checkArgument(q.length <= Protocol.MAX_MUX_QUERY_LENGTH, "query too long");
+        return new Flowable<ByteBuffer>() {
+            @Override
+            protected void subscribeActual(Subscriber<? super ByteBuffer> subscriber) {
+                Connection c;
+                try {
+                    c = connection();
+                } catch (IOException e) {
+                    EmptySubscription.error(e, subscriber);
+                    return;
+                }
+                c.open(q, subscriber);
+            }
+        };
+    }
+
+    private synchronized Connection connection() throws IOException {
+        if (closed) {
+            throw new IOException("multiplexer closed");
+        }
+        if (connection == null || connection.terminated) {
+            Exchange exchange = connector.connect();
+            Protocol protocol = Protocol.parse(exchange.header(Protocol.VERSION_HEADER),
+                    exchange.header(Protocol.FEATURES_HEADER));
+            if (!protocol.mux()) {
+                Util.close(exchange.inputStream());
+                throw new IOException("server does not support multiplexed calls");
+            }
+            connection = new Connection(exchange);
+            scheduler.scheduleDirect(connection::read);
+        }
+        return connection;
+    }
+
+    /**
+     * Closes the connection, channels that are still open emit an error.
+     */
+    @Override
+    public void close() {
+        Connection c;
+        synchronized (this) {
+            closed = true;
+            c = connection;
+            connection = null;
+        }
+        if (c != null) {
+            c.terminate(new IOException("multiplexer closed"));
+        }
+    }
+
+    private final class Connection {
+
+        private final Exchange exchange;
+        private final Map<Integer, Channel> channels = new ConcurrentHashMap<>();
+        // bytes of items read but not yet emitted
+        private final AtomicLong buffered = new AtomicLong();
+        private volatile boolean terminated;
+
+        Connection(Exchange exchange) {
+            this.exchange = exchange;
+        }
+
+        void open(byte[] query, Subscriber<? super ByteBuffer> subscriber) {
+            int number = nextChannel.incrementAndGet();
+            Channel channel = new Channel(this, number, subscriber, scheduler.createWorker());
+            channels.put(number, channel);
+            byte[] m = new byte[9 + query.length];
+            m[0] = Protocol.MUX_OPEN;
+            Util.putInt(m, 1, number);
+            Util.putInt(m, 5, query.length);
+            System.arraycopy(query, 0, m, 9, query.length);
+            // open before onSubscribe so the server knows the channel when
+            // the first credit arrives
+            IOException error = null;
+            try {
+                exchange.send(m);
+            } catch (IOException e) {
+                error = e;
+            }
+            subscriber.onSubscribe(channel);
+            if (error != null) {
+                channel.fail(error);
+            } else if (terminated) {
+                // the reading thread may have missed the channel
+                channel.fail(new IOException("multiplexed connection closed"));
+            }
+            channel.start();
+        }
+
+        void credit(Channel channel, long n) {
+            byte[] m = new byte[13];
+            m[0] = Protocol.MUX_CREDIT;
+            Util.putInt(m, 1, channel.number);
+            Util.putInt(m, 5, (int) (n >>> 32));
+            Util.putInt(m, 9, (int) n);
+            send(channel, m);
+        }
+
+        private void send(Channel channel, byte[] message) {
+            try {
+                exchange.send(message);
+            } catch (IOException e) {
+                channel.fail(e);
+            }
+        }
+
+        void read() {
+            InputStream in = new BufferedInputStream(exchange.inputStream());
+            byte[] buffer = new byte[8192];
+            try {
+                while (true) {
+                    waitForBuffer();
+                    int number = readVarint(in, true);
+                    if (number == -1) {
+                        throw new EOFException("multiplexed connection closed by server");
+                    }
+                    int length = readVarint(in, false);
+                    if (length > MAX_SEGMENT_LENGTH) {
+                        throw new IOException("segment too long: " + length);
+                    }
+                    if (buffer.length < length) {
+                        buffer = new byte[length];
+                    }
+                    Util.readFully(in, buffer, 0, length);
+                    Channel channel = channels.get(number);
+                    // segments of cancelled channels are dropped
+                    if (channel != null) {
+                        channel.segment(ByteBuffer.wrap(buffer, 0, length));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                terminate(e);
+            }
+        }
+
+        private void waitForBuffer() throws IOException {
+            if (buffered.get() > maxBufferBytes) {
+                synchronized (this) {
+                    while (buffered.get() > maxBufferBytes && !terminated) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                    }
+                }
+            }
+        }
+
+        void added(int bytes) {
+            buffered.addAndGet(bytes);
+        }
+
+        void released(long bytes) {
+            long b = buffered.addAndGet(-bytes);
+            if (b <= maxBufferBytes && b + bytes > maxBufferBytes) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        void terminate(Throwable e) {
+            if (!terminated) {
+                terminated = true;
+                log.debug("multiplexed connection terminated", e);
+                Util.close(exchange.inputStream());
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+            for (Channel channel : channels.values()) {
+                channel.fail(e);
+            }
+        }
+
+    }
+
+    private static final class Channel extends AtomicInteger
+            implements Subscription, Runnable, FrameDecoder.Listener {
+
+        private static final long serialVersionUID = 2810367914520327551L;
+
+        private final Connection connection;
+        private final int number;
+        private final Subscriber<? super ByteBuffer> child;
+        private final Worker worker;
+        // only accessed by the reading thread
+        private final FrameDecoder frames;
+        private final SpscLinkedArrayQueue<ByteBuffer> queue = new SpscLinkedArrayQueue<>(16);
+        private final AtomicLong requested = new AtomicLong();
+        private volatile boolean cancelled;
+        private volatile boolean done;
+        private Throwable error;
+        // only accessed by the drain loop
+        private long emitted;
+        private boolean terminated;
+
+        Channel(Connection connection, int number, Subscriber<? super ByteBuffer> child,
+                Worker worker) {
+            this.connection = connection;
+            this.number = number;
+            this.child = child;
+            this.worker = worker;
+            this.frames = new FrameDecoder(CHANNEL_PROTOCOL, this);
+            // the drain loop is held until start so that nothing is emitted
+            // before onSubscribe (the reading thread may see the channel first)
+            set(1);
+        }
+
+        // called after child.onSubscribe
+        void start() {
+            if (decrementAndGet() != 0) {
+                worker.schedule(this);
+            }
+        }
+
+        // called by the reading thread
+        void segment(ByteBuffer data) throws IOException {
+            frames.decode(data);
+        }
+
+        @Override
+        public void onId(long id) {
+            // the channel number identifies the stream
+        }
+
+        @Override
+        public void onItem(ByteBuffer item) {
+            connection.added(item.remaining());
+            queue.offer(item);
+            schedule();
+        }
+
+        @Override
+        public void onComplete() {
+            connection.channels.remove(number);
+            done = true;
+            schedule();
+        }
+
+        @Override
+        public void onError(String error) {
+            fail(new RuntimeException(error));
+        }
+
+        void fail(Throwable e) {
+            if (!done) {
+                connection.channels.remove(number);
+                error = e;
+                done = true;
+                schedule();
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (SubscriptionHelper.validate(n)) {
+                BackpressureHelper.add(requested, n);
+                if (!done && !cancelled) {
+                    connection.credit(this, n);
+                }
+                schedule();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                if (connection.channels.remove(number) != null && !connection.terminated) {
+                    connection.credit(this, -1);
+                }
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            if (getAndIncrement() == 0) {
+                worker.schedule(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (terminated) {
+                return;
+            }
+            int missed = 1;
+            Subscriber<? super ByteBuffer> a = child;
+            SpscLinkedArrayQueue<ByteBuffer> q = queue;
+            long e = emitted;
+            while (true) {
+                long r = requested.get();
+                while (e != r) {
+                    if (cancelled) {
+                        clear();
+                        return;
+                    }
+                    boolean d = done;
+                    ByteBuffer v = q.poll();
+                    boolean empty = v == null;
+                    if (d && empty) {
+                        terminate(a);
+                        return;
+                    }
+                    if (empty) {
+                        break;
+                    }
+                    connection.released(v.remaining());
+                    a.onNext(v);
+                    e++;
+                }
+                if (cancelled) {
+                    clear();
+                    return;
+                }
+                if (done && q.isEmpty()) {
+                    terminate(a);
+                    return;
+                }
+                emitted = e;
+                missed = addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void clear() {
+            terminated = true;
+            ByteBuffer v;
+            while ((v = queue.poll()) != null) {
+                connection.released(v.remaining());
+            }
+            worker.dispose();
+        }
+
+        private void terminate(Subscriber<? super ByteBuffer> a) {
+            terminated = true;
+            worker.dispose();
+            Throwable err = error;
+            if (err != null) {
+                a.onError(err);
+            } else {
+                a.onComplete();
+            }
+        }
+
+    }
+
+    private static int readVarint(InputStream in, boolean eofAllowed) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                if (eofAllowed && shift == 0) {
+                    return -1;
+                }
+                throw new EOFException();
+            }
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (v < 0) {
+                    throw new IOException("varint out of range");
+                }
+                return v;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+}
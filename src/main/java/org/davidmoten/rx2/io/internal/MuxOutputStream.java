@@ -0,0 +1,80 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The output of one channel of a multiplexed response ({@link Protocol#mux()}).
+ * Bytes are buffered and written to the shared response as a single segment
+ * when flushed (or when the buffer is full) so that the bytes of different
+ * channels do not interleave within a segment.
+ */
+final class MuxOutputStream extends OutputStream {
+
+    // also the limit checked by MuxClient
+    static final int MAX_SEGMENT_LENGTH = 65536;
+
+    // shared by all channels, also the lock for segment writes
+    private final OutputStream out;
+    private final int channel;
+    private final byte[] header = new byte[Protocol.MAX_HEADER_LENGTH];
+    private byte[] buffer = new byte[1024];
+    private int count;
+
+    MuxOutputStream(OutputStream out, int channel) {
+        this.out = out;
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == MAX_SEGMENT_LENGTH) {
+                writeSegment(false);
+            }
+            int n = Math.min(len, MAX_SEGMENT_LENGTH - count);
+            if (buffer.length - count < n) {
+                byte[] bigger = new byte[Math.min(MAX_SEGMENT_LENGTH,
+                        Math.max(buffer.length * 2, count + n))];
+                System.arraycopy(buffer, 0, bigger, 0, count);
+                buffer = bigger;
+            }
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeSegment(true);
+    }
+
+    private void writeSegment(boolean flush) throws IOException {
+        synchronized (out) {
+            if (count > 0) {
+                int n = Util.putVarint(header, 0, channel);
+                out.write(header, 0, n);
+                n = Util.putVarint(header, 0, count);
+                out.write(header, 0, n);
+                out.write(buffer, 0, count);
+                count = 0;
+            }
+            if (flush) {
+                out.flush();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        // the shared response is completed by the handler
+    }
+
+}
@@ -0,0 +1,129 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads the {@link Protocol#MUX_OPEN} and {@link Protocol#MUX_CREDIT} messages
+ * of a multiplexed call ({@link Protocol#mux()}) from the request body without
+ * blocking.
+ */
+final class MuxReader implements ReadListener {
+
+    interface Listener {
+
+        void open(int channel, String query);
+
+        /**
+         * Applies a credit to a channel.
+         *
+         * @param channel
+         *            channel number
+         * @param n
+         *            positive to request items, negative to cancel
+         */
+        void credit(int channel, long n);
+
+        /**
+         * Called once when the request body ends or fails.
+         *
+         * @param e
+         *            the failure or null if the client ended the body
+         */
+        void end(Throwable e);
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(MuxReader.class);
+
+    private static final int OPEN_HEADER_LENGTH = 9;
+
+    private static final int CREDIT_LENGTH = 13;
+
+    private final ServletInputStream in;
+    private final Listener listener;
+    private final byte[] buffer = new byte[4096];
+    // unparsed bytes, only accessed by the container's read callbacks
+    private byte[] pending = new byte[256];
+    private int pendingLength;
+
+    MuxReader(ServletInputStream in, Listener listener) {
+        this.in = in;
+        this.listener = listener;
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+        int n;
+        while (in.isReady() && (n = in.read(buffer)) != -1) {
+            if (pending.length - pendingLength < n) {
+                byte[] b = new byte[Math.max(pending.length * 2, pendingLength + n)];
+                System.arraycopy(pending, 0, b, 0, pendingLength);
+                pending = b;
+            }
+            System.arraycopy(buffer, 0, pending, pendingLength, n);
+            pendingLength += n;
+            parse();
+        }
+    }
+
+    private void parse() throws IOException {
+        byte[] b = pending;
+        int p = 0;
+        while (p < pendingLength) {
+            int available = pendingLength - p;
+            byte type = b[p];
+            if (type == 0) {
+                // the zero credit sent first by duplex clients
+                p++;
+            } else if (type == Protocol.MUX_OPEN) {
+                if (available < OPEN_HEADER_LENGTH) {
+                    break;
+                }
+                int channel = Util.getInt(b, p + 1);
+                int length = Util.getInt(b, p + 5);
+                if (length < 0 || length > Protocol.MAX_MUX_QUERY_LENGTH) {
+                    throw new IOException("invalid query length: " + length);
+                }
+                if (available < OPEN_HEADER_LENGTH + length) {
+                    break;
+                }
+                String query = new String(b, p + OPEN_HEADER_LENGTH, length,
+                        StandardCharsets.UTF_8);
+                p += OPEN_HEADER_LENGTH + length;
+                log.debug("open channel {} {}", channel, query);
+                listener.open(channel, query);
+            } else if (type == Protocol.MUX_CREDIT) {
+                if (available < CREDIT_LENGTH) {
+                    break;
+                }
+                int channel = Util.getInt(b, p + 1);
+                long n = Util.getLong(b, p + 5);
+                p += CREDIT_LENGTH;
+                listener.credit(channel, n);
+            } else {
+                throw new IOException("unknown mux message type: " + type);
+            }
+        }
+        System.arraycopy(b, p, b, 0, pendingLength - p);
+        pendingLength -= p;
+    }
+
+    @Override
+    public void onAllDataRead() {
+        log.debug("mux request body ended");
+        listener.end(null);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        log.debug("mux read failed", t);
+        listener.end(t);
+    }
+
+}
@@ -0,0 +1,269 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes to a {@link ServletOutputStream} in non-blocking mode (Servlet 3.1
+ * {@link WriteListener}) so that no thread waits for a slow client. Bytes are
+ * copied to a buffer that is handed to the container when it is ready (the
+ * container may hold on to the array of a write until it is ready again, so
+ * the caller's arrays are never passed on). Writers call {@link #ready()}
+ * before writing more and their listeners are called when the container has
+ * caught up.
+ */
+final class NonBlockingOutputStream extends OutputStream implements WriteListener {
+
+    private static final Logger log = LoggerFactory.getLogger(NonBlockingOutputStream.class);
+
+    // buffered bytes at which the buffer is handed to the container and
+    // writers are told to wait
+    private static final int MAX_BUFFERED = 32768;
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private final ServletOutputStream out;
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+    // guarded by this
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int count;
+    // the array of the last write to the container, not touched until the
+    // container is ready again
+    private byte[] inFlight = new byte[INITIAL_BUFFER_SIZE];
+    private boolean flushPending;
+    private boolean blocked;
+    private IOException error;
+    private Runnable whenWritten;
+    // incremented whenever the container takes bytes or a flush
+    private volatile long progress;
+
+    private NonBlockingOutputStream(ServletOutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Returns a stream that writes to {@code out} which must belong to an
+     * asynchronous request. {@code out} must not be used directly afterwards.
+     *
+     * @param out
+     *            servlet output stream
+     * @return non-blocking stream
+     */
+    static NonBlockingOutputStream create(ServletOutputStream out) {
+        NonBlockingOutputStream s = new NonBlockingOutputStream(out);
+        out.setWriteListener(s);
+        return s;
+    }
+
+    /**
+     * Adds a listener that is called (on a container thread) when a writer was
+     * told to wait by {@link #ready()} and the container has caught up.
+     *
+     * @param listener
+     *            called when writing can resume
+     */
+    void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns true if more can be written without buffering too much. If false
+     * is returned the listeners are called when the buffered bytes have been
+     * handed to the container.
+     *
+     * @return true if more can be written
+     */
+    synchronized boolean ready() {
+        if (count < MAX_BUFFERED || error != null) {
+            // a failed stream lets writers proceed so they see the error
+            return true;
+        } else {
+            blocked = true;
+            return false;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        checkError();
+        // copies in pieces so that while the container is ready a large write
+        // is handed over MAX_BUFFERED bytes at a time and the buffer only grows
+        // past that when the container is behind
+        while (len > 0) {
+            if (count == buffer.length) {
+                byte[] bigger = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, bigger, 0, count);
+                buffer = bigger;
+            }
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count >= MAX_BUFFERED) {
+                writeBuffered();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        checkError();
+        flushPending = true;
+        writeBuffered();
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // if the container is not ready it calls onWritePossible when it is
+    private void writeBuffered() throws IOException {
+        if (count > 0) {
+            if (!out.isReady()) {
+                return;
+            }
+            byte[] b = buffer;
+            // the container is done with inFlight, an array that grew while
+            // the container was behind is dropped so that a slow stream does
+            // not keep two large arrays
+            buffer = inFlight.length > MAX_BUFFERED ? new byte[INITIAL_BUFFER_SIZE] : inFlight;
+            inFlight = b;
+            int n = count;
+            count = 0;
+            out.write(b, 0, n);
+            progress++;
+        }
+        if (flushPending) {
+            if (!out.isReady()) {
+                return;
+            }
+            flushPending = false;
+            out.flush();
+            progress++;
+        }
+    }
+
+    /**
+     * Returns true if written bytes are waiting to be handed to the container.
+     *
+     * @return true if bytes are waiting
+     */
+    synchronized boolean pending() {
+        return error == null && (count > 0 || flushPending);
+    }
+
+    /**
+     * Returns a count that changes whenever the container takes written bytes
+     * (or a flush), so that a caller can tell whether the stream has made
+     * progress since it last looked.
+     *
+     * @return progress count
+     */
+    long progress() {
+        return progress;
+    }
+
+    /**
+     * Discards buffered bytes and fails the stream with {@code e} as if the
+     * container had reported it (writers see it on their next write and the
+     * {@link #whenWritten(Runnable)} action is run).
+     *
+     * @param e
+     *            the failure
+     */
+    void abort(IOException e) {
+        synchronized (this) {
+            count = 0;
+            flushPending = false;
+        }
+        onError(e);
+    }
+
+    /**
+     * Runs {@code action} once everything written so far has been written by
+     * the container (or the stream has failed). Used to complete the
+     * asynchronous request.
+     *
+     * @param action
+     *            action to run
+     */
+    void whenWritten(Runnable action) {
+        synchronized (this) {
+            if (error == null && (count > 0 || flushPending || !out.isReady())) {
+                whenWritten = action;
+                return;
+            }
+        }
+        action.run();
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        Runnable action = null;
+        boolean notify;
+        synchronized (this) {
+            try {
+                writeBuffered();
+            } catch (IOException e) {
+                error = e;
+            }
+            notify = blocked && (count < MAX_BUFFERED || error != null);
+            if (notify) {
+                blocked = false;
+            }
+            // if not idle this is called again when the container is ready
+            if (error != null || (count == 0 && !flushPending && out.isReady())) {
+                action = whenWritten;
+                whenWritten = null;
+            }
+        }
+        if (notify) {
+            for (Runnable listener : listeners) {
+                listener.run();
+            }
+        }
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        log.debug("non-blocking write failed", t);
+        Runnable action;
+        synchronized (this) {
+            error = t instanceof IOException ? (IOException) t : new IOException(t);
+            action = whenWritten;
+            whenWritten = null;
+            blocked = false;
+        }
+        // writers see the error on their next write
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+        if (action != null) {
+            action.run();
+        }
+    }
+
+}
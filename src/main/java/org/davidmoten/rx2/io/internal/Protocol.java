@@ -0,0 +1,405 @@
+package org.davidmoten.rx2.io.internal;
+
+/**
+ * Wire protocol constants and the protocol version and optional features
+ * agreed for a stream. In the subscribe call the client sends the highest
+ * version it supports in the {@link #VERSION_HEADER} request header and lists
+ * the features it supports in the {@link #FEATURES_HEADER} request header. The
+ * server replies with the version and the subset of features it will use in
+ * the same response headers. Clients that do not send the headers get version
+ * 1 without features (the original protocol).
+ *
+ * <p>
+ * Version 1 frames start with a 4 byte big-endian length, negative lengths
+ * being used for control frames. Version 2 frames start with an unsigned
+ * LEB128 varint {@code v}. If {@code v} is even it is an item of length
+ * {@code v >>> 1}, otherwise {@code v >>> 1} is a control code
+ * ({@link #CODE_COMPLETE}, {@link #CODE_ERROR}, {@link #CODE_BATCH},
+ * {@link #CODE_TRACE_ITEM} or {@link #CODE_TRACE_FLUSH}).
+ */
+public final class Protocol {
+
+    public static final String VERSION_HEADER = "X-Rx2-Http-Version";
+
+    public static final String FEATURES_HEADER = "X-Rx2-Http-Features";
+
+    public static final String FEATURE_BATCH = "batch";
+
+    public static final String FEATURE_DEFLATE = "deflate";
+
+    public static final String FEATURE_DUPLEX = "duplex";
+
+    public static final String FEATURE_MUX = "mux";
+
+    public static final String FEATURE_TRACE = "trace";
+
+    public static final int MAX_VERSION = 2;
+
+    /**
+     * Version 1 length value that marks completion of the stream.
+     */
+    public static final int LENGTH_COMPLETE = Integer.MIN_VALUE;
+
+    /**
+     * Version 1 length value that marks a batch frame:
+     * {@code Batch ::= LENGTH_BATCH Count VarintLength{Count} Byte*}.
+     */
+    public static final int LENGTH_BATCH = Integer.MIN_VALUE + 1;
+
+    /**
+     * Version 2 control code that marks completion of the stream.
+     */
+    public static final int CODE_COMPLETE = 0;
+
+    /**
+     * Version 2 control code for an error:
+     * {@code Error ::= CODE_ERROR VarintLength Byte*}.
+     */
+    public static final int CODE_ERROR = 1;
+
+    /**
+     * Version 2 control code for a batch frame:
+     * {@code Batch ::= CODE_BATCH VarintCount VarintLength{Count} Byte*}.
+     */
+    public static final int CODE_BATCH = 2;
+
+    /**
+     * Version 2 control code that precedes a traced item (the next item frame
+     * or the first item of the next batch frame):
+     * {@code TraceItem ::= CODE_TRACE_ITEM EnqueueTime(8) WriteTime(8)}.
+     * Times are big-endian nanoseconds since the epoch.
+     */
+    public static final int CODE_TRACE_ITEM = 3;
+
+    /**
+     * Version 2 control code that gives the time the flush of the traced items
+     * written since the previous {@code TraceFlush} started:
+     * {@code TraceFlush ::= CODE_TRACE_FLUSH FlushTime(8)}.
+     */
+    public static final int CODE_TRACE_FLUSH = 4;
+
+    /**
+     * Maximum number of bytes used by a frame header (excluding a batch length
+     * table).
+     */
+    public static final int MAX_HEADER_LENGTH = 10;
+
+    /**
+     * Maximum length of a trace frame.
+     */
+    public static final int MAX_TRACE_LENGTH = 17;
+
+    /**
+     * Maximum length of a preset deflate dictionary (the deflate window size).
+     */
+    public static final int MAX_DICTIONARY_LENGTH = 32768;
+
+    /**
+     * Length of a credit message sent in the request body of a duplex stream.
+     */
+    public static final int CREDIT_LENGTH = 8;
+
+    /**
+     * Multiplexed request body message that opens a channel:
+     * {@code Open ::= MUX_OPEN Channel(4) Length(4) QueryString}.
+     */
+    public static final byte MUX_OPEN = 1;
+
+    /**
+     * Multiplexed request body message that requests items for (or if
+     * negative cancels) a channel: {@code Credit ::= MUX_CREDIT Channel(4) N(8)}.
+     */
+    public static final byte MUX_CREDIT = 2;
+
+    /**
+     * Maximum length of the query string of a {@link #MUX_OPEN} message.
+     */
+    public static final int MAX_MUX_QUERY_LENGTH = 8192;
+
+    private static final int BATCH = 1;
+
+    private static final int DEFLATE = 2;
+
+    private static final int DUPLEX = 4;
+
+    private static final int MUX = 8;
+
+    private static final int TRACE = 16;
+
+    public static final Protocol DEFAULT = new Protocol(1, 0);
+
+    public static final Protocol ALL = new Protocol(MAX_VERSION,
+            BATCH | DEFLATE | DUPLEX | MUX | TRACE);
+
+    private final int version;
+
+    private final int features;
+
+    private Protocol(int version, int features) {
+        this.version = version;
+        this.features = features;
+    }
+
+    public int version() {
+        return version;
+    }
+
+    public boolean batch() {
+        return (features & BATCH) != 0;
+    }
+
+    public Protocol batch(boolean enabled) {
+        return feature(BATCH, enabled);
+    }
+
+    /**
+     * Returns true if the stream id is followed by a varint length and a preset
+     * dictionary (usually empty) and then a raw deflate stream that is
+     * sync-flushed whenever the server flushes. The server may finish the
+     * deflate stream early in which case the bytes that follow it are not
+     * compressed.
+     * 
+     * @return true if the stream is compressed
+     */
+    public boolean deflate() {
+        return (features & DEFLATE) != 0;
+    }
+
+    public Protocol deflate(boolean enabled) {
+        return feature(DEFLATE, enabled);
+    }
+
+    /**
+     * Returns true if the client sends request credits in the body of the
+     * subscribe call (a chunked POST) instead of making request calls. Each
+     * credit is a {@link #CREDIT_LENGTH} byte big-endian long, positive to
+     * request more items, negative to cancel the stream and zero (sent first so
+     * that the request is dispatched) is ignored. The server reads
+     * credits while it writes the stream so the stream can be controlled
+     * without knowing which server holds it.
+     * 
+     * @return true if credits are sent in the request body
+     */
+    public boolean duplex() {
+        return (features & DUPLEX) != 0;
+    }
+
+    public Protocol duplex(boolean enabled) {
+        return feature(DUPLEX, enabled);
+    }
+
+    /**
+     * Returns true if the response carries many streams (channels) opened by
+     * the client. The request body is a duplex body ({@link #duplex()}) of
+     * {@link #MUX_OPEN} and {@link #MUX_CREDIT} messages (zero bytes are
+     * ignored). The response body is a sequence of segments
+     * {@code Segment ::= VarintChannel VarintLength Byte*}, the bytes of a
+     * channel's segments being a version 2 stream (id then frames, never
+     * compressed) that may be split anywhere.
+     * 
+     * @return true if the response is multiplexed
+     */
+    public boolean mux() {
+        return (features & MUX) != 0;
+    }
+
+    public Protocol mux(boolean enabled) {
+        return feature(MUX, enabled);
+    }
+
+    /**
+     * Returns true if some items are traced: the server writes a
+     * {@link #CODE_TRACE_ITEM} frame before each traced item and a
+     * {@link #CODE_TRACE_FLUSH} frame after each flush that included traced
+     * items. Only used with version 2.
+     * 
+     * @return true if items are traced
+     */
+    public boolean trace() {
+        return (features & TRACE) != 0;
+    }
+
+    public Protocol trace(boolean enabled) {
+        return feature(TRACE, enabled);
+    }
+
+    private Protocol feature(int feature, boolean enabled) {
+        return new Protocol(version, enabled ? features | feature : features & ~feature);
+    }
+
+    /**
+     * Returns the lower of the two versions and the features present in both
+     * this and {@code other}.
+     *
+     * @param other
+     *            protocol supported by the other side
+     * @return protocol supported by both
+     */
+    public Protocol intersect(Protocol other) {
+        return new Protocol(Math.min(version, other.version), features & other.features);
+    }
+
+    /**
+     * Returns the protocol described by the {@link #VERSION_HEADER} and
+     * {@link #FEATURES_HEADER} values. Unknown features are ignored.
+     *
+     * @param versionHeader
+     *            version number, may be null
+     * @param featuresHeader
+     *            comma separated feature names, may be null
+     * @return parsed protocol
+     */
+    public static Protocol parse(String versionHeader, String featuresHeader) {
+        int version = 1;
+        if (versionHeader != null) {
+            try {
+                version = Math.max(1, Integer.parseInt(versionHeader.trim()));
+            } catch (NumberFormatException e) {
+                // use version 1
+            }
+        }
+        int features = 0;
+        if (featuresHeader != null) {
+            for (String token : featuresHeader.split(",")) {
+                String t = token.trim();
+                if (FEATURE_BATCH.equals(t)) {
+                    features |= BATCH;
+                } else if (FEATURE_DEFLATE.equals(t)) {
+                    features |= DEFLATE;
+                } else if (FEATURE_DUPLEX.equals(t)) {
+                    features |= DUPLEX;
+                } else if (FEATURE_MUX.equals(t)) {
+                    features |= MUX;
+                } else if (FEATURE_TRACE.equals(t)) {
+                    features |= TRACE;
+                }
+            }
+        }
+        return new Protocol(version, features);
+    }
+
+    /**
+     * Returns the value to be used for the {@link #FEATURES_HEADER}.
+     *
+     * @return comma separated feature names
+     */
+    public String featuresHeader() {
+        StringBuilder s = new StringBuilder();
+        if (batch()) {
+            s.append(FEATURE_BATCH);
+        }
+        if (deflate()) {
+            if (s.length() > 0) {
+                s.append(",");
+            }
+            s.append(FEATURE_DEFLATE);
+        }
+        if (duplex()) {
+            if (s.length() > 0) {
+                s.append(",");
+            }
+            s.append(FEATURE_DUPLEX);
+        }
+        if (mux()) {
+            if (s.length() > 0) {
+                s.append(",");
+            }
+            s.append(FEATURE_MUX);
+        }
+        if (trace()) {
+            if (s.length() > 0) {
+                s.append(",");
+            }
+            s.append(FEATURE_TRACE);
+        }
+        return s.toString();
+    }
+
+    /**
+     * Writes the header of an item frame to {@code b}.
+     *
+     * @param b
+     *            destination of at least {@link #MAX_HEADER_LENGTH} bytes
+     * @param length
+     *            item length
+     * @return number of bytes written
+     */
+    public int itemHeader(byte[] b, int length) {
+        if (version == 1) {
+            Util.putInt(b, 0, length);
+            return 4;
+        } else {
+            return Util.putVarint(b, 0, length << 1);
+        }
+    }
+
+    public int errorHeader(byte[] b, int length) {
+        if (version == 1) {
+            Util.putInt(b, 0, -length);
+            return 4;
+        } else {
+            int n = Util.putVarint(b, 0, (CODE_ERROR << 1) | 1);
+            return Util.putVarint(b, n, length);
+        }
+    }
+
+    public int completeHeader(byte[] b) {
+        if (version == 1) {
+            Util.putInt(b, 0, LENGTH_COMPLETE);
+            return 4;
+        } else {
+            return Util.putVarint(b, 0, (CODE_COMPLETE << 1) | 1);
+        }
+    }
+
+    /**
+     * Writes the header of a batch frame excluding the length table to
+     * {@code b}.
+     *
+     * @param b
+     *            destination of at least {@link #MAX_HEADER_LENGTH} bytes
+     * @param count
+     *            number of items in the batch
+     * @return number of bytes written
+     */
+    public int batchHeader(byte[] b, int count) {
+        if (version == 1) {
+            Util.putInt(b, 0, LENGTH_BATCH);
+            Util.putInt(b, 4, count);
+            return 8;
+        } else {
+            int n = Util.putVarint(b, 0, (CODE_BATCH << 1) | 1);
+            return Util.putVarint(b, n, count);
+        }
+    }
+
+    /**
+     * Writes a version 2 {@link #CODE_TRACE_ITEM} frame to {@code b}.
+     *
+     * @param b
+     *            destination of at least {@link #MAX_TRACE_LENGTH} bytes
+     * @param enqueueTime
+     *            epoch nanos when the item arrived from the publisher
+     * @param writeTime
+     *            epoch nanos when the item was written
+     * @return number of bytes written
+     */
+    public int traceItem(byte[] b, long enqueueTime, long writeTime) {
+        int n = Util.putVarint(b, 0, (CODE_TRACE_ITEM << 1) | 1);
+        Util.putLong(b, n, enqueueTime);
+        Util.putLong(b, n + 8, writeTime);
+        return n + 16;
+    }
+
+    public int traceFlush(byte[] b, long flushTime) {
+        int n = Util.putVarint(b, 0, (CODE_TRACE_FLUSH << 1) | 1);
+        Util.putLong(b, n, flushTime);
+        return n + 8;
+    }
+
+    @Override
+    public String toString() {
+        return "Protocol[version=" + version + ", features=" + featuresHeader() + "]";
+    }
+
+}
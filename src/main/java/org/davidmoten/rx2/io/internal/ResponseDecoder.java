@@ -0,0 +1,235 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decodes an HTTP/1.1 response incrementally from whatever bytes have
+ * arrived, the non-blocking counterpart of the parsing done by
+ * {@link DuplexExchange} and {@link ChunkedInputStream}. Interim (1xx)
+ * responses are skipped. The body may be chunked, have a content length or
+ * end when the connection closes.
+ */
+final class ResponseDecoder {
+
+    interface Listener {
+
+        /**
+         * Called once the headers of the final response have arrived.
+         *
+         * @param status
+         *            response status code
+         * @param headers
+         *            headers keyed by lower case name
+         * @throws IOException
+         *             to abandon the response
+         */
+        void onHead(int status, Map<String, String> headers) throws IOException;
+
+        /**
+         * Called with the next piece of the body. The buffer is only valid
+         * for the duration of the call.
+         *
+         * @param data
+         *            body bytes
+         * @throws IOException
+         *             to abandon the response
+         */
+        void onBody(ByteBuffer data) throws IOException;
+
+        void onEnd() throws IOException;
+    }
+
+    private enum State {
+        STATUS_LINE, HEADER, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILER, BODY, DONE
+    }
+
+    private final Listener listener;
+    private final StringBuilder line = new StringBuilder();
+    private State state = State.STATUS_LINE;
+    private int status;
+    private Map<String, String> headers;
+    // bytes left in the current chunk or the body, -1 if the body ends when
+    // the connection closes
+    private long remaining;
+
+    ResponseDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Decodes all of {@code src}. Bytes after the end of the response are
+     * ignored.
+     *
+     * @param src
+     *            bytes read from the connection
+     * @throws IOException
+     *             on a malformed response or if the listener throws
+     */
+    void decode(ByteBuffer src) throws IOException {
+        while (src.hasRemaining() && state != State.DONE) {
+            switch (state) {
+            case CHUNK_DATA:
+            case BODY:
+                body(src);
+                break;
+            default:
+                if (readLine(src)) {
+                    String s = line.toString();
+                    line.setLength(0);
+                    onLine(s);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when the connection has no more bytes.
+     *
+     * @throws IOException
+     *             if the response is incomplete
+     */
+    void endOfInput() throws IOException {
+        if (state == State.BODY && remaining == -1) {
+            state = State.DONE;
+            listener.onEnd();
+        } else if (state != State.DONE) {
+            throw new EOFException("connection closed before the response was complete");
+        }
+    }
+
+    boolean finished() {
+        return state == State.DONE;
+    }
+
+    private void body(ByteBuffer src) throws IOException {
+        int n = remaining == -1 ? src.remaining() : (int) Math.min(src.remaining(), remaining);
+        ByteBuffer data = src.duplicate();
+        data.limit(data.position() + n);
+        src.position(src.position() + n);
+        if (remaining != -1) {
+            remaining -= n;
+        }
+        listener.onBody(data);
+        if (remaining == 0) {
+            if (state == State.CHUNK_DATA) {
+                state = State.CHUNK_END;
+            } else {
+                end();
+            }
+        }
+    }
+
+    // returns true when a whole line (without its CRLF) is in line
+    private boolean readLine(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            byte b = src.get();
+            if (b == '\n') {
+                int n = line.length();
+                if (n > 0 && line.charAt(n - 1) == '\r') {
+                    line.setLength(n - 1);
+                }
+                return true;
+            } else if (line.length() == DuplexExchange.MAX_LINE_LENGTH) {
+                throw new IOException("line too long");
+            }
+            line.append((char) (b & 0xFF));
+        }
+        return false;
+    }
+
+    private void onLine(String s) throws IOException {
+        switch (state) {
+        case STATUS_LINE:
+            status = DuplexExchange.statusCode(s);
+            headers = new HashMap<>();
+            state = State.HEADER;
+            break;
+        case HEADER:
+            if (s.isEmpty()) {
+                headersComplete();
+            } else {
+                int colon = s.indexOf(':');
+                if (colon > 0) {
+                    headers.put(s.substring(0, colon).trim().toLowerCase(Locale.ENGLISH),
+                            s.substring(colon + 1).trim());
+                }
+            }
+            break;
+        case CHUNK_SIZE:
+            remaining = chunkSize(s);
+            state = remaining == 0 ? State.TRAILER : State.CHUNK_DATA;
+            break;
+        case CHUNK_END:
+            if (!s.isEmpty()) {
+                throw new IOException("expected CRLF after chunk but read: " + s);
+            }
+            state = State.CHUNK_SIZE;
+            break;
+        case TRAILER:
+            if (s.isEmpty()) {
+                end();
+            }
+            break;
+        default:
+            throw new IllegalStateException("unexpected state " + state);
+        }
+    }
+
+    private void headersComplete() throws IOException {
+        if (status >= 100 && status < 200) {
+            // skip interim responses like 100 Continue
+            state = State.STATUS_LINE;
+            return;
+        }
+        listener.onHead(status, headers);
+        String transferEncoding = headers.get("transfer-encoding");
+        String contentLength = headers.get("content-length");
+        if (transferEncoding != null
+                && transferEncoding.toLowerCase(Locale.ENGLISH).contains("chunked")) {
+            state = State.CHUNK_SIZE;
+        } else if (contentLength != null) {
+            try {
+                remaining = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid content length: " + contentLength);
+            }
+            if (remaining < 0) {
+                throw new IOException("invalid content length: " + contentLength);
+            }
+            state = State.BODY;
+            if (remaining == 0) {
+                end();
+            }
+        } else {
+            // ends when the server closes the connection
+            remaining = -1;
+            state = State.BODY;
+        }
+    }
+
+    private void end() throws IOException {
+        state = State.DONE;
+        listener.onEnd();
+    }
+
+    private static long chunkSize(String line) throws IOException {
+        int semicolon = line.indexOf(';');
+        String size = (semicolon == -1 ? line : line.substring(0, semicolon)).trim();
+        long n;
+        try {
+            n = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid chunk size: " + line);
+        }
+        if (n < 0) {
+            throw new IOException("invalid chunk size: " + line);
+        }
+        return n;
+    }
+
+}
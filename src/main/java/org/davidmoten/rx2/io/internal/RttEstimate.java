@@ -0,0 +1,29 @@
+package org.davidmoten.rx2.io.internal;
+
+/**
+ * Moving average of measured round-trip times. Thread-safe, samples recorded
+ * concurrently may be lost which is acceptable for an estimate.
+ */
+public final class RttEstimate {
+
+    // the latest sample is weighted by 1/8
+    private static final int SHIFT = 3;
+
+    private volatile long nanos;
+
+    public void record(long sampleNanos) {
+        long n = nanos;
+        nanos = n == 0 ? Math.max(1, sampleNanos) : Math.max(1, n + ((sampleNanos - n) >> SHIFT));
+    }
+
+    /**
+     * Returns the estimated round-trip time in nanoseconds or 0 if no samples
+     * have been recorded.
+     *
+     * @return estimated round-trip time in nanoseconds
+     */
+    public long nanos() {
+        return nanos;
+    }
+
+}
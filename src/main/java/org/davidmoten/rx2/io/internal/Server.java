@@ -5,9 +5,13 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
+import org.davidmoten.rx2.http.ServerMetrics;
+import org.davidmoten.rx2.http.ServerMetrics.FlushCause;
 import org.davidmoten.rx2.http.Writer;
 import org.davidmoten.rx2.http.WriterFactory;
 import org.reactivestreams.Publisher;
@@ -26,6 +30,7 @@ import io.reactivex.internal.fuseable.SimplePlainQueue;
 import io.reactivex.internal.queue.SpscLinkedArrayQueue;
 import io.reactivex.internal.util.BackpressureHelper;
 import io.reactivex.plugins.RxJavaPlugins;
+import io.reactivex.schedulers.Schedulers;
 
 public final class Server {
 
@@ -36,11 +41,39 @@ public final class Server {
     public static void handle(Publisher<? extends ByteBuffer> flowable,
             SingleSource<OutputStream> out, Runnable completion, long id,
             Scheduler requestScheduler, Consumer<Subscription> subscription,
-            WriterFactory writerFactory, AfterOnNextFactory afterOnNextFactory) {
+            WriterFactory writerFactory, AfterOnNextFactory afterOnNextFactory,
+            Protocol protocol) {
+        handle(flowable, out, completion, id, requestScheduler, subscription, writerFactory,
+                afterOnNextFactory, protocol, null);
+    }
+
+    public static void handle(Publisher<? extends ByteBuffer> flowable,
+            SingleSource<OutputStream> out, Runnable completion, long id,
+            Scheduler requestScheduler, Consumer<Subscription> subscription,
+            WriterFactory writerFactory, AfterOnNextFactory afterOnNextFactory,
+            Protocol protocol, byte[] dictionary) {
+        handle(flowable, out, completion, id, requestScheduler, subscription, writerFactory,
+                afterOnNextFactory, protocol, dictionary, null, ServerMetrics.NONE, 0);
+    }
+
+    /**
+     * Writes the stream to {@code out}. If {@code nonBlocking} is not null it is
+     * the stream that {@code out} writes to and writing pauses (between items)
+     * while it is not ready rather than blocking the draining thread. Events of
+     * the stream are reported to {@code metrics}. If the protocol traces items
+     * then every {@code traceEvery}-th item is traced.
+     */
+    static void handle(Publisher<? extends ByteBuffer> flowable,
+            SingleSource<OutputStream> out, Runnable completion, long id,
+            Scheduler requestScheduler, Consumer<Subscription> subscription,
+            WriterFactory writerFactory, AfterOnNextFactory afterOnNextFactory,
+            Protocol protocol, byte[] dictionary, NonBlockingOutputStream nonBlocking,
+            ServerMetrics metrics, int traceEvery) {
         // when first request read (8 bytes) subscribe to Flowable
         // and output to OutputStream on scheduler
         HandlerSubscriber subscriber = new HandlerSubscriber(out, completion, id, requestScheduler,
-                writerFactory, afterOnNextFactory.create());
+                writerFactory, afterOnNextFactory.create(), protocol, dictionary, nonBlocking,
+                metrics, protocol.trace() ? traceEvery : 0);
         try {
             subscription.accept(subscriber);
         } catch (Exception e) {
@@ -56,12 +89,50 @@ public final class Server {
 
         private static final long serialVersionUID = 1331107616659478552L;
 
+        private static final int MAX_BATCH_ITEMS = 1024;
+
+        // items are only added to a batch while its payload is below this size
+        private static final int MAX_BATCH_BYTES = 65536;
+
+        private static final int MAX_REQUEST_CHUNKS = 1024;
+
+        // items requested from upstream but not yet written when writes do
+        // not block (otherwise unwritten items could pile up without limit)
+        private static final int MAX_UPSTREAM_OUTSTANDING = MAX_BATCH_ITEMS;
+
         private final SingleSource<OutputStream> outSource;
         private final Runnable completion;
         private final long id;
         private final Worker worker;
         private final WriterFactory writerFactory;
         private final AfterOnNext afterOnNext;
+        private final Protocol protocol;
+        private final boolean batch;
+        private final byte[] dictionary;
+        private final long lingerMs;
+        // null if writes block
+        private final NonBlockingOutputStream nonBlocking;
+        private final Runnable resume;
+        private final ServerMetrics metrics;
+        // false if metrics are not reported so that per item reporting is
+        // skipped
+        private final boolean metered;
+        // received from upstream and written, only maintained if metered
+        private volatile long received;
+        private volatile long receivedBytes;
+        private long writtenBytes;
+        // 0 if items are not traced
+        private final int traceEvery;
+        // enqueue times of traced items that have not been written (offered
+        // before the item), only used if tracing
+        private final SimplePlainQueue<Long> traceTimes;
+        // items received, only maintained if tracing
+        private long traceReceived;
+        // emitted count of the next traced item and whether a traced item has
+        // been written since the last flush, only accessed in drain
+        private long nextTraced;
+        private boolean traceUnflushed;
+        private final byte[] traceFrame;
         private Subscription parent;
         private SimplePlainQueue<ByteBuffer> queue;
         private volatile boolean finished;
@@ -69,11 +140,28 @@ public final class Server {
         private volatile boolean cancelled;
         private Disposable disposable;
         private Writer writer;
+        // non-null if the stream is compressed
+        private DeflaterWriter deflaterWriter;
         private final AtomicLong requested = new AtomicLong();
         private long emitted;
+        // requested from upstream, only accessed in drain and only used if
+        // writes do not block
+        private long forwarded;
+        // reused for every item so that framing does not allocate
+        private final byte[] header = new byte[Protocol.MAX_HEADER_LENGTH];
+        // batch state, allocated on first use
+        private ByteBuffer[] batchItems;
+        private byte[] batchHeader;
+        private byte[] batchBuffer;
+        // linger state, unflushed and lingerTimer are only accessed in drain
+        private boolean unflushed;
+        private Disposable lingerTimer;
+        private volatile boolean lingerExpired;
 
         HandlerSubscriber(SingleSource<OutputStream> outSource, Runnable completion, long id,
-                Scheduler requestScheduler, WriterFactory writerFactory, AfterOnNext afterOnNext) {
+                Scheduler requestScheduler, WriterFactory writerFactory, AfterOnNext afterOnNext,
+                Protocol protocol, byte[] dictionary, NonBlockingOutputStream nonBlocking,
+                ServerMetrics metrics, int traceEvery) {
             this.outSource = outSource;
             this.completion = completion;
             this.id = id;
@@ -81,6 +169,25 @@ public final class Server {
             this.worker = requestScheduler.createWorker();
             this.queue = new SpscLinkedArrayQueue<>(16);
             this.afterOnNext = afterOnNext;
+            this.protocol = protocol;
+            this.batch = protocol.batch();
+            this.dictionary = dictionary == null ? new byte[0] : dictionary;
+            this.lingerMs = afterOnNext.lingerMs();
+            this.nonBlocking = nonBlocking;
+            this.resume = this::drain;
+            this.metrics = metrics;
+            this.metered = metrics != ServerMetrics.NONE;
+            this.traceEvery = traceEvery;
+            if (traceEvery > 0) {
+                this.traceTimes = new SpscLinkedArrayQueue<>(16);
+                this.traceFrame = new byte[Protocol.MAX_TRACE_LENGTH];
+            } else {
+                this.traceTimes = null;
+                this.traceFrame = null;
+            }
+            if (nonBlocking != null) {
+                nonBlocking.addListener(resume);
+            }
         }
 
         @Override
@@ -101,8 +208,21 @@ public final class Server {
         public void onSuccess(OutputStream os) {
             try {
                 writer = writerFactory.createWriter(os);
-                writer.write(Util.toBytes(id));
+                writer.writeLong(id);
+                if (protocol.deflate()) {
+                    // the id and dictionary are not compressed so the client can
+                    // read them before setting up inflation
+                    int n = Util.putVarint(header, 0, dictionary.length);
+                    writer.write(header, 0, n);
+                    writer.write(dictionary);
+                }
                 writer.flush();
+                if (protocol.deflate()) {
+                    deflaterWriter = new DeflaterWriter(writer, Deflater.DEFAULT_COMPRESSION,
+                            dictionary);
+                    writer = deflaterWriter;
+                }
+                metrics.streamOpened(id);
             } catch (IOException e) {
                 error = e;
                 finished = true;
@@ -113,25 +233,76 @@ public final class Server {
         @Override
         public void request(long n) {
             log.debug("server request id={}, n={}", id, n);
+            afterOnNext.onRequest(n);
+            metrics.requested(id, n);
             BackpressureHelper.add(requested, n);
+            if (nonBlocking != null) {
+                // upstream is requested from in drain as items are written
+                worker.schedule(this::drain);
+                return;
+            }
             worker.schedule(() -> {
-                parent.request(n);
-                drain();
+                if (batch && n != Long.MAX_VALUE) {
+                    requestBatched(n);
+                } else {
+                    parent.request(n);
+                    drain();
+                }
             });
         }
 
+        // Requests from upstream in chunks while holding the drain loop so that
+        // items emitted synchronously by a chunk request are queued and then
+        // written as batch frames. Each hold queues at most a chunk so memory use
+        // is bounded. After MAX_REQUEST_CHUNKS chunks the rest is requested
+        // without holding (items are written as they arrive) so that a large n
+        // does not loop for long.
+        private void requestBatched(long n) {
+            long chunks = 0;
+            while (n > 0 && !cancelled && !finished) {
+                if (chunks == MAX_REQUEST_CHUNKS) {
+                    parent.request(n);
+                    drain();
+                    return;
+                }
+                long k = Math.min(n, MAX_BATCH_ITEMS);
+                n -= k;
+                chunks++;
+                if (getAndIncrement() == 0) {
+                    parent.request(k);
+                    drainLoop();
+                } else {
+                    // the increment has recorded a missed pass so the thread
+                    // holding the drain loop writes what this request emits
+                    parent.request(k);
+                }
+            }
+        }
+
         @Override
         public void cancel() {
             cancelled = true;
             disposable.dispose();
             parent.cancel();
             worker.dispose();
+            // so that completion runs (deregistering the stream and ending
+            // the response)
+            drain();
         }
 
         // end of SingleObserver
 
         @Override
         public void onNext(ByteBuffer bb) {
+            if (metered) {
+                // before the offer so that the reported depth is never negative
+                received++;
+                receivedBytes += bb.remaining();
+            }
+            if (traceEvery > 0 && traceReceived++ % traceEvery == 0) {
+                traceTimes.offer(Util.epochNanos());
+            }
+            afterOnNext.onArrival();
             queue.offer(bb);
             drain();
         }
@@ -151,71 +322,140 @@ public final class Server {
 
         private void drain() {
             if (getAndIncrement() == 0) {
-                int missed = 1;
+                drainLoop();
+            }
+        }
+
+        private void drainLoop() {
+            int missed = 1;
+            while (true) {
+                long r = requested.get();
+                long e = emitted;
                 while (true) {
-                    long r = requested.get();
-                    long e = emitted;
-                    while (true) {
-                        if (cancelled) {
+                    if (lingerExpired) {
+                        lingerExpired = false;
+                        lingerTimer = null;
+                        if (unflushed) {
+                            try {
+                                flush(FlushCause.LINGER);
+                            } catch (IOException ex) {
+                                // the error will be seen on the next write
+                                log.debug("linger flush failed", ex);
+                            }
+                        }
+                    }
+                    if (cancelled) {
+                        parent.cancel();
+                        queue.clear();
+                        error = null;
+                        worker.dispose();
+                        done(null);
+                        return;
+                    }
+                    if (nonBlocking != null) {
+                        if (!nonBlocking.ready()) {
+                            // resumed when the client has caught up
+                            break;
+                        }
+                        requestUpstream(r, e);
+                    }
+                    boolean d = finished;
+                    ByteBuffer bb = queue.poll();
+                    if (bb != null) {
+                        try {
+                            if (traceEvery > 0 && e == nextTraced) {
+                                writeTraceItem();
+                            }
+                            if (batch) {
+                                e += writeBatch(bb, e, r);
+                            } else {
+                                e++;
+                                writeOnNext(bb, e == r);
+                            }
+                        } catch (Throwable ex) {
                             parent.cancel();
                             queue.clear();
-                            error = null;
                             worker.dispose();
-                            completion.run();
+                            if (!cancelled) {
+                                writeError(ex);
+                            }
+                            done(ex);
                             return;
                         }
-                        boolean d = finished;
-                        ByteBuffer bb = queue.poll();
-                        if (bb != null) {
-                            try {
-                                e++;
-                                writeOnNext(bb, e == r);
-                            } catch (Throwable ex) {
-                                parent.cancel();
-                                queue.clear();
-                                worker.dispose();
-                                if (!cancelled) {
-                                    writeError(ex);
-                                }
-                                completion.run();
-                                return;
-                            }
-                        } else if (d) {
-                            Throwable err = error;
-                            if (err != null) {
-                                error = null;
-                                parent.cancel();
-                                queue.clear();
-                                worker.dispose();
-                                if (!cancelled) {
-                                    writeError(err);
-                                }
-                                completion.run();
-                                return;
-                            } else {
-                                doOnComplete();
-                                completion.run();
-                                return;
+                    } else if (d) {
+                        Throwable err = error;
+                        if (err != null) {
+                            error = null;
+                            parent.cancel();
+                            queue.clear();
+                            worker.dispose();
+                            if (!cancelled) {
+                                writeError(err);
                             }
+                            done(err);
+                            return;
                         } else {
-                            break;
+                            doOnComplete();
+                            done(null);
+                            return;
                         }
+                    } else {
+                        break;
                     }
-                    emitted = e;
-                    missed = addAndGet(-missed);
-                    if (missed == 0) {
-                        return;
-                    }
                 }
+                emitted = e;
+                if (metered) {
+                    metrics.queueDepth(id, received - e, receivedBytes - writtenBytes);
+                }
+                missed = addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void requestUpstream(long r, long e) {
+            long f = forwarded;
+            if (f - e <= MAX_UPSTREAM_OUTSTANDING / 2) {
+                long target = Math.min(r, e + MAX_UPSTREAM_OUTSTANDING);
+                if (target > f) {
+                    forwarded = target;
+                    // items emitted synchronously are queued for this loop
+                    parent.request(target - f);
+                }
+            }
+        }
+
+        private void done(Throwable error) {
+            if (cancelled) {
+                metrics.streamCancelled(id);
+            } else if (error != null) {
+                metrics.streamFailed(id, error);
+            } else {
+                metrics.streamCompleted(id);
+            }
+            Disposable t = lingerTimer;
+            if (t != null) {
+                t.dispose();
+            }
+            if (deflaterWriter != null) {
+                deflaterWriter.end();
+            }
+            afterOnNext.terminated();
+            if (nonBlocking != null) {
+                nonBlocking.removeListener(resume);
             }
+            completion.run();
         }
 
         private void doOnComplete() {
             log.debug("server: onComplete");
             try {
-                // send the bytes -128, 0, 0, 0 to indicate completion
-                writeInt(writer, Integer.MIN_VALUE);
-                writer.flush();
+                writeTraceFlush(Util.epochNanos());
+                // in version 1 send the bytes -128, 0, 0, 0 to indicate completion
+                int n = protocol.completeHeader(header);
+                writer.write(header, 0, n);
+                flushTerminal();
             } catch (IOException e) {
                 RxJavaPlugins.onError(e);
             }
@@ -229,10 +469,12 @@ public final class Server {
                 err.printStackTrace(new PrintStream(bytes, true, "UTF-8"));
                 bytes.close();
 
-                // mark as error by reporting length as negative
-                writeInt(writer, -bytes.size());
+                writeTraceFlush(Util.epochNanos());
+                // in version 1 mark as error by reporting length as negative
+                int n = protocol.errorHeader(header, bytes.size());
+                writer.write(header, 0, n);
                 writer.write(bytes.buffer(), 0, bytes.size());
-                writer.flush();
+                flushTerminal();
             } catch (IOException e) {
                 // cancellation will close the OutputStream
                 // so we won't report that
@@ -249,20 +491,174 @@ public final class Server {
                 log.debug("server: first onNext");
                 firstOnNext = false;
             }
-            writeInt(writer, bb.remaining());
-            writer.write(bb);
-            if (emittedEqualsRequested || afterOnNext.flushRequested(bb.remaining())) {
-                writer.flush();
+            int length = bb.remaining();
+            int n = protocol.itemHeader(header, length);
+            writer.writeFrame(header, n, bb);
+            if (metered) {
+                writtenBytes += length;
+                metrics.written(id, 1, length);
+            }
+            if (emittedEqualsRequested) {
+                flush(FlushCause.REQUESTED);
+            } else if (afterOnNext.flushRequested(length)) {
+                flush(afterOnNext.flushCause());
+            } else {
+                written();
             }
         }
 
-    }
+        private void flush(FlushCause cause) throws IOException {
+            long start = traceUnflushed ? Util.epochNanos() : 0;
+            Object event = Jfr.beginFlush();
+            writer.flush();
+            Jfr.endFlush(event, id, cause);
+            // sent with the next flush
+            writeTraceFlush(start);
+            unflushed = false;
+            afterOnNext.flushed();
+            if (metered) {
+                metrics.flushed(id, cause);
+            }
+        }
+
+        private void flushTerminal() throws IOException {
+            Object event = Jfr.beginFlush();
+            writer.flush();
+            Jfr.endFlush(event, id, FlushCause.TERMINAL);
+            if (metered) {
+                metrics.flushed(id, FlushCause.TERMINAL);
+            }
+        }
+
+        private void writeTraceItem() throws IOException {
+            nextTraced += traceEvery;
+            // offered before the item so is present
+            long enqueueTime = traceTimes.poll();
+            int n = protocol.traceItem(traceFrame, enqueueTime, Util.epochNanos());
+            writer.write(traceFrame, 0, n);
+            traceUnflushed = true;
+        }
+
+        // gives the client the flush time of the traced items written since
+        // the last call
+        private void writeTraceFlush(long flushTime) throws IOException {
+            if (traceUnflushed) {
+                traceUnflushed = false;
+                int n = protocol.traceFlush(traceFrame, flushTime);
+                writer.write(traceFrame, 0, n);
+            }
+        }
+
+        // called after a write that was not flushed, starts the linger timer
+        // if required
+        private void written() {
+            unflushed = true;
+            if (lingerMs > 0 && lingerTimer == null) {
+                lingerTimer = Schedulers.computation().scheduleDirect(() -> {
+                    lingerExpired = true;
+                    drain();
+                }, lingerMs, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Writes {@code first} and as many more queued items as are immediately
+         * available (within limits) as a single batch frame. If no more items are
+         * available {@code first} is written as a normal item frame. Flushes if
+         * the flush policy requests it or if the batch takes the emitted count to
+         * the requested amount.
+         * 
+         * @param first
+         *            first item of the batch
+         * @param emitted
+         *            count emitted before this batch
+         * @param requested
+         *            requested amount
+         * @return number of items written
+         * @throws IOException
+         *             on write failure
+         */
+        private int writeBatch(ByteBuffer first, long emitted, long requested)
+                throws IOException {
+            if (batchItems == null) {
+                batchItems = new ByteBuffer[MAX_BATCH_ITEMS];
+                // marker, count and up to 5 bytes per varint length
+                batchHeader = new byte[Protocol.MAX_HEADER_LENGTH + 5 * MAX_BATCH_ITEMS];
+            }
+            ByteBuffer[] items = batchItems;
+            items[0] = first;
+            int count = 1;
+            long bytes = first.remaining();
+            // a traced item starts a new batch
+            while (count < MAX_BATCH_ITEMS && bytes < MAX_BATCH_BYTES
+                    && (traceEvery == 0 || emitted + count != nextTraced)) {
+                ByteBuffer bb = queue.poll();
+                if (bb == null) {
+                    break;
+                }
+                items[count++] = bb;
+                bytes += bb.remaining();
+            }
+            if (count == 1) {
+                items[0] = null;
+                writeOnNext(first, emitted + 1 == requested);
+                return 1;
+            }
+            byte[] h = batchHeader;
+            int headerLength = protocol.batchHeader(h, count);
+            boolean reachesRequested = emitted < requested && emitted + count >= requested;
+            boolean flushRequested = false;
+            for (int i = 0; i < count; i++) {
+                int length = items[i].remaining();
+                headerLength = Util.putVarint(h, headerLength, length);
+                // evaluate every item so that policy counters stay correct
+                flushRequested |= afterOnNext.flushRequested(length);
+            }
+            long total = headerLength + bytes;
+            if (total <= MAX_BATCH_BYTES * 2) {
+                // assemble the whole frame so that it is one write
+                if (batchBuffer == null || batchBuffer.length < total) {
+                    batchBuffer = new byte[Math.max((int) total, 4096)];
+                }
+                byte[] b = batchBuffer;
+                System.arraycopy(h, 0, b, 0, headerLength);
+                int index = headerLength;
+                for (int i = 0; i < count; i++) {
+                    ByteBuffer bb = items[i];
+                    int length = bb.remaining();
+                    if (bb.hasArray()) {
+                        System.arraycopy(bb.array(), bb.arrayOffset() + bb.position(), b, index,
+                                length);
+                    } else {
+                        int p = bb.position();
+                        bb.get(b, index, length);
+                        bb.position(p);
+                    }
+                    index += length;
+                    items[i] = null;
+                }
+                writer.write(b, 0, index);
+            } else {
+                writer.write(h, 0, headerLength);
+                for (int i = 0; i < count; i++) {
+                    writer.write(items[i]);
+                    items[i] = null;
+                }
+            }
+            if (metered) {
+                writtenBytes += bytes;
+                metrics.written(id, count, bytes);
+            }
+            if (reachesRequested) {
+                flush(FlushCause.REQUESTED);
+            } else if (flushRequested) {
+                flush(afterOnNext.flushCause());
+            } else {
+                written();
+            }
+            return count;
+        }
 
-    private static void writeInt(Writer writer, int v) throws IOException {
-        writer.write((v >>> 24) & 0xFF);
-        writer.write((v >>> 16) & 0xFF);
-        writer.write((v >>> 8) & 0xFF);
-        writer.write((v >>> 0) & 0xFF);
     }
 
 }
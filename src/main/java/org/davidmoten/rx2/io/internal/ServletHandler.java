@@ -1,23 +1,33 @@
 package org.davidmoten.rx2.io.internal;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.davidmoten.rx2.http.Response;
+import org.davidmoten.rx2.http.ServerMetrics;
 import org.davidmoten.rx2.http.WriterFactory;
+import org.davidmoten.rx2.io.internal.TimingWheel.Timeout;
 import org.reactivestreams.Publisher;
 import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.github.davidmoten.guavamini.annotations.VisibleForTesting;
 
@@ -25,23 +35,83 @@ import io.reactivex.Flowable;
 import io.reactivex.Scheduler;
 import io.reactivex.Single;
 import io.reactivex.functions.Consumer;
+import io.reactivex.internal.util.BackpressureHelper;
 import io.reactivex.schedulers.Schedulers;
 
 public final class ServletHandler {
 
-    private final Random random = new Random();
+    private static final Logger log = LoggerFactory.getLogger(ServletHandler.class);
 
-    private final Map<Long, Subscription> map = new ConcurrentHashMap<>();
+    // resolution of idle and stall timeouts
+    private static final long IDLE_TICK_MS = 100;
+
+    // covers timeouts up to about 50s in one turn, longer ones are revisited
+    // each turn
+    private static final int IDLE_WHEEL_SIZE = 512;
+
+    private static final String STATS_HEADER = "id\tageMs\trequested\temitted\tbytes"
+            + "\tqueuedItems\tqueuedBytes\tsinceWriteMs\tclient\n";
+
+    private final StreamRegistry streams = new StreamRegistry();
+
+    // also times stall timeouts
+    private final TimingWheel idle = new TimingWheel(Schedulers.computation(), IDLE_TICK_MS,
+            IDLE_WHEEL_SIZE);
+
+    // whether stats calls are served
+    private final boolean stats;
 
     public static ServletHandler create() {
-        return new ServletHandler();
+        return create(false);
     }
 
-    private ServletHandler() {
+    /**
+     * Returns a handler that, if {@code stats} is true, answers a call with a
+     * {@code stats} parameter with a snapshot of the live streams (see
+     * {@link #writeStats(HttpServletResponse)}).
+     * 
+     * @param stats
+     *            whether to serve stats calls
+     * @return handler
+     */
+    public static ServletHandler create(boolean stats) {
+        return new ServletHandler(stats);
+    }
+
+    private ServletHandler(boolean stats) {
+        this.stats = stats;
     }
 
     public void doGet(Callable<Response> responseProvider, HttpServletRequest req,
             HttpServletResponse resp) throws ServletException, IOException {
+        doGet(responseProvider, null, req, resp);
+    }
+
+    /**
+     * Handles a subscribe, request or cancel call.
+     * 
+     * @param responseProvider
+     *            provides the response for {@code req}
+     * @param channelResponder
+     *            returns the response for each channel of a multiplexed call
+     *            (given the channel's request), null if multiplexed calls are
+     *            not supported
+     * @param req
+     *            request
+     * @param resp
+     *            response
+     * @throws ServletException
+     *             on servlet error
+     * @throws IOException
+     *             on write failure
+     */
+    public void doGet(Callable<Response> responseProvider,
+            Function<HttpServletRequest, Response> channelResponder, HttpServletRequest req,
+            HttpServletResponse resp) throws ServletException, IOException {
+        if (stats && req.getParameter("stats") != null) {
+            writeStats(resp);
+            return;
+        }
         String idString = req.getParameter("id");
         if (idString == null) {
             final long r = getRequest(req);
@@ -52,20 +122,43 @@ public final class ServletHandler {
             } catch (Throwable e) {
                 // default to blocking
                 handleStreamBlocking(Flowable.error(e), resp.getOutputStream(), Schedulers.io(), r,
-                        WriterFactory.DEFAULT, AfterOnNextFactory.DEFAULT);
+                        WriterFactory.DEFAULT, AfterOnNextFactory.DEFAULT, Protocol.DEFAULT,
+                        null, 0, 0, ServerMetrics.NONE, 0);
                 return;
             }
-            if (!response.isAsync() || !req.isAsyncSupported()) {
+            boolean async = response.isAsync() && req.isAsyncSupported();
+            // credits can only be read from the request body without blocking
+            boolean duplexCapable = async && "POST".equals(req.getMethod());
+            Protocol protocol = negotiate(req, resp, response, duplexCapable,
+                    duplexCapable && channelResponder != null);
+            ServerMetrics metrics = metrics(response, req);
+            if (!async) {
                 handleStreamBlocking(response.publisher(), resp.getOutputStream(),
-                        response.requestScheduler(), r, response.writerFactory(), response.afterOnNextFactory());
+                        response.requestScheduler(), r, response.writerFactory(),
+                        response.afterOnNextFactory(), protocol, response.dictionary(),
+                        response.idleTimeoutMs(), response.stallTimeoutMs(), metrics,
+                        response.traceEvery());
             } else {
                 AsyncContext asyncContext = req.startAsync();
-                // prevent timeout because streams can be long-running
-                // TODO make configurable?
+                // prevent timeout because streams can be long-running, idle
+                // streams are expired per response (see
+                // Response.Builder.idleTimeout)
                 asyncContext.setTimeout(0);
-                handleStreamNonBlocking(response.publisher(),
-                        asyncContext.getResponse().getOutputStream(), response.requestScheduler(),
-                        r, asyncContext, response.writerFactory(), response.afterOnNextFactory());
+                if (protocol.mux()) {
+                    handleMux(channelResponder, asyncContext, protocol);
+                } else if (protocol.duplex()) {
+                    handleStreamDuplex(response.publisher(), response.requestScheduler(), r,
+                            asyncContext, response.writerFactory(),
+                            response.afterOnNextFactory(), protocol, response.dictionary(),
+                            response.idleTimeoutMs(), response.stallTimeoutMs(), metrics,
+                            response.traceEvery());
+                } else {
+                    handleStreamNonBlocking(response.publisher(),
+                            response.requestScheduler(), r, asyncContext,
+                            response.writerFactory(), response.afterOnNextFactory(), protocol,
+                            response.dictionary(), response.idleTimeoutMs(),
+                            response.stallTimeoutMs(), metrics, response.traceEvery());
+                }
             }
         } else {
             long id = Long.parseLong(idString);
@@ -76,15 +169,17 @@ public final class ServletHandler {
 
     private void handleStreamBlocking(Publisher<? extends ByteBuffer> publisher, OutputStream out,
             Scheduler requestScheduler, long request, WriterFactory writerFactory,
-            AfterOnNextFactory afterOnNextFactory) {
+            AfterOnNextFactory afterOnNextFactory, Protocol protocol, byte[] dictionary,
+            long idleTimeoutMs, long stallTimeoutMs, ServerMetrics metrics, int traceEvery) {
         CountDownLatch latch = new CountDownLatch(1);
-        long id = nextId(random);
+        long id = nextId();
         Runnable done = () -> {
-            map.remove(id);
+            streams.remove(id);
             latch.countDown();
         };
         handleStream(publisher, out, requestScheduler, request, id, done, writerFactory,
-                afterOnNextFactory);
+                afterOnNextFactory, protocol, dictionary, null, idleTimeoutMs, stallTimeoutMs,
+                metrics, traceEvery);
         // TODO configure max wait time or allow requester to decide?
         waitFor(latch);
     }
@@ -99,33 +194,323 @@ public final class ServletHandler {
     }
 
     private void handleStreamNonBlocking(Publisher<? extends ByteBuffer> publisher,
-            OutputStream out, Scheduler requestScheduler, long request, AsyncContext asyncContext,
-            WriterFactory writerFactory, AfterOnNextFactory afterOnNextFactory) {
-        long id = nextId(random);
+            Scheduler requestScheduler, long request, AsyncContext asyncContext,
+            WriterFactory writerFactory, AfterOnNextFactory afterOnNextFactory,
+            Protocol protocol, byte[] dictionary, long idleTimeoutMs, long stallTimeoutMs,
+            ServerMetrics metrics, int traceEvery) throws IOException {
+        long id = nextId();
+        NonBlockingOutputStream out = NonBlockingOutputStream
+                .create(asyncContext.getResponse().getOutputStream());
         Runnable done = () -> {
-            map.remove(id);
-            asyncContext.complete();
+            streams.remove(id);
+            out.whenWritten(asyncContext::complete);
         };
         handleStream(publisher, out, requestScheduler, request, id, done, writerFactory,
-                afterOnNextFactory);
+                afterOnNextFactory, protocol, dictionary, out, idleTimeoutMs, stallTimeoutMs,
+                metrics, traceEvery);
+    }
+
+    private void handleStreamDuplex(Publisher<? extends ByteBuffer> publisher,
+            Scheduler requestScheduler, long request, AsyncContext asyncContext,
+            WriterFactory writerFactory, AfterOnNextFactory afterOnNextFactory,
+            Protocol protocol, byte[] dictionary, long idleTimeoutMs, long stallTimeoutMs,
+            ServerMetrics metrics, int traceEvery) throws IOException {
+        long id = nextId();
+        NonBlockingOutputStream out = NonBlockingOutputStream
+                .create(asyncContext.getResponse().getOutputStream());
+        // the stream is only registered so that close() cancels it, credits
+        // arrive in the request body
+        Runnable done = () -> {
+            streams.remove(id);
+            out.whenWritten(asyncContext::complete);
+        };
+        Subscription sub = handleStream(publisher, out, requestScheduler, request, id, done,
+                writerFactory, afterOnNextFactory, protocol, dictionary, out, idleTimeoutMs,
+                stallTimeoutMs, metrics, traceEvery);
+        ServletInputStream in = asyncContext.getRequest().getInputStream();
+        in.setReadListener(new CreditReader(in, sub));
+    }
+
+    private void handleMux(Function<HttpServletRequest, Response> channelResponder,
+            AsyncContext asyncContext, Protocol protocol) throws IOException {
+        HttpServletRequest req = (HttpServletRequest) asyncContext.getRequest();
+        // send the headers now because the first channel may not be opened
+        // for a while
+        asyncContext.getResponse().flushBuffer();
+        NonBlockingOutputStream out = NonBlockingOutputStream
+                .create(asyncContext.getResponse().getOutputStream());
+        Map<Integer, Subscription> channels = new ConcurrentHashMap<>();
+        AtomicBoolean ended = new AtomicBoolean();
+        ServletInputStream in = req.getInputStream();
+        in.setReadListener(new MuxReader(in, new MuxReader.Listener() {
+
+            @Override
+            public void open(int channel, String query) {
+                if (channels.containsKey(channel)) {
+                    log.warn("channel {} is already open", channel);
+                    return;
+                }
+                Response response;
+                try {
+                    response = channelResponder.apply(new ChannelRequest(req, query));
+                } catch (Throwable e) {
+                    response = Response.from(Flowable.error(e));
+                }
+                long id = nextId();
+                // channel streams are never compressed or traced
+                Protocol channelProtocol = protocol.deflate(false).duplex(false).mux(false)
+                        .trace(false).batch(protocol.batch() && response.isBatch());
+                Jfr.streamSubscribed(id, 0, channelProtocol);
+                Timeout timeout = addIdleTimeout(id, response.idleTimeoutMs());
+                ServerMetrics metrics = metrics(response, req);
+                MuxOutputStream channelOut = new MuxOutputStream(out, channel);
+                // the connection is shared so a stall ends it (and every
+                // channel on it)
+                StallGuard stall = addStallGuard(id, channelOut, response.stallTimeoutMs(), out,
+                        metrics, () -> end(null));
+                Runnable done = () -> {
+                    cancel(timeout);
+                    if (stall != null) {
+                        stall.stop();
+                    }
+                    streams.remove(id);
+                    channels.remove(channel);
+                };
+                Server.handle(response.publisher(),
+                        Single.just(track(stall != null ? stall : channelOut, timeout)), done,
+                        id, response.requestScheduler(), sub -> {
+                            Subscription s = track(sub, timeout);
+                            streams.put(id, registered(id, s, metrics));
+                            channels.put(channel, s);
+                        }, response.writerFactory(), response.afterOnNextFactory(),
+                        channelProtocol, null, out, metrics, 0);
+            }
+
+            @Override
+            public void credit(int channel, long n) {
+                Subscription sub = channels.get(channel);
+                if (sub != null) {
+                    if (n > 0) {
+                        sub.request(n);
+                    } else if (n < 0) {
+                        sub.cancel();
+                    }
+                }
+            }
+
+            @Override
+            public void end(Throwable e) {
+                if (ended.compareAndSet(false, true)) {
+                    // the client has gone or closed the multiplexer
+                    for (Subscription sub : channels.values()) {
+                        sub.cancel();
+                    }
+                    out.whenWritten(asyncContext::complete);
+                }
+            }
+        }));
     }
 
-    private void handleStream(Publisher<? extends ByteBuffer> publisher, OutputStream out,
-            Scheduler requestScheduler, long request, long id, Runnable completion,
-            WriterFactory writerFactory, AfterOnNextFactory afterOnNextFactory) {
-        Consumer<Subscription> subscription = sub -> map.put(id, sub);
-        Server.handle(publisher, Single.just(out), completion, id, requestScheduler, subscription,
-                writerFactory, afterOnNextFactory);
+    private Subscription handleStream(Publisher<? extends ByteBuffer> publisher,
+            OutputStream out, Scheduler requestScheduler, long request, long id,
+            Runnable completion, WriterFactory writerFactory,
+            AfterOnNextFactory afterOnNextFactory, Protocol protocol, byte[] dictionary,
+            NonBlockingOutputStream nonBlocking, long idleTimeoutMs, long stallTimeoutMs,
+            ServerMetrics metrics, int traceEvery) {
+        Jfr.streamSubscribed(id, request, protocol);
+        Timeout timeout = addIdleTimeout(id, idleTimeoutMs);
+        // the guard closes out itself if the stream stalls
+        StallGuard stall = addStallGuard(id, out, stallTimeoutMs, nonBlocking, metrics, null);
+        Subscription[] holder = new Subscription[1];
+        Consumer<Subscription> subscription = sub -> {
+            holder[0] = track(sub, timeout);
+            streams.put(id, registered(id, holder[0], metrics));
+        };
+        Runnable done = () -> {
+            cancel(timeout);
+            if (stall != null) {
+                stall.stop();
+            }
+            completion.run();
+        };
+        OutputStream o = track(stall != null ? stall : out, timeout);
+        Server.handle(publisher, Single.just(o), done, id, requestScheduler,
+                subscription, writerFactory, afterOnNextFactory, protocol, dictionary,
+                nonBlocking, metrics, traceEvery);
         if (request > 0) {
-            Subscription sub = map.get(id);
+            Subscription sub = streams.get(id);
             if (sub != null) {
                 sub.request(request);
             }
         }
+        return holder[0];
+    }
+
+    // a stream's metrics also record its stats if stats are served
+    private ServerMetrics metrics(Response response, HttpServletRequest req) {
+        if (stats) {
+            return new LiveStream(response.metrics(),
+                    req.getRemoteAddr() + ":" + req.getRemotePort());
+        } else {
+            return response.metrics();
+        }
+    }
+
+    private static Subscription registered(long id, Subscription sub, ServerMetrics metrics) {
+        if (metrics instanceof LiveStream) {
+            return ((LiveStream) metrics).attach(id, sub);
+        } else {
+            return sub;
+        }
+    }
+
+    /**
+     * Writes a snapshot of the live streams as plain text, one line per stream
+     * with columns id, age (ms), requested, emitted (items written), bytes
+     * written, queued items, queued bytes, time since the last write (ms, -1
+     * if nothing written yet) and client address, followed by a line of
+     * totals. The streams are not paused or locked (their numbers are read as
+     * they change).
+     * 
+     * @param resp
+     *            response
+     * @throws IOException
+     *             on write failure
+     */
+    private void writeStats(HttpServletResponse resp) throws IOException {
+        long now = System.currentTimeMillis();
+        StringBuilder b = new StringBuilder();
+        b.append(STATS_HEADER);
+        long count = 0;
+        long requested = 0;
+        long emitted = 0;
+        long bytes = 0;
+        long queuedItems = 0;
+        long queuedBytes = 0;
+        for (Subscription sub : streams.values()) {
+            if (!(sub instanceof LiveStream)) {
+                continue;
+            }
+            LiveStream s = (LiveStream) sub;
+            long r = s.requested();
+            long e = s.emitted();
+            long n = s.bytes();
+            long qi = s.queuedItems();
+            long qb = s.queuedBytes();
+            long lastWrite = s.lastWriteTime();
+            b.append(s.id()).append('\t') //
+                    .append(now - s.startTime()).append('\t') //
+                    .append(r).append('\t') //
+                    .append(e).append('\t') //
+                    .append(n).append('\t') //
+                    .append(qi).append('\t') //
+                    .append(qb).append('\t') //
+                    .append(lastWrite == 0 ? -1 : now - lastWrite).append('\t') //
+                    .append(s.client()).append('\n');
+            count++;
+            requested = BackpressureHelper.addCap(requested, r);
+            emitted += e;
+            bytes += n;
+            queuedItems += qi;
+            queuedBytes += qb;
+        }
+        b.append("total ").append(count).append("\t\t") //
+                .append(requested).append('\t') //
+                .append(emitted).append('\t') //
+                .append(bytes).append('\t') //
+                .append(queuedItems).append('\t') //
+                .append(queuedBytes).append("\t\t\n");
+        resp.setContentType("text/plain");
+        resp.setCharacterEncoding("UTF-8");
+        resp.getOutputStream().write(b.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // returns null if the stream doesn't expire
+    private Timeout addIdleTimeout(long id, long idleTimeoutMs) {
+        if (idleTimeoutMs <= 0) {
+            return null;
+        }
+        return idle.add(idleTimeoutMs, () -> {
+            Subscription sub = streams.get(id);
+            if (sub != null) {
+                log.debug("cancelling idle stream {}", id);
+                sub.cancel();
+            }
+        });
+    }
+
+    // returns null if stalls are not detected, afterCancel (if not null) is
+    // run when the stalled stream has been cancelled
+    private StallGuard addStallGuard(long id, OutputStream out, long stallTimeoutMs,
+            NonBlockingOutputStream nonBlocking, ServerMetrics metrics, Runnable afterCancel) {
+        if (stallTimeoutMs <= 0) {
+            return null;
+        }
+        return new StallGuard(out, idle, stallTimeoutMs, nonBlocking, () -> {
+            log.warn("cancelling stream {} after no write progress for {}ms", id,
+                    stallTimeoutMs);
+            metrics.streamStalled(id, stallTimeoutMs);
+            Subscription sub = streams.get(id);
+            if (sub != null) {
+                sub.cancel();
+            }
+            if (afterCancel != null) {
+                afterCancel.run();
+            }
+        });
+    }
+
+    private static void cancel(Timeout timeout) {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    // requests from the client are activity
+    private static Subscription track(Subscription sub, Timeout timeout) {
+        if (timeout == null) {
+            return sub;
+        }
+        return new Subscription() {
+
+            @Override
+            public void request(long n) {
+                timeout.touch();
+                sub.request(n);
+            }
+
+            @Override
+            public void cancel() {
+                timeout.cancel();
+                sub.cancel();
+            }
+        };
+    }
+
+    // writes to the client are activity (writes stop when a non-blocking
+    // client stops reading)
+    private static OutputStream track(OutputStream out, Timeout timeout) {
+        if (timeout == null) {
+            return out;
+        }
+        return new FilterOutputStream(out) {
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                timeout.touch();
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                timeout.touch();
+                out.write(b);
+            }
+        };
     }
 
     private void handleRequest(long id, long request) {
-        Subscription s = map.get(id);
+        Subscription s = streams.get(id);
         if (s != null) {
             if (request > 0) {
                 s.request(request);
@@ -135,6 +520,29 @@ public final class ServletHandler {
         }
     }
 
+    private static Protocol negotiate(HttpServletRequest req, HttpServletResponse resp,
+            Response response, boolean duplexCapable, boolean muxCapable) {
+        String version = req.getHeader(Protocol.VERSION_HEADER);
+        String features = req.getHeader(Protocol.FEATURES_HEADER);
+        Protocol protocol = Protocol.parse(version, features)
+                .intersect(Protocol.ALL //
+                        .batch(response.isBatch()) //
+                        .deflate(response.isCompress()) //
+                        .duplex(duplexCapable) //
+                        .mux(muxCapable) //
+                        .trace(response.traceEvery() > 0));
+        if (protocol.version() < 2) {
+            // channels and trace frames are version 2 only
+            protocol = protocol.mux(false).trace(false);
+        }
+        // only clients that know about negotiation get the response headers
+        if (version != null || features != null) {
+            resp.setHeader(Protocol.VERSION_HEADER, String.valueOf(protocol.version()));
+            resp.setHeader(Protocol.FEATURES_HEADER, protocol.featuresHeader());
+        }
+        return protocol;
+    }
+
     private static long getRequest(HttpServletRequest req) {
         String rString = req.getParameter("r");
         final long r;
@@ -147,10 +555,16 @@ public final class ServletHandler {
     }
 
     public void close() {
-        for (Subscription sub : map.values()) {
+        idle.close();
+        for (Subscription sub : streams.removeAll()) {
             sub.cancel();
         }
-        map.clear();
+    }
+
+    // each thread has its own generator so that subscribes don't contend on
+    // a shared seed
+    private static long nextId() {
+        return nextId(ThreadLocalRandom.current());
     }
 
     @VisibleForTesting
@@ -0,0 +1,150 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.davidmoten.rx2.io.internal.TimingWheel.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detects a stream whose writes have stopped making progress. The start and
+ * end of every write and flush to the wrapped stream is progress (recorded on
+ * a {@link TimingWheel} timeout so costs a volatile write). When the timeout
+ * expires the stream has stalled if a write is in progress (a blocking write
+ * waiting for the client) or the non-blocking output holds bytes that the
+ * container has not taken and has not taken any since this stream's last
+ * write (the output may be shared by multiplexed streams), in which case
+ * {@code onStall} is run and the output is closed (or failed if non-blocking)
+ * to release the writer. Otherwise the stream is just quiet and the timeout is
+ * renewed.
+ */
+final class StallGuard extends FilterOutputStream {
+
+    private static final Logger log = LoggerFactory.getLogger(StallGuard.class);
+
+    private final TimingWheel wheel;
+    private final long timeoutMs;
+    // null if writes block
+    private final NonBlockingOutputStream nonBlocking;
+    private final Runnable onStall;
+    private volatile boolean writing;
+    private volatile boolean stopped;
+    private volatile Timeout timeout;
+    // progress of the non-blocking output when last written to or checked
+    private volatile long progress;
+
+    /**
+     * Constructor.
+     *
+     * @param out
+     *            stream to guard
+     * @param wheel
+     *            times the stall timeout
+     * @param timeoutMs
+     *            time without progress while there is data to write before
+     *            the stream has stalled
+     * @param nonBlocking
+     *            the non-blocking stream that {@code out} writes to, null if
+     *            writes block
+     * @param onStall
+     *            run (on the wheel's scheduler) when the stream stalls
+     */
+    StallGuard(OutputStream out, TimingWheel wheel, long timeoutMs,
+            NonBlockingOutputStream nonBlocking, Runnable onStall) {
+        super(out);
+        this.wheel = wheel;
+        this.timeoutMs = timeoutMs;
+        this.nonBlocking = nonBlocking;
+        this.onStall = onStall;
+        this.progress = progress();
+        this.timeout = wheel.add(timeoutMs, this::expired);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        start();
+        try {
+            out.write(b);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        start();
+        try {
+            out.write(b, off, len);
+        } finally {
+            end();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        start();
+        try {
+            out.flush();
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Stops detection (when the stream has finished).
+     */
+    void stop() {
+        stopped = true;
+        timeout.cancel();
+    }
+
+    private void start() {
+        timeout.touch();
+        writing = true;
+    }
+
+    private void end() {
+        writing = false;
+        progress = progress();
+        timeout.touch();
+    }
+
+    private long progress() {
+        return nonBlocking == null ? 0 : nonBlocking.progress();
+    }
+
+    private void expired() {
+        if (stopped) {
+            return;
+        }
+        long p = progress();
+        if (writing || (nonBlocking != null && nonBlocking.pending() && p == progress)) {
+            stopped = true;
+            onStall.run();
+            abort();
+        } else {
+            progress = p;
+            timeout = wheel.add(timeoutMs, this::expired);
+            if (stopped) {
+                // stop raced with renewal
+                timeout.cancel();
+            }
+        }
+    }
+
+    private void abort() {
+        IOException e = new IOException("no write progress for " + timeoutMs + "ms");
+        if (nonBlocking != null) {
+            nonBlocking.abort(e);
+        } else {
+            try {
+                out.close();
+            } catch (IOException | RuntimeException ex) {
+                log.debug("close of stalled stream failed", ex);
+            }
+        }
+    }
+
+}
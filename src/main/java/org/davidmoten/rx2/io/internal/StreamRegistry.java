@@ -0,0 +1,207 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.reactivestreams.Subscription;
+
+/**
+ * The live streams of a {@link ServletHandler} keyed by stream id. Ids are
+ * spread over independently locked stripes so that concurrent subscribe,
+ * request and cancel calls rarely contend, and each stripe is an open
+ * addressing table of primitive longs so that lookups don't box. Ids must not
+ * be zero (zero marks an empty slot).
+ */
+final class StreamRegistry {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Stripe[] stripes;
+    private final int mask;
+
+    StreamRegistry() {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    StreamRegistry(int concurrency) {
+        int n = Integer.highestOneBit(Math.max(1, concurrency - 1)) << 1;
+        stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe();
+        }
+        mask = n - 1;
+    }
+
+    void put(long id, Subscription subscription) {
+        long h = mix(id);
+        stripe(h).put(id, h, subscription);
+    }
+
+    Subscription get(long id) {
+        long h = mix(id);
+        return stripe(h).get(id, h);
+    }
+
+    Subscription remove(long id) {
+        long h = mix(id);
+        return stripe(h).remove(id, h);
+    }
+
+    /**
+     * Removes and returns all registered subscriptions.
+     *
+     * @return the subscriptions that were registered
+     */
+    List<Subscription> removeAll() {
+        List<Subscription> list = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            stripe.removeAll(list);
+        }
+        return list;
+    }
+
+    /**
+     * Returns the registered subscriptions. Each stripe is locked only while
+     * its entries are copied.
+     *
+     * @return the subscriptions that are registered
+     */
+    List<Subscription> values() {
+        List<Subscription> list = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            stripe.values(list);
+        }
+        return list;
+    }
+
+    int size() {
+        int n = 0;
+        for (Stripe stripe : stripes) {
+            n += stripe.size();
+        }
+        return n;
+    }
+
+    private Stripe stripe(long h) {
+        // high bits pick the stripe, low bits the slot within it
+        return stripes[(int) (h >>> 40) & mask];
+    }
+
+    // ids are random but tests and callers may use sequential ids
+    private static long mix(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    private static final class Stripe {
+
+        // guarded by this
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private Subscription[] values = new Subscription[INITIAL_CAPACITY];
+        private int size;
+
+        synchronized void put(long id, long h, Subscription subscription) {
+            int i = indexOf(keys, id, h);
+            if (keys[i] == id) {
+                values[i] = subscription;
+                return;
+            }
+            keys[i] = id;
+            values[i] = subscription;
+            size++;
+            // load factor 0.5 keeps probe sequences short
+            if (size * 2 > keys.length) {
+                resize();
+            }
+        }
+
+        synchronized Subscription get(long id, long h) {
+            int i = indexOf(keys, id, h);
+            return keys[i] == id ? values[i] : null;
+        }
+
+        synchronized Subscription remove(long id, long h) {
+            long[] k = keys;
+            int m = k.length - 1;
+            int i = indexOf(k, id, h);
+            if (k[i] != id) {
+                return null;
+            }
+            Subscription removed = values[i];
+            size--;
+            // shift back following entries of the probe sequence so that no
+            // tombstones are needed
+            int gap = i;
+            int j = i;
+            while (true) {
+                j = (j + 1) & m;
+                long key = k[j];
+                if (key == 0) {
+                    break;
+                }
+                int home = (int) mix(key) & m;
+                // move key to the gap unless its home lies cyclically in (gap, j]
+                if (gap <= j ? (home <= gap || home > j) : (home <= gap && home > j)) {
+                    k[gap] = key;
+                    values[gap] = values[j];
+                    gap = j;
+                }
+            }
+            k[gap] = 0;
+            values[gap] = null;
+            return removed;
+        }
+
+        synchronized void removeAll(List<Subscription> list) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) {
+                    list.add(values[i]);
+                    keys[i] = 0;
+                    values[i] = null;
+                }
+            }
+            size = 0;
+        }
+
+        synchronized void values(List<Subscription> list) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) {
+                    list.add(values[i]);
+                }
+            }
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        // returns the slot of id or the empty slot where it would go
+        private static int indexOf(long[] keys, long id, long h) {
+            int m = keys.length - 1;
+            int i = (int) h & m;
+            while (true) {
+                long key = keys[i];
+                if (key == id || key == 0) {
+                    return i;
+                }
+                i = (i + 1) & m;
+            }
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Subscription[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new Subscription[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                long key = oldKeys[i];
+                if (key != 0) {
+                    int j = indexOf(keys, key, mix(key));
+                    keys[j] = key;
+                    values[j] = oldValues[i];
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,238 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.davidmoten.guavamini.Preconditions;
+
+import io.reactivex.Scheduler;
+import io.reactivex.disposables.Disposable;
+
+/**
+ * Hashed timing wheel of idle timeouts. Activity only records the current tick
+ * (see {@link Timeout#touch()}) and each tick visits one bucket, moving
+ * timeouts that have seen activity to the bucket of their new deadline and
+ * running the actions of those that have expired. The cost per tick is the
+ * size of one bucket rather than the number of timeouts. The ticker runs only
+ * while there are timeouts.
+ */
+final class TimingWheel implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(TimingWheel.class);
+
+    private final Scheduler scheduler;
+    private final long tickMs;
+    // heads of the doubly linked lists of the buckets, guarded by this
+    private final Timeout[] buckets;
+    private final int mask;
+    private volatile long tick;
+    // guarded by this
+    private Disposable ticker;
+    private int size;
+    private boolean closed;
+
+    /**
+     * Constructor.
+     *
+     * @param scheduler
+     *            runs the ticks and the expiry actions
+     * @param tickMs
+     *            resolution of timeouts
+     * @param wheelSize
+     *            number of buckets (rounded up to a power of two)
+     */
+    TimingWheel(Scheduler scheduler, long tickMs, int wheelSize) {
+        Preconditions.checkArgument(tickMs > 0, "tickMs must be positive");
+        Preconditions.checkArgument(wheelSize > 0, "wheelSize must be positive");
+        this.scheduler = scheduler;
+        this.tickMs = tickMs;
+        int n = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.buckets = new Timeout[n];
+        this.mask = n - 1;
+    }
+
+    /**
+     * Returns a timeout that runs {@code action} once it has had no activity
+     * for {@code timeoutMs} (rounded up to whole ticks, and expiry may be a
+     * tick later).
+     *
+     * @param timeoutMs
+     *            idle time before expiry
+     * @param action
+     *            run on expiry
+     * @return the timeout
+     */
+    Timeout add(long timeoutMs, Runnable action) {
+        Preconditions.checkArgument(timeoutMs > 0, "timeoutMs must be positive");
+        long ticks = (timeoutMs + tickMs - 1) / tickMs;
+        Timeout t = new Timeout(action, ticks);
+        synchronized (this) {
+            if (closed) {
+                // never expires
+                t.removed = true;
+                return t;
+            }
+            t.lastActivity = tick;
+            link(t, bucket(t.deadline()));
+            size++;
+            if (ticker == null) {
+                ticker = scheduler.schedulePeriodicallyDirect(this::tick, tickMs, tickMs,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+        return t;
+    }
+
+    int size() {
+        synchronized (this) {
+            return size;
+        }
+    }
+
+    void tick() {
+        List<Runnable> expired = null;
+        synchronized (this) {
+            long now = tick + 1;
+            tick = now;
+            int i = bucket(now);
+            Timeout t = buckets[i];
+            while (t != null) {
+                Timeout next = t.next;
+                long deadline = t.deadline();
+                if (deadline <= now) {
+                    remove(t);
+                    if (expired == null) {
+                        expired = new ArrayList<>();
+                    }
+                    expired.add(t.action);
+                } else {
+                    int j = bucket(deadline);
+                    if (j != i) {
+                        unlink(t);
+                        link(t, j);
+                    }
+                }
+                t = next;
+            }
+        }
+        if (expired != null) {
+            for (Runnable action : expired) {
+                try {
+                    action.run();
+                } catch (RuntimeException e) {
+                    log.warn("idle timeout action failed", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            for (int i = 0; i < buckets.length; i++) {
+                Timeout t = buckets[i];
+                while (t != null) {
+                    t.removed = true;
+                    t = t.next;
+                }
+                buckets[i] = null;
+            }
+            size = 0;
+            stopTicker();
+        }
+    }
+
+    private int bucket(long tick) {
+        return (int) (tick & mask);
+    }
+
+    // the following methods are called holding the lock
+
+    private void remove(Timeout t) {
+        unlink(t);
+        t.removed = true;
+        size--;
+        if (size == 0) {
+            stopTicker();
+        }
+    }
+
+    private void stopTicker() {
+        if (ticker != null) {
+            ticker.dispose();
+            ticker = null;
+        }
+    }
+
+    private void link(Timeout t, int bucket) {
+        Timeout head = buckets[bucket];
+        t.bucket = bucket;
+        t.prev = null;
+        t.next = head;
+        if (head != null) {
+            head.prev = t;
+        }
+        buckets[bucket] = t;
+    }
+
+    private void unlink(Timeout t) {
+        if (t.prev == null) {
+            buckets[t.bucket] = t.next;
+        } else {
+            t.prev.next = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.prev = null;
+        t.next = null;
+    }
+
+    final class Timeout {
+
+        private final Runnable action;
+        private final long ticks;
+        private volatile long lastActivity;
+        // guarded by the wheel
+        private Timeout prev;
+        private Timeout next;
+        private int bucket;
+        private boolean removed;
+
+        Timeout(Runnable action, long ticks) {
+            this.action = action;
+            this.ticks = ticks;
+        }
+
+        /**
+         * Records activity, postponing expiry.
+         */
+        void touch() {
+            lastActivity = tick;
+        }
+
+        /**
+         * Stops the timeout, its action will not be run (unless already
+         * running).
+         */
+        void cancel() {
+            synchronized (TimingWheel.this) {
+                if (!removed) {
+                    remove(this);
+                }
+            }
+        }
+
+        // first tick at which more than ticks whole ticks have passed since
+        // the last activity
+        private long deadline() {
+            return lastActivity + ticks + 1;
+        }
+    }
+
+}
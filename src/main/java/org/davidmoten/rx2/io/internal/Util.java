@@ -12,6 +12,9 @@ import io.reactivex.plugins.RxJavaPlugins;
 
 public final class Util {
 
+    private static final long EPOCH_NANOS_OFFSET = System.currentTimeMillis() * 1000000L
+            - System.nanoTime();
+
     private Util() {
         // prevent instantiation
     }
@@ -61,6 +64,60 @@ public final class Util {
         return b;
     }
 
+    public static void putInt(byte[] b, int offset, int v) {
+        b[offset] = (byte) (v >>> 24);
+        b[offset + 1] = (byte) (v >>> 16);
+        b[offset + 2] = (byte) (v >>> 8);
+        b[offset + 3] = (byte) v;
+    }
+
+    /**
+     * Writes {@code v} as an unsigned LEB128 varint (1 to 5 bytes).
+     * 
+     * @param b
+     *            destination
+     * @param offset
+     *            index in {@code b} to write the first byte
+     * @param v
+     *            value to write, treated as unsigned
+     * @return index after the last byte written
+     */
+    public static int putVarint(byte[] b, int offset, int v) {
+        while ((v & ~0x7F) != 0) {
+            b[offset++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        b[offset++] = (byte) v;
+        return offset;
+    }
+
+    public static void putLong(byte[] b, int offset, long v) {
+        putInt(b, offset, (int) (v >>> 32));
+        putInt(b, offset + 4, (int) v);
+    }
+
+    public static int getInt(byte[] b, int offset) {
+        return ((b[offset] << 24) //
+                + ((b[offset + 1] & 255) << 16) //
+                + ((b[offset + 2] & 255) << 8) //
+                + ((b[offset + 3] & 255) << 0));
+    }
+
+    public static long getLong(byte[] b, int offset) {
+        return ((long) getInt(b, offset) << 32) + (getInt(b, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the current time in nanoseconds since the epoch with the
+     * resolution of {@link System#nanoTime()} (the offset between the two
+     * clocks is fixed when this class is loaded).
+     * 
+     * @return epoch nanos
+     */
+    public static long epochNanos() {
+        return System.nanoTime() + EPOCH_NANOS_OFFSET;
+    }
+
     public static void close(Closeable c) {
         if (c != null) {
             try {
@@ -71,6 +128,37 @@ public final class Util {
         }
     }
 
+    /**
+     * Reads and discards the rest of {@code in} (at most {@code maxBytes}) and
+     * then closes it. An HTTP response stream that has been read to the end is
+     * returned to the JDK keep-alive cache on close so that its connection can
+     * be reused, otherwise the connection is closed.
+     * 
+     * @param in
+     *            stream to drain, may be null
+     * @param maxBytes
+     *            maximum number of bytes to read
+     */
+    public static void drainAndClose(InputStream in, int maxBytes) {
+        if (in == null) {
+            return;
+        }
+        try {
+            byte[] b = new byte[Math.min(maxBytes, 4096)];
+            int total = 0;
+            while (total < maxBytes) {
+                int n = in.read(b, 0, Math.min(b.length, maxBytes - total));
+                if (n == -1) {
+                    break;
+                }
+                total += n;
+            }
+        } catch (IOException e) {
+            // the connection will not be reused
+        }
+        close(in);
+    }
+
     // copied from DataInputStream so don't need to instantiate one
     public static void readFully(InputStream in, byte b[], int off, int len) throws IOException {
         if (len < 0) {
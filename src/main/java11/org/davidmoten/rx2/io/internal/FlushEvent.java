@@ -0,0 +1,25 @@
+package org.davidmoten.rx2.io.internal;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("org.davidmoten.rx2.http.Flush")
+@Label("Stream Flush")
+@Description("Server flushed a stream to the client, only slow flushes are recorded by default")
+@Category("rxjava2-http")
+@StackTrace(false)
+@Threshold("10 ms")
+final class FlushEvent extends Event {
+
+    @Label("Stream Id")
+    long id;
+
+    @Label("Cause")
+    String cause;
+
+}
@@ -0,0 +1,23 @@
+package org.davidmoten.rx2.io.internal;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("org.davidmoten.rx2.http.FrameRead")
+@Label("Frame Read")
+@Description("Client read a frame (including waiting for bytes), only slow reads are recorded")
+@Category("rxjava2-http")
+@StackTrace(false)
+@Threshold("20 ms")
+final class FrameReadEvent extends Event {
+
+    @Label("Length")
+    @Description("Item length, negative for an error frame")
+    int length;
+
+}
@@ -0,0 +1,99 @@
+package org.davidmoten.rx2.io.internal;
+
+import org.davidmoten.rx2.http.ServerMetrics.FlushCause;
+
+import jdk.jfr.EventType;
+
+/**
+ * Records JDK Flight Recorder events (this version is used on Java 11+). A
+ * {@code begin} method returns a token (null if the event is not being
+ * recorded so that nothing is allocated) that is passed to the matching
+ * {@code end} method. Duration events have default thresholds so that only
+ * slow operations are recorded.
+ */
+public final class Jfr {
+
+    private static final EventType SUBSCRIBE = EventType.getEventType(StreamSubscribeEvent.class);
+    private static final EventType FLUSH = EventType.getEventType(FlushEvent.class);
+    private static final EventType REQUEST_CALL = EventType.getEventType(RequestCallEvent.class);
+    private static final EventType FRAME = EventType.getEventType(FrameReadEvent.class);
+
+    private Jfr() {
+        // prevent instantiation
+    }
+
+    public static void streamSubscribed(long id, long request, Protocol protocol) {
+        if (SUBSCRIBE.isEnabled()) {
+            StreamSubscribeEvent event = new StreamSubscribeEvent();
+            event.id = id;
+            event.request = request;
+            event.version = protocol.version();
+            event.features = protocol.featuresHeader();
+            event.commit();
+        }
+    }
+
+    public static Object beginFlush() {
+        if (!FLUSH.isEnabled()) {
+            return null;
+        }
+        FlushEvent event = new FlushEvent();
+        event.begin();
+        return event;
+    }
+
+    public static void endFlush(Object token, long id, FlushCause cause) {
+        if (token != null) {
+            FlushEvent event = (FlushEvent) token;
+            event.end();
+            if (event.shouldCommit()) {
+                event.id = id;
+                event.cause = cause.name();
+                event.commit();
+            }
+        }
+    }
+
+    public static Object beginRequestCall() {
+        if (!REQUEST_CALL.isEnabled()) {
+            return null;
+        }
+        RequestCallEvent event = new RequestCallEvent();
+        event.begin();
+        return event;
+    }
+
+    public static void endRequestCall(Object token, long id, long n, boolean success) {
+        if (token != null) {
+            RequestCallEvent event = (RequestCallEvent) token;
+            event.end();
+            if (event.shouldCommit()) {
+                event.id = id;
+                event.n = n;
+                event.success = success;
+                event.commit();
+            }
+        }
+    }
+
+    public static Object beginFrame() {
+        if (!FRAME.isEnabled()) {
+            return null;
+        }
+        FrameReadEvent event = new FrameReadEvent();
+        event.begin();
+        return event;
+    }
+
+    public static void endFrame(Object token, int length) {
+        if (token != null) {
+            FrameReadEvent event = (FrameReadEvent) token;
+            event.end();
+            if (event.shouldCommit()) {
+                event.length = length;
+                event.commit();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,29 @@
+package org.davidmoten.rx2.io.internal;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("org.davidmoten.rx2.http.RequestCall")
+@Label("Request Call")
+@Description("Client request or cancel call to the server, only slow calls are recorded by default")
+@Category("rxjava2-http")
+@StackTrace(false)
+@Threshold("10 ms")
+final class RequestCallEvent extends Event {
+
+    @Label("Stream Id")
+    long id;
+
+    @Label("Requested")
+    @Description("Number requested, negative for a cancel call")
+    long n;
+
+    @Label("Success")
+    boolean success;
+
+}
@@ -0,0 +1,29 @@
+package org.davidmoten.rx2.io.internal;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("org.davidmoten.rx2.http.StreamSubscribe")
+@Label("Stream Subscribe")
+@Description("Server subscribed to a stream for a client")
+@Category("rxjava2-http")
+@StackTrace(false)
+final class StreamSubscribeEvent extends Event {
+
+    @Label("Stream Id")
+    long id;
+
+    @Label("Initial Request")
+    long request;
+
+    @Label("Protocol Version")
+    int version;
+
+    @Label("Protocol Features")
+    String features;
+
+}
@@ -1,11 +1,15 @@
 package org.davidmoten.rx2.http;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
 import org.davidmoten.rx2.io.Client;
 import org.davidmoten.rx2.io.Servers;
+import org.davidmoten.rx2.io.internal.AfterOnNextFactory;
+import org.davidmoten.rx2.io.ssl.Ssl;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.openjdk.jmh.annotations.AuxCounters;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.Level;
 import org.openjdk.jmh.annotations.Param;
@@ -15,51 +19,153 @@ import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.TearDown;
 
 import io.reactivex.Flowable;
-
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Localhost throughput over the server and client tuning options. Each
+ * invocation moves about {@link #BYTES_PER_INVOCATION} bytes split across
+ * {@link #streams} concurrent streams, so invocations for different item
+ * sizes and concurrency do similar work. Compare the {@code bytes} and
+ * {@code items} secondary results (per second) rather than the primary
+ * invocations per second.
+ *
+ * <p>
+ * The full matrix is large, narrow it with {@code -p}, for example
+ * {@code -p bytesPerItem=128,131072 -p tls=false -p streams=1}.
+ */
 @State(Scope.Benchmark)
 public class Benchmarks {
 
-    private static final int TOTAL_BYTES = 10 * 1024 * 1024;
-
-    @State(Scope.Thread)
-    public static class ServerHolder {
-
-        public Server server = null;
+    private static final int BYTES_PER_INVOCATION = 8 * 1024 * 1024;
+
+    // bounds the invocation time for small items
+    private static final int MAX_ITEMS_PER_INVOCATION = 65536;
+
+    @Param({ "2", "128", "2048", "32768", "131072" })
+    public int bytesPerItem;
+
+    /**
+     * Server flush policy: {@code item}, {@code items:<n>}, {@code bytes:<n>},
+     * {@code millis:<n>}, {@code adaptive} or {@code auto} (no flushes after
+     * items).
+     */
+    @Param({ "item", "items:64", "bytes:32768", "millis:1", "adaptive", "auto" })
+    public String flush;
+
+    @Param({ "false", "true" })
+    public boolean async;
+
+    /**
+     * {@code default} for {@link WriterFactory#DEFAULT} or {@code jetty} for
+     * {@link OptimizedJettyWriterFactory}.
+     */
+    @Param({ "default", "jetty" })
+    public String writer;
+
+    @Param({ "16", "256", "4096" })
+    public int requestBatch;
+
+    @Param({ "false", "true" })
+    public boolean tls;
+
+    @Param({ "1", "16", "256" })
+    public int streams;
+
+    private Server server;
+
+    private Flowable<ByteBuffer> stream;
+
+    private int itemsPerStream;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        int numItems = Math.min(BYTES_PER_INVOCATION / bytesPerItem, MAX_ITEMS_PER_INVOCATION);
+        itemsPerStream = Math.max(numItems / streams, 1);
+        byte[] item = new byte[bytesPerItem];
+        Response response = flush(Response //
+                .publisher(Flowable.<ByteBuffer>generate(
+                        emitter -> emitter.onNext(ByteBuffer.wrap(item)))) //
+                .async(async) //
+                .writerFactory(writerFactory(writer)), flush) //
+                .build();
+        Client.Builder client;
+        if (tls) {
+            server = Servers.createServerResponsesSsl(req -> response);
+            client = Client.get("https://localhost:" + port(server)) //
+                    .sslContext(Ssl.createTlsSslContext(Ssl.getTrustManagers()));
+        } else {
+            server = Servers.createServerResponses(req -> response);
+            client = Client.get("http://localhost:" + port(server));
+        }
+        stream = client //
+                .build() //
+                .rebatchRequests(requestBatch) //
+                .take(itemsPerStream);
+    }
 
-        // @Param({"128", "512", "2048", "8192", "32768", "65536", "131072" })
-        public int bytesPerItem = 131072;
+    @TearDown(Level.Trial)
+    public void shutdown() throws Exception {
+        if (server != null) {
+            server.stop();
+        }
+    }
 
-        public int batchSize;
+    /**
+     * Totals reported by JMH as rates alongside the primary result.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transferred {
 
-        public int numItems;
+        public long bytes;
 
-        @Setup
-        public void setup() throws Exception {
-            batchSize = Math.max(TOTAL_BYTES / bytesPerItem / 1024, 4);
-            numItems = TOTAL_BYTES / bytesPerItem;
-            System.out.println("bytesPerItem=" + bytesPerItem + ", batchSize=" + batchSize + ", numItems=" + numItems);
-            server = Servers.createServerAsync(Flowable.just(ByteBuffer.wrap(new byte[bytesPerItem])).repeat());
-            server.start();
-        }
+        public long items;
 
-        @TearDown(Level.Trial)
-        public void shutdown() throws Exception {
-            if (server != null) {
-                server.stop();
-            }
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+            items = 0;
         }
 
     }
 
     @Benchmark
-    public Long throughput(ServerHolder holder) {
-        return Client //
-                .get("http://localhost:" + port(holder.server)) //
-                .build() //
-                .rebatchRequests(holder.batchSize) //
-                .take(holder.numItems) //
-                .count() //
+    public long throughput(Transferred transferred) {
+        long items = Flowable.range(0, streams) //
+                .flatMapSingle(i -> stream.count().subscribeOn(Schedulers.io()), false, streams) //
+                .reduce(0L, (a, b) -> a + b) //
                 .blockingGet();
+        transferred.items += items;
+        transferred.bytes += items * bytesPerItem;
+        return items;
+    }
+
+    private static Response.Builder flush(Response.Builder b, String flush) {
+        if (flush.equals("item")) {
+            return b.flushAfterItems(1);
+        } else if (flush.equals("auto")) {
+            return b.autoFlush();
+        } else if (flush.equals("adaptive")) {
+            return b.afterOnNextFactory(AfterOnNextFactory.adaptive());
+        } else if (flush.startsWith("items:")) {
+            return b.flushAfterItems(Integer.parseInt(flush.substring(6)));
+        } else if (flush.startsWith("bytes:")) {
+            return b.flushAfterBytes(Integer.parseInt(flush.substring(6)));
+        } else if (flush.startsWith("millis:")) {
+            return b.flushAfterMillis(Long.parseLong(flush.substring(7)));
+        } else {
+            throw new IllegalArgumentException("unknown flush policy: " + flush);
+        }
+    }
+
+    private static WriterFactory writerFactory(String writer) {
+        if (writer.equals("default")) {
+            return WriterFactory.DEFAULT;
+        } else if (writer.equals("jetty")) {
+            return OptimizedJettyWriterFactory.INSTANCE;
+        } else {
+            throw new IllegalArgumentException("unknown writer: " + writer);
+        }
     }
 
     private static int port(Server server) {
@@ -67,14 +173,22 @@ public class Benchmarks {
     }
 
     public static void main(String[] args) throws Exception {
-        ServerHolder holder = new ServerHolder();
-        holder.setup();
-        Client //
-                .get("http://localhost:" + port(holder.server)) //
-                .build() //
-                .rebatchRequests(holder.batchSize) //
-                .take(Long.MAX_VALUE) //
-                .count() //
-                .blockingGet();
+        Benchmarks b = new Benchmarks();
+        b.bytesPerItem = 2048;
+        b.flush = "item";
+        b.async = true;
+        b.writer = "default";
+        b.requestBatch = 256;
+        b.tls = true;
+        b.streams = 16;
+        b.setup();
+        try {
+            long start = System.nanoTime();
+            long items = b.throughput(new Transferred());
+            long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            System.out.println("items=" + items + ", ms=" + ms);
+        } finally {
+            b.shutdown();
+        }
     }
 }
@@ -0,0 +1,72 @@
+package org.davidmoten.rx2.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.davidmoten.rx2.io.BufferPool;
+import org.davidmoten.rx2.io.internal.FlowableFromInputStream;
+import org.davidmoten.rx2.io.internal.Protocol;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Decodes an in-memory stream so that client read path costs can be measured
+ * without the network. Run with {@code -prof gc} and compare
+ * {@code gc.alloc.rate.norm} (bytes allocated per item) with and without the
+ * buffer pool.
+ */
+@State(Scope.Thread)
+public class ClientReadBenchmarks {
+
+    private static final int NUM_ITEMS = 10000;
+
+    @Param({ "128", "512" })
+    public int bytesPerItem;
+
+    @Param({ "false", "true" })
+    public boolean pooled;
+
+    private byte[] stream;
+
+    private BufferPool pool;
+
+    @Setup
+    public void setup() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer w = Writer.createDefault(bytes);
+        w.writeLong(1);
+        byte[] item = new byte[bytesPerItem];
+        for (int i = 0; i < NUM_ITEMS; i++) {
+            w.writeInt(item.length);
+            w.write(item);
+        }
+        w.writeInt(Integer.MIN_VALUE);
+        stream = bytes.toByteArray();
+        pool = pooled ? BufferPool.create() : null;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_ITEMS)
+    public long read() {
+        long[] sum = new long[1];
+        new FlowableFromInputStream(new ByteArrayInputStream(stream), (id, r) -> {
+        }, pool, true, Protocol.DEFAULT) //
+                .subscribe(bb -> sum[0] += bb.remaining());
+        return sum[0];
+    }
+
+    public static void main(String[] args) throws IOException {
+        ClientReadBenchmarks b = new ClientReadBenchmarks();
+        b.bytesPerItem = 128;
+        b.pooled = true;
+        b.setup();
+        System.out.println(b.read());
+    }
+
+}
@@ -0,0 +1,46 @@
+package org.davidmoten.rx2.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import io.reactivex.Flowable;
+
+public class DictionariesTest {
+
+    @Test
+    public void testFromSamplesConcatenates() {
+        ByteBuffer a = ByteBuffer.wrap(new byte[] { 9, 1, 2 }, 1, 2);
+        ByteBuffer b = ByteBuffer.wrap(new byte[] { 3 });
+        assertArrayEquals(new byte[] { 1, 2, 3 }, Dictionaries.fromSamples(Arrays.asList(a, b)));
+        assertEquals(1, a.position());
+    }
+
+    @Test
+    public void testFromSamplesKeepsLast32KB() {
+        byte[] first = new byte[30000];
+        byte[] second = new byte[30000];
+        second[29999] = 5;
+        first[29999] = 4;
+        byte[] d = Dictionaries.fromSamples(
+                Arrays.asList(ByteBuffer.wrap(first), ByteBuffer.wrap(second)));
+        assertEquals(32768, d.length);
+        assertEquals(5, d[32767]);
+        assertEquals(4, d[32768 - 30001]);
+    }
+
+    @Test
+    public void testFromFirst() {
+        Flowable<ByteBuffer> items = Flowable.range(1, 10) //
+                .map(i -> ByteBuffer.wrap(new byte[] { i.byteValue() }));
+        Dictionaries.fromFirst(items, 3) //
+                .test() //
+                .assertValue(d -> Arrays.equals(new byte[] { 1, 2, 3 }, d)) //
+                .assertComplete();
+    }
+
+}
@@ -0,0 +1,67 @@
+package org.davidmoten.rx2.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class WriterTest {
+
+    @Test
+    public void testWriteIntAndLong() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Writer w = Writer.createDefault(out);
+        w.writeLong(2);
+        w.writeInt(Integer.MIN_VALUE);
+        assertArrayEquals(new byte[] { 0, 0, 0, 0, 0, 0, 0, 2, -128, 0, 0, 0 }, out.toByteArray());
+    }
+
+    @Test
+    public void testWriteFrameSmallHeapBuffer() throws IOException {
+        checkWriteFrame(ByteBuffer.wrap(new byte[] { 9, 1, 2, 3 }, 1, 3), new byte[] { 1, 2, 3 });
+    }
+
+    @Test
+    public void testWriteFrameSmallDirectBuffer() throws IOException {
+        ByteBuffer bb = ByteBuffer.allocateDirect(3);
+        bb.put(new byte[] { 1, 2, 3 });
+        bb.flip();
+        checkWriteFrame(bb, new byte[] { 1, 2, 3 });
+    }
+
+    @Test
+    public void testWriteFrameLargerThanStagingBuffer() throws IOException {
+        byte[] bytes = new byte[100000];
+        bytes[bytes.length - 1] = 7;
+        checkWriteFrame(ByteBuffer.wrap(bytes), bytes);
+    }
+
+    @Test
+    public void testWriteLargeDirectBuffer() throws IOException {
+        ByteBuffer bb = ByteBuffer.allocateDirect(20000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Writer.createDefault(out).write(bb);
+        assertEquals(20000, out.size());
+        assertEquals(0, bb.position());
+    }
+
+    private static void checkWriteFrame(ByteBuffer bb, byte[] expectedPayload) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Writer w = Writer.createDefault(out);
+        int position = bb.position();
+        w.writeFrame(new byte[] { 5, 6, 0, 0 }, 2, bb);
+        assertEquals(position, bb.position());
+        byte[] b = out.toByteArray();
+        assertEquals(2 + expectedPayload.length, b.length);
+        assertEquals(5, b[0]);
+        assertEquals(6, b[1]);
+        byte[] payload = new byte[expectedPayload.length];
+        System.arraycopy(b, 2, payload, 0, payload.length);
+        assertArrayEquals(expectedPayload, payload);
+    }
+
+}
@@ -0,0 +1,68 @@
+package org.davidmoten.rx2.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testAcquireRoundsUpToSizeClass() {
+        BufferPool pool = BufferPool.create();
+        ByteBuffer bb = pool.acquire(100);
+        assertEquals(0, bb.position());
+        assertEquals(100, bb.limit());
+        assertEquals(128, bb.capacity());
+        assertEquals(64, pool.acquire(0).capacity());
+    }
+
+    @Test
+    public void testReleasedBufferIsReused() {
+        BufferPool pool = BufferPool.create();
+        ByteBuffer bb = pool.acquire(100);
+        bb.position(10);
+        pool.release(bb);
+        ByteBuffer bb2 = pool.acquire(120);
+        assertSame(bb, bb2);
+        assertEquals(0, bb2.position());
+        assertEquals(120, bb2.limit());
+    }
+
+    @Test
+    public void testLargeBuffersAreNotPooled() {
+        BufferPool pool = BufferPool.create(1024, 4);
+        ByteBuffer bb = pool.acquire(1025);
+        assertEquals(1025, bb.capacity());
+        pool.release(bb);
+        assertNotSame(bb, pool.acquire(1025));
+    }
+
+    @Test
+    public void testPoolIsBounded() {
+        BufferPool pool = BufferPool.create(1024, 1);
+        ByteBuffer a = pool.acquire(100);
+        ByteBuffer b = pool.acquire(100);
+        pool.release(a);
+        pool.release(b);
+        assertSame(a, pool.acquire(100));
+        assertNotSame(b, pool.acquire(100));
+    }
+
+    @Test
+    public void testReleaseForeignBufferIgnored() {
+        BufferPool pool = BufferPool.create();
+        pool.release(ByteBuffer.allocate(100));
+        pool.release(ByteBuffer.allocateDirect(128));
+        assertEquals(128, pool.acquire(100).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCreateWithZeroMaxSizeThrows() {
+        BufferPool.create(0, 1);
+    }
+
+}
@@ -1,31 +1,61 @@
 package org.davidmoten.rx2.io;
 
 import static org.davidmoten.rx2.io.Servers.createServerAsync;
+import static org.davidmoten.rx2.io.Servers.createServerAsyncHttp2;
+import static org.davidmoten.rx2.io.Servers.createServerQuery;
+import static org.davidmoten.rx2.io.Servers.createServerResponses;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.davidmoten.rx2.http.Dictionaries;
+import org.davidmoten.rx2.http.Response;
+import org.davidmoten.rx2.http.ServerMetrics;
 import org.davidmoten.rx2.io.Client.Builder;
 import org.davidmoten.rx2.io.Client.Options;
 import org.davidmoten.rx2.io.Client.Requester;
+import org.davidmoten.rx2.io.internal.DuplexExchange;
 import org.davidmoten.rx2.io.internal.HttpMethod;
+import org.davidmoten.rx2.io.internal.Protocol;
 import org.davidmoten.rx2.io.internal.Util;
 import org.eclipse.jetty.http.HttpStatus;
+import org.eclipse.jetty.io.ConnectionStatistics;
+import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.junit.Test;
@@ -38,6 +68,7 @@ import com.github.davidmoten.junit.Asserts;
 import io.reactivex.Flowable;
 import io.reactivex.Single;
 import io.reactivex.functions.BiConsumer;
+import io.reactivex.functions.Consumer;
 import io.reactivex.schedulers.Schedulers;
 import io.reactivex.subscribers.TestSubscriber;
 
@@ -89,6 +120,185 @@ public class ClientTest {
         }
     }
 
+    @Test
+    public void testProtocolNegotiated() throws Exception {
+        System.out.println("testProtocolNegotiated");
+        Server server = createServerResponses(
+                req -> Response.publisher(SOURCE).batch(true).build());
+        try {
+            HttpURLConnection con = (HttpURLConnection) new URL(
+                    "http://localhost:" + port(server) + "/").openConnection();
+            con.setRequestProperty(Protocol.VERSION_HEADER, "99");
+            con.setRequestProperty(Protocol.FEATURES_HEADER, "batch,unknown");
+            assertEquals(String.valueOf(Protocol.MAX_VERSION),
+                    con.getHeaderField(Protocol.VERSION_HEADER));
+            assertEquals("batch", con.getHeaderField(Protocol.FEATURES_HEADER));
+            con.getInputStream().close();
+        } finally {
+            // Stop Server
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testBatchNotNegotiatedByDefault() throws Exception {
+        System.out.println("testBatchNotNegotiatedByDefault");
+        Server server = createServerAsync(SOURCE);
+        try {
+            HttpURLConnection con = (HttpURLConnection) new URL(
+                    "http://localhost:" + port(server) + "/").openConnection();
+            con.setRequestProperty(Protocol.VERSION_HEADER, "99");
+            con.setRequestProperty(Protocol.FEATURES_HEADER, "batch");
+            assertEquals("", con.getHeaderField(Protocol.FEATURES_HEADER));
+            con.getInputStream().close();
+        } finally {
+            // Stop Server
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testAdaptiveRequests() throws Exception {
+        System.out.println("testAdaptiveRequests");
+        Flowable<ByteBuffer> flowable = Flowable.range(1, 10000) //
+                .map(i -> ByteBuffer.wrap(Util.toBytes(i)));
+        Server server = createServerAsync(flowable);
+        try {
+            get(server) //
+                    .adaptiveRequests(4, 256) //
+                    .build() //
+                    .map(bb -> bb.getInt()) //
+                    .test() //
+                    .awaitDone(30, TimeUnit.SECONDS) //
+                    .assertValueCount(10000) //
+                    .assertValueAt(9999, 10000) //
+                    .assertComplete();
+        } finally {
+            // Stop Server
+            server.stop();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAdaptiveRequestsWithBuffersReleasedAfterOnNextThrows() {
+        System.out.println("testAdaptiveRequestsWithBuffersReleasedAfterOnNextThrows");
+        // the window queues items so they would be reused before being read
+        Client.get("http://blah") //
+                .bufferPool(BufferPool.create(), true) //
+                .adaptiveRequests() //
+                .build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAdaptiveRequestsWithDuplexThrows() {
+        System.out.println("testAdaptiveRequestsWithDuplexThrows");
+        // credits sent in the subscribe call are not timed
+        Client.get("http://blah") //
+                .duplex() //
+                .adaptiveRequests() //
+                .build();
+    }
+
+    @Test
+    public void testAdaptiveRequestsWithBufferPool() throws Exception {
+        System.out.println("testAdaptiveRequestsWithBufferPool");
+        Flowable<ByteBuffer> flowable = Flowable.range(1, 10000) //
+                .map(i -> ByteBuffer.wrap(Util.toBytes(i)));
+        Server server = createServerAsync(flowable);
+        BufferPool pool = BufferPool.create();
+        try {
+            get(server) //
+                    .bufferPool(pool) //
+                    .adaptiveRequests(4, 256) //
+                    .build() //
+                    .map(bb -> {
+                        int n = bb.getInt();
+                        pool.release(bb);
+                        return n;
+                    }) //
+                    .test() //
+                    .awaitDone(30, TimeUnit.SECONDS) //
+                    .assertValueSequence(
+                            Flowable.range(1, 10000).toList().blockingGet()) //
+                    .assertComplete();
+        } finally {
+            // Stop Server
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testCompressed() throws Exception {
+        System.out.println("testCompressed");
+        Flowable<ByteBuffer> flowable = Flowable.range(1, 2000) //
+                .map(i -> {
+                    ByteBuffer bb = ByteBuffer.allocate(200);
+                    bb.putInt(0, i);
+                    return bb;
+                });
+        checkCompressed(flowable, 2000);
+    }
+
+    @Test
+    public void testCompressedIncompressibleItems() throws Exception {
+        System.out.println("testCompressedIncompressibleItems");
+        Random random = new Random(1);
+        Flowable<ByteBuffer> flowable = Flowable.range(1, 500) //
+                .map(i -> {
+                    byte[] b = new byte[1000];
+                    random.nextBytes(b);
+                    ByteBuffer bb = ByteBuffer.wrap(b);
+                    bb.putInt(0, i);
+                    return bb;
+                });
+        checkCompressed(flowable, 500);
+    }
+
+    @Test
+    public void testCompressedWithDictionary() throws Exception {
+        System.out.println("testCompressedWithDictionary");
+        Flowable<ByteBuffer> flowable = Flowable.range(1, 2000) //
+                .map(i -> ByteBuffer.wrap(("{\"index\":" + i + ",\"name\":\"something\"}")
+                        .getBytes(StandardCharsets.UTF_8)));
+        ServletAsync.dictionary = Dictionaries.fromFirst(flowable, 10).blockingGet();
+        try {
+            Server server = createServerAsync(flowable);
+            try {
+                get(server) //
+                        .build() //
+                        .map(bb -> new String(bb.array(), bb.arrayOffset() + bb.position(),
+                                bb.remaining(), StandardCharsets.UTF_8)) //
+                        .test() //
+                        .awaitDone(10, TimeUnit.SECONDS) //
+                        .assertValueCount(2000) //
+                        .assertValueAt(1999, "{\"index\":2000,\"name\":\"something\"}") //
+                        .assertComplete();
+            } finally {
+                // Stop Server
+                server.stop();
+            }
+        } finally {
+            ServletAsync.dictionary = null;
+        }
+    }
+
+    private static void checkCompressed(Flowable<ByteBuffer> flowable, int n) throws Exception {
+        Server server = createServerAsync(flowable, true);
+        try {
+            get(server) //
+                    .build() //
+                    .map(bb -> bb.getInt()) //
+                    .test() //
+                    .awaitDone(10, TimeUnit.SECONDS) //
+                    .assertValueCount(n) //
+                    .assertValueAt(n - 1, n) //
+                    .assertComplete();
+        } finally {
+            // Stop Server
+            server.stop();
+        }
+    }
+
     @Test
     public void testRequestReturnsNon200ResponseCodeShouldEmitError() throws Exception {
         // TODO
@@ -145,6 +355,25 @@ public class ClientTest {
         }
     }
 
+    @Test
+    public void testBufferPoolReleaseAfterOnNext() throws Exception {
+        System.out.println("testBufferPoolReleaseAfterOnNext");
+        Server server = createServerAsync(Flowable.range(1, 1000).map(Serializer.javaIo()::serialize));
+        try {
+            get(server) //
+                    .bufferPool(BufferPool.create(), true) //
+                    .deserialized() //
+                    .reduce(0, (x, n) -> x + (Integer) n) //
+                    .test() //
+                    .awaitDone(10, TimeUnit.SECONDS) //
+                    .assertValue(500500) //
+                    .assertComplete();
+        } finally {
+            // Stop Server
+            server.stop();
+        }
+    }
+
     @Test
     public void testGetEmptyStream() throws Exception {
         System.out.println("testGetEmptyStream");
@@ -530,17 +759,39 @@ public class ClientTest {
     }
 
     @Test
-    public void testFlowableFactoryThrows() throws Exception {
-        System.out.println("testFlowableFactoryThrows");
-        Server server = createServerFlowableFactoryThrows();
+    public void testDuplexNegotiated() throws Exception {
+        System.out.println("testDuplexNegotiated");
+        Server server = createServerAsync(SOURCE);
+        try {
+            Map<String, String> headers = new HashMap<>();
+            headers.put(Protocol.VERSION_HEADER, "2");
+            headers.put(Protocol.FEATURES_HEADER, "duplex");
+            try (DuplexExchange exchange = DuplexExchange.open(
+                    new URL("http://localhost:" + port(server) + "/"), headers, null, 1000,
+                    1000)) {
+                assertEquals("duplex", exchange.header(Protocol.FEATURES_HEADER));
+            }
+        } finally {
+            // Stop Server
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testDuplex() throws Exception {
+        System.out.println("testDuplex");
+        Flowable<ByteBuffer> flowable = Flowable.range(1, 1000).map(Serializer.javaIo()::serialize);
+        Server server = createServerAsync(flowable);
         try {
             get(server) //
-                    .build() //
-                    .reduce(0, (x, bb) -> x + bb.remaining()) //
+                    .duplex() //
+                    .<Integer>deserialized() //
+                    .rebatchRequests(100) //
                     .test() //
                     .awaitDone(10, TimeUnit.SECONDS) //
-                    .assertNoValues() //
-                    .assertError(e -> e.getMessage().startsWith("java.lang.RuntimeException: boo"));
+                    .assertValueCount(1000) //
+                    .assertValueAt(999, 1000) //
+                    .assertComplete();
         } finally {
             // Stop Server
             server.stop();
@@ -548,89 +799,1042 @@ public class ClientTest {
     }
 
     @Test
-    public void testSimpleGet() throws Exception {
-        System.out.println("testSimpleGet");
-        Server server = createServerAsync(SOURCE);
+    public void testDuplexBackpressureAndCancel() throws Exception {
+        System.out.println("testDuplexBackpressureAndCancel");
+        List<Long> requests = new CopyOnWriteArrayList<>();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Flowable<ByteBuffer> flowable = Flowable.range(1, 1000) //
+                .map(Serializer.javaIo()::serialize) //
+                .doOnRequest(n -> requests.add(n)) //
+                .doOnCancel(() -> cancelled.set(true));
+        Server server = createServerAsync(flowable);
         try {
-            // Start Server
-            server.start();
-            HttpURLConnection con = (HttpURLConnection) new URL(
-                    "http://localhost:" + port(server) + "/?r=100").openConnection();
-            con.setRequestMethod("GET");
-            con.setUseCaches(false);
-            InputStream in = con.getInputStream();
-            byte[] bytes = new byte[8192];
-            int count = 0;
-            int n;
-            ByteArrayOutputStream b = new ByteArrayOutputStream();
-            while ((n = in.read(bytes)) != -1) {
-                count += n;
-                b.write(bytes, 0, n);
-            }
-            in.close();
-            System.out.println(Arrays.toString(b.toByteArray()));
-            assertEquals(27, count);
+            TestSubscriber<Integer> ts = get(server) //
+                    .duplex() //
+                    .<Integer>deserialized() //
+                    .test(0);
+            Thread.sleep(300);
+            ts.assertNoValues() //
+                    .assertNotTerminated();
+            assertEquals(Arrays.asList(), requests);
+            ts.requestMore(1);
+            Thread.sleep(300);
+            ts.assertValue(1);
+            assertEquals(Arrays.asList(1L), requests);
+            ts.requestMore(2);
+            Thread.sleep(300);
+            ts.assertValues(1, 2, 3);
+            ts.cancel();
+            Thread.sleep(300);
+            assertTrue(cancelled.get());
         } finally {
+            // Stop Server
             server.stop();
         }
     }
 
-    @Test(expected = IllegalArgumentException.class)
-    public void testClientNegativeTimeoutThrows() {
-        System.out.println("testClientNegativeTimeoutThrows");
-        Client.get("http://blah").connectTimeoutMs(-1);
+    @Test
+    public void testDuplexFallsBackToRequestCalls() throws Exception {
+        System.out.println("testDuplexFallsBackToRequestCalls");
+        Flowable<ByteBuffer> flowable = Flowable.range(1, 1000).map(Serializer.javaIo()::serialize);
+        // a blocking server cannot read credits
+        Server server = createServerSync(flowable);
+        try {
+            get(server) //
+                    .duplex() //
+                    .<Integer>deserialized() //
+                    .skip(500) //
+                    .take(4) //
+                    .test() //
+                    .awaitDone(10, TimeUnit.SECONDS) //
+                    .assertResult(501, 502, 503, 504);
+        } finally {
+            // Stop Server
+            server.stop();
+        }
     }
 
     @Test(expected = IllegalArgumentException.class)
-    public void testClientNegativeReadTimeoutThrows() {
-        System.out.println("testClientNegativeReadTimeoutThrows");
-        Client.get("http://blah").readTimeoutMs(-1);
+    public void testDuplexWithProxyThrows() {
+        Client.get("http://localhost:8080/").duplex().proxy("localhost", 8081).build();
     }
 
-    @Test(expected = NullPointerException.class)
-    public void testClientProxyNullThrows() {
-        System.out.println("testClientProxyNullThrows");
-        Client.get("http://blah").proxy(null);
+    @Test
+    public void testSlowClientDoesNotBlockServerThreads() throws Exception {
+        System.out.println("testSlowClientDoesNotBlockServerThreads");
+        AtomicLong requested = new AtomicLong();
+        Flowable<ByteBuffer> flowable = Flowable.range(1, 1000000) //
+                .map(i -> ByteBuffer.wrap(new byte[1000])) //
+                .doOnRequest(n -> requested.addAndGet(n));
+        Server server = createServerAsync(flowable);
+        try {
+            // request everything but never read the response
+            HttpURLConnection con = (HttpURLConnection) new URL(
+                    "http://localhost:" + port(server) + "/?r=" + Long.MAX_VALUE)
+                            .openConnection();
+            con.getInputStream();
+            Thread.sleep(1000);
+            for (Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces()
+                    .entrySet()) {
+                for (StackTraceElement e : entry.getValue()) {
+                    assertTrue("thread blocked writing: " + entry.getKey().getName(),
+                            !e.getMethodName().equals("drainLoop"));
+                }
+            }
+            // items are only requested from upstream as they are written
+            assertTrue("requested=" + requested.get(), requested.get() < 100000);
+            con.disconnect();
+        } finally {
+            server.stop();
+        }
     }
 
-    @Test(expected = NullPointerException.class)
-    public void testClientProxyNullHostThrows() {
-        System.out.println("testClientProxyNullHostThrows");
-        Client.get("http://blah").proxy(null, 8080);
+    @Test
+    public void testIdleStreamsAreCancelled() throws Exception {
+        System.out.println("testIdleStreamsAreCancelled");
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Server server = createServerResponses(req -> Response //
+                .publisher(Flowable.<ByteBuffer>never().doOnCancel(() -> cancelled.set(true))) //
+                .idleTimeout(300, TimeUnit.MILLISECONDS) //
+                .build());
+        try {
+            // a client that has gone without cancelling
+            HttpURLConnection con = (HttpURLConnection) new URL(
+                    "http://localhost:" + port(server) + "/?r=10").openConnection();
+            InputStream in = con.getInputStream();
+            long start = System.currentTimeMillis();
+            // the response ends after the id
+            Util.readFully(in, new byte[8], 0, 8);
+            assertEquals(-1, in.read());
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("elapsed=" + elapsed, elapsed >= 250 && elapsed < 5000);
+            assertTrue(cancelled.get());
+        } finally {
+            server.stop();
+        }
     }
 
-    @Test(expected = IllegalArgumentException.class)
-    public void testClientProxyNegativePortThrows() {
-        System.out.println("testClientProxyNegativePortThrows");
-        Client.get("http://blah").proxy("proxy", -1);
+    @Test
+    public void testActiveStreamsAreNotCancelledWhenIdleTimeoutSet() throws Exception {
+        System.out.println("testActiveStreamsAreNotCancelledWhenIdleTimeoutSet");
+        Server server = createServerResponses(req -> Response //
+                .publisher(Flowable.interval(100, TimeUnit.MILLISECONDS).take(10)
+                        .map(Serializer.javaIo()::serialize)) //
+                .idleTimeout(300, TimeUnit.MILLISECONDS) //
+                .build());
+        try {
+            get(server) //
+                    .<Long>deserialized() //
+                    .test() //
+                    .awaitDone(10, TimeUnit.SECONDS) //
+                    .assertValueCount(10) //
+                    .assertComplete();
+        } finally {
+            server.stop();
+        }
     }
 
     @Test
-    public void testClientValidProxyDoesNotThrow() {
-        System.out.println("testClientValidProxyDoesNotThrow");
-        Client.get("http://blah").proxy("proxy", 8080);
-    }
-    
-    @Test(expected = NullPointerException.class)
-    public void testRequestHeaderNullThrows() {
-        System.out.println("testRequestHeaderNullThrows");
-        Client.get("http://blah").requestHeader(null, "a");
-    }
-    
-    @Test(expected = NullPointerException.class)
-    public void testRequestHeaderNullValueThrows() {
-        System.out.println("testRequestHeaderNullValueThrows");
-        Client.get("http://blah").requestHeader("a", null);
-    }
+    public void testMetricsReportedByServerAndClient() throws Exception {
+        System.out.println("testMetricsReportedByServerAndClient");
+        AtomicLong serverItems = new AtomicLong();
+        AtomicLong serverBytes = new AtomicLong();
+        AtomicLong serverRequested = new AtomicLong();
+        CountDownLatch serverCompleted = new CountDownLatch(1);
+        ServerMetrics serverMetrics = new ServerMetrics() {
 
+            @Override
+            public void requested(long id, long n) {
+                serverRequested.addAndGet(n);
+            }
 
-    @Test
-    public void testRequesterNon200ResponseCode() throws Exception {
-        System.out.println("testRequesterNon200ResponseCode");
-        Requester r = new Client.Requester("http://localhost/doesNotExist",
-                new Options(HttpMethod.GET, 1000, 1000, Collections.emptyMap(), null,
-                        Collections.emptyList(), null, Schedulers.trampoline()));
-        r.accept(1L, 1L);
+            @Override
+            public void written(long id, int items, long bytes) {
+                serverItems.addAndGet(items);
+                serverBytes.addAndGet(bytes);
+            }
+
+            @Override
+            public void streamCompleted(long id) {
+                serverCompleted.countDown();
+            }
+        };
+        Server server = createServerResponses(req -> Response //
+                .publisher(Flowable.range(1, 10) //
+                        .map(i -> ByteBuffer.wrap(new byte[] { 1, 2, 3 }))) //
+                .metrics(serverMetrics) //
+                .build());
+        try {
+            List<String> events = new CopyOnWriteArrayList<>();
+            AtomicLong clientBytes = new AtomicLong();
+            List<Long> requestCalls = new CopyOnWriteArrayList<>();
+            CountDownLatch requestCallsDone = new CountDownLatch(2);
+            ClientMetrics clientMetrics = new ClientMetrics() {
+
+                @Override
+                public void streamOpened() {
+                    events.add("opened");
+                }
+
+                @Override
+                public void streamCompleted() {
+                    events.add("completed");
+                }
+
+                @Override
+                public void itemRead(int bytes) {
+                    clientBytes.addAndGet(bytes);
+                }
+
+                @Override
+                public void requestCall(long n, long latencyNanos) {
+                    assertTrue(latencyNanos > 0);
+                    requestCalls.add(n);
+                    requestCallsDone.countDown();
+                }
+            };
+            TestSubscriber<ByteBuffer> ts = get(server) //
+                    .metrics(clientMetrics) //
+                    .build() //
+                    .test(0);
+            ts.requestMore(4);
+            ts.awaitCount(4);
+            ts.requestMore(7);
+            ts.awaitDone(10, TimeUnit.SECONDS) //
+                    .assertValueCount(10) //
+                    .assertComplete();
+            assertTrue(requestCallsDone.await(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList(4L, 7L), requestCalls);
+            assertEquals(Arrays.asList("opened", "completed"), events);
+            assertEquals(30, clientBytes.get());
+            assertTrue(serverCompleted.await(10, TimeUnit.SECONDS));
+            assertEquals(10, serverItems.get());
+            assertEquals(30, serverBytes.get());
+            assertEquals(11, serverRequested.get());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testTracedItemLatencies() throws Exception {
+        System.out.println("testTracedItemLatencies");
+        Server server = createServerResponses(req -> Response //
+                .publisher(Flowable.range(0, 100) //
+                        .map(i -> ByteBuffer.wrap(new byte[] { (byte) i.intValue() }))) //
+                .flushAfterItems(7) //
+                .trace(10) //
+                .build());
+        try {
+            List<long[]> items = new CopyOnWriteArrayList<>();
+            AtomicReference<Latency> latency = new AtomicReference<>();
+            ClientMetrics clientMetrics = new ClientMetrics() {
+
+                @Override
+                public void itemLatency(long queueNanos, long flushDelayNanos,
+                        long networkNanos) {
+                    items.add(new long[] { queueNanos, flushDelayNanos, networkNanos });
+                }
+
+                @Override
+                public void streamLatency(Latency lat) {
+                    latency.set(lat);
+                }
+            };
+            List<Integer> values = get(server) //
+                    .metrics(clientMetrics) //
+                    .build() //
+                    .map(bb -> (int) bb.get()) //
+                    .toList() //
+                    .timeout(10, TimeUnit.SECONDS) //
+                    .blockingGet();
+            assertEquals(100, values.size());
+            for (int i = 0; i < values.size(); i++) {
+                assertEquals(i, (int) values.get(i));
+            }
+            // items 0, 10, ..., 90 are traced
+            assertEquals(10, items.size());
+            for (long[] item : items) {
+                // the client and server share a clock
+                assertTrue(item[0] >= 0);
+                assertTrue(item[1] >= 0);
+                assertTrue(item[2] >= 0);
+            }
+            Latency lat = latency.get();
+            assertEquals(10, lat.total().count());
+            assertEquals(10, lat.network().count());
+            assertTrue(lat.total().percentile(50) <= lat.total().max());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testStalledClientIsEvictedSync() throws Exception {
+        System.out.println("testStalledClientIsEvictedSync");
+        checkStalledClientIsEvicted(false);
+    }
+
+    @Test
+    public void testStalledClientIsEvictedAsync() throws Exception {
+        System.out.println("testStalledClientIsEvictedAsync");
+        checkStalledClientIsEvicted(true);
+    }
+
+    private static void checkStalledClientIsEvicted(boolean async) throws Exception {
+        CountDownLatch stalled = new CountDownLatch(1);
+        CountDownLatch cancelled = new CountDownLatch(1);
+        ServerMetrics metrics = new ServerMetrics() {
+
+            @Override
+            public void streamStalled(long id, long stalledMs) {
+                assertEquals(300, stalledMs);
+                stalled.countDown();
+            }
+
+            @Override
+            public void streamCancelled(long id) {
+                cancelled.countDown();
+            }
+        };
+        Server server = createServerResponses(req -> Response //
+                .publisher(Flowable.generate(emitter -> emitter.onNext(ByteBuffer.allocate(65536))))
+                .async(async) //
+                .stallTimeout(300, TimeUnit.MILLISECONDS) //
+                .metrics(metrics) //
+                .build());
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(4096);
+            socket.connect(new InetSocketAddress("localhost", port(server)));
+            // request plenty and never read
+            socket.getOutputStream().write(("GET /?r=1000000 HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            assertTrue(stalled.await(10, TimeUnit.SECONDS));
+            // the writer has been released
+            assertTrue(cancelled.await(10, TimeUnit.SECONDS));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testQuietStreamDoesNotStall() throws Exception {
+        System.out.println("testQuietStreamDoesNotStall");
+        AtomicBoolean stalled = new AtomicBoolean();
+        ServerMetrics metrics = new ServerMetrics() {
+
+            @Override
+            public void streamStalled(long id, long stalledMs) {
+                stalled.set(true);
+            }
+        };
+        Server server = createServerResponses(req -> Response //
+                .publisher(Flowable.just(ByteBuffer.wrap(new byte[] { 1 })) //
+                        .concatWith(Flowable.<ByteBuffer> empty() //
+                                .delay(600, TimeUnit.MILLISECONDS))) //
+                .stallTimeout(100, TimeUnit.MILLISECONDS) //
+                .metrics(metrics) //
+                .build());
+        try {
+            get(server).build() //
+                    .test() //
+                    .awaitDone(10, TimeUnit.SECONDS) //
+                    .assertValueCount(1) //
+                    .assertComplete();
+            assertFalse(stalled.get());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testStatsShowLiveStreams() throws Exception {
+        System.out.println("testStatsShowLiveStreams");
+        Server server = createServerResponses(req -> Response //
+                .publisher(Flowable.range(1, 100) //
+                        .map(i -> ByteBuffer.wrap(new byte[10])) //
+                        .concatWith(Flowable.never())) //
+                .build(), true);
+        try {
+            TestSubscriber<ByteBuffer> ts = get(server).build().test(0);
+            ts.requestMore(5);
+            ts.awaitCount(5);
+            // wait for the server to report the written items
+            String[] row = null;
+            long start = System.currentTimeMillis();
+            while (System.currentTimeMillis() - start < 10000) {
+                String[] lines = stats(server);
+                assertEquals(3, lines.length);
+                assertTrue(lines[0].startsWith("id\tageMs\trequested\temitted"));
+                assertTrue(lines[2].startsWith("total 1\t"));
+                row = lines[1].split("\t");
+                if (row[3].equals("5")) {
+                    break;
+                }
+                Thread.sleep(50);
+            }
+            assertEquals("5", row[2]);
+            assertEquals("5", row[3]);
+            assertEquals("50", row[4]);
+            assertEquals("0", row[5]);
+            assertEquals("0", row[6]);
+            assertTrue(Long.parseLong(row[7]) >= 0);
+            assertTrue(row[8], row[8].startsWith("127.0.0.1:"));
+            ts.cancel();
+            start = System.currentTimeMillis();
+            while (stats(server).length > 2 && System.currentTimeMillis() - start < 10000) {
+                Thread.sleep(50);
+            }
+            String[] lines = stats(server);
+            assertEquals(2, lines.length);
+            assertTrue(lines[1].startsWith("total 0\t"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static String[] stats(Server server) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) new URL(
+                "http://localhost:" + port(server) + "/?stats").openConnection();
+        try (InputStream in = con.getInputStream()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] b = new byte[8192];
+            int n;
+            while ((n = in.read(b)) != -1) {
+                bytes.write(b, 0, n);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        }
+    }
+
+    @Test
+    public void testHttp2StreamsShareOneConnection() throws Exception {
+        System.out.println("testHttp2StreamsShareOneConnection");
+        Flowable<ByteBuffer> flowable = Flowable.range(1, 1000).map(Serializer.javaIo()::serialize);
+        Server server = createServerAsyncHttp2(flowable);
+        ConnectionStatistics stats = new ConnectionStatistics();
+        server.getConnectors()[0].addBean(stats);
+        stats.start();
+        try (Http2Sessions sessions = Http2Sessions.create()) {
+            Flowable<Integer> f = get(server) //
+                    .http2(sessions) //
+                    .<Integer>deserialized() //
+                    .rebatchRequests(100) //
+                    .subscribeOn(Schedulers.io());
+            Flowable.range(1, 20) //
+                    .flatMap(i -> f.count().toFlowable()) //
+                    .test() //
+                    .awaitDone(20, TimeUnit.SECONDS) //
+                    .assertNoErrors() //
+                    .assertValueCount(20) //
+                    .assertNever(n -> n != 1000) //
+                    .assertComplete();
+            // one socket, counted twice because the server starts with an
+            // HTTP/1.1 connection that is replaced when it reads the HTTP/2
+            // preface
+            assertEquals(2, stats.getConnectionsTotal());
+        } finally {
+            // Stop Server
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testHttp2BackpressureAndCancel() throws Exception {
+        System.out.println("testHttp2BackpressureAndCancel");
+        List<Long> requests = new CopyOnWriteArrayList<>();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Flowable<ByteBuffer> flowable = Flowable.range(1, 1000) //
+                .map(Serializer.javaIo()::serialize) //
+                .doOnRequest(n -> requests.add(n)) //
+                .doOnCancel(() -> cancelled.set(true));
+        Server server = createServerAsyncHttp2(flowable);
+        try (Http2Sessions sessions = Http2Sessions.create()) {
+            TestSubscriber<Integer> ts = get(server) //
+                    .http2(sessions) //
+                    .<Integer>deserialized() //
+                    .test(0);
+            Thread.sleep(300);
+            ts.assertNoValues() //
+                    .assertNotTerminated();
+            assertEquals(Arrays.asList(), requests);
+            ts.requestMore(1);
+            Thread.sleep(300);
+            ts.assertValue(1);
+            assertEquals(Arrays.asList(1L), requests);
+            ts.requestMore(2);
+            Thread.sleep(300);
+            ts.assertValues(1, 2, 3);
+            ts.cancel();
+            Thread.sleep(300);
+            assertTrue(cancelled.get());
+        } finally {
+            // Stop Server
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testHttp2CreditsSentWhileWritingAreMerged() throws Exception {
+        System.out.println("testHttp2CreditsSentWhileWritingAreMerged");
+        Flowable<ByteBuffer> flowable = Flowable.range(1, 1000) //
+                .map(Serializer.javaIo()::serialize);
+        Server server = createServerAsyncHttp2(flowable);
+        try (Http2Sessions sessions = Http2Sessions.create()) {
+            TestSubscriber<Integer> ts = get(server) //
+                    .http2(sessions) //
+                    .<Integer>deserialized() //
+                    .test(0);
+            for (int i = 0; i < 1000; i++) {
+                ts.requestMore(1);
+            }
+            ts.awaitCount(1000) //
+                    .assertValueCount(1000) //
+                    .assertNoErrors();
+            ts.cancel();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMultiplexChannelsShareOneConnection() throws Exception {
+        System.out.println("testMultiplexChannelsShareOneConnection");
+        Server server = createServerQuery(ClientTest::rangeOfParameterN);
+        ConnectionStatistics stats = new ConnectionStatistics();
+        server.getConnectors()[0].addBean(stats);
+        stats.start();
+        try (Multiplexer mux = post(server).multiplex()) {
+            Flowable.range(1, 20) //
+                    .flatMap(i -> mux.<Integer>channel("n=" + i * 100, bb -> {
+                        return (Integer) Serializer.javaIo().deserialize(bb);
+                    }).count().toFlowable()) //
+                    .map(Long::intValue) //
+                    .sorted() //
+                    .test() //
+                    .awaitDone(20, TimeUnit.SECONDS) //
+                    .assertNoErrors() //
+                    .assertValueSequence(Flowable.range(1, 20).map(i -> i * 100)
+                            .blockingIterable()) //
+                    .assertComplete();
+            assertEquals(1, stats.getConnectionsTotal());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMultiplexSlowChannelDoesNotStallOthers() throws Exception {
+        System.out.println("testMultiplexSlowChannelDoesNotStallOthers");
+        Server server = createServerQuery(ClientTest::rangeOfParameterN);
+        try (Multiplexer mux = post(server).multiplex(64 * 1024)) {
+            TestSubscriber<ByteBuffer> slow = mux.channel("n=1000000").test(1);
+            mux.channel("n=10000") //
+                    .count() //
+                    .test() //
+                    .awaitDone(20, TimeUnit.SECONDS) //
+                    .assertValue(10000L) //
+                    .assertComplete();
+            slow.assertValueCount(1) //
+                    .assertNotTerminated();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMultiplexStalledConnectionIsEvicted() throws Exception {
+        System.out.println("testMultiplexStalledConnectionIsEvicted");
+        CountDownLatch stalled = new CountDownLatch(1);
+        ServerMetrics metrics = new ServerMetrics() {
+
+            @Override
+            public void streamStalled(long id, long stalledMs) {
+                stalled.countDown();
+            }
+        };
+        Server server = createServerResponses(req -> Response //
+                .publisher(Flowable.generate(emitter -> emitter.onNext(ByteBuffer.allocate(65536))))
+                .stallTimeout(300, TimeUnit.MILLISECONDS) //
+                .metrics(metrics) //
+                .build());
+        CountDownLatch release = new CountDownLatch(1);
+        try (Multiplexer mux = post(server).multiplex(64 * 1024)) {
+            // the subscriber stops taking items so the client stops reading
+            // once its buffer is full
+            TestSubscriber<ByteBuffer> ts = mux.channel("") //
+                    .doOnNext(bb -> release.await()) //
+                    .test(1000000);
+            assertTrue(stalled.await(10, TimeUnit.SECONDS));
+            release.countDown();
+            ts.awaitDone(10, TimeUnit.SECONDS) //
+                    .assertError(IOException.class);
+        } finally {
+            release.countDown();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMultiplexQuietChannelDoesNotStallWhileOthersWrite() throws Exception {
+        System.out.println("testMultiplexQuietChannelDoesNotStallWhileOthersWrite");
+        AtomicBoolean stalled = new AtomicBoolean();
+        ServerMetrics metrics = new ServerMetrics() {
+
+            @Override
+            public void streamStalled(long id, long stalledMs) {
+                stalled.set(true);
+            }
+        };
+        Server server = createServerResponses(req -> Response //
+                .publisher(rangeOfParameterN(req)) //
+                .stallTimeout(100, TimeUnit.MILLISECONDS) //
+                .metrics(metrics) //
+                .build());
+        try (Multiplexer mux = post(server).multiplex()) {
+            // requested one item so has nothing to write from then on
+            TestSubscriber<ByteBuffer> quiet = mux.channel("n=1000").test(1);
+            mux.channel("n=300000") //
+                    .count() //
+                    .test() //
+                    .awaitDone(20, TimeUnit.SECONDS) //
+                    .assertValue(300000L);
+            quiet.assertValueCount(1) //
+                    .assertNotTerminated();
+            assertFalse(stalled.get());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMultiplexCancelChannel() throws Exception {
+        System.out.println("testMultiplexCancelChannel");
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Server server = createServerQuery(req -> rangeOfParameterN(req) //
+                .doOnCancel(() -> cancelled.set(true)));
+        try (Multiplexer mux = post(server).multiplex()) {
+            TestSubscriber<ByteBuffer> ts = mux.channel("n=1000").test(2);
+            Thread.sleep(300);
+            ts.assertValueCount(2);
+            ts.cancel();
+            Thread.sleep(300);
+            assertTrue(cancelled.get());
+            // the connection is still usable
+            mux.channel("n=5") //
+                    .count() //
+                    .test() //
+                    .awaitDone(10, TimeUnit.SECONDS) //
+                    .assertValue(5L);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMultiplexChannelErrorIsolated() throws Exception {
+        System.out.println("testMultiplexChannelErrorIsolated");
+        Server server = createServerQuery(ClientTest::rangeOfParameterN);
+        try (Multiplexer mux = post(server).multiplex()) {
+            mux.channel("n=notANumber") //
+                    .test() //
+                    .awaitDone(10, TimeUnit.SECONDS) //
+                    .assertNoValues() //
+                    .assertError(RuntimeException.class);
+            mux.channel("n=5") //
+                    .count() //
+                    .test() //
+                    .awaitDone(10, TimeUnit.SECONDS) //
+                    .assertValue(5L);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMultiplexSyncServerEmitsError() throws Exception {
+        System.out.println("testMultiplexSyncServerEmitsError");
+        Server server = createServerSync(Flowable.empty());
+        try (Multiplexer mux = post(server).multiplex()) {
+            mux.channel("n=5") //
+                    .test() //
+                    .awaitDone(10, TimeUnit.SECONDS) //
+                    .assertNoValues() //
+                    .assertError(IOException.class);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMultiplexWithProxyThrows() {
+        Client.post("http://localhost:8080/").proxy("localhost", 8081).multiplex();
+    }
+
+    private static Flowable<ByteBuffer> rangeOfParameterN(HttpServletRequest req) {
+        String n = req.getParameter("n");
+        if (n == null) {
+            // the multiplexed call itself
+            return Flowable.empty();
+        }
+        return Flowable.range(1, Integer.parseInt(n))
+                .map(Serializer.javaIo()::serialize);
+    }
+
+    @Test
+    public void testEventLoops() throws Exception {
+        System.out.println("testEventLoops");
+        Flowable<ByteBuffer> flowable = Flowable.range(1, 1000).map(Serializer.javaIo()::serialize);
+        Server server = createServerAsync(flowable);
+        try (EventLoops loops = EventLoops.create(1)) {
+            get(server) //
+                    .eventLoops(loops) //
+                    .<Integer>deserialized() //
+                    .rebatchRequests(100) //
+                    .test() //
+                    .awaitDone(10, TimeUnit.SECONDS) //
+                    .assertValueCount(1000) //
+                    .assertValueAt(999, 1000) //
+                    .assertComplete();
+        } finally {
+            // Stop Server
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testEventLoopsServeManyStreamsOnOneThread() throws Exception {
+        System.out.println("testEventLoopsServeManyStreamsOnOneThread");
+        Flowable<ByteBuffer> flowable = Flowable.range(1, 100).map(Serializer.javaIo()::serialize);
+        Server server = createServerAsync(flowable);
+        Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        try (EventLoops loops = EventLoops.create(1)) {
+            Flowable<Long> f = get(server) //
+                    .eventLoops(loops) //
+                    .<Integer>deserialized() //
+                    .doOnNext(x -> threads.add(Thread.currentThread().getName())) //
+                    .count() //
+                    .toFlowable();
+            Flowable.range(1, 200) //
+                    .flatMap(i -> f, 200) //
+                    .test() //
+                    .awaitDone(30, TimeUnit.SECONDS) //
+                    .assertNoErrors() //
+                    .assertValueCount(200) //
+                    .assertNever(n -> n != 100) //
+                    .assertComplete();
+            // all 200 streams were read by the one event loop thread
+            assertEquals(1, threads.size());
+            assertTrue(threads.iterator().next().startsWith("rx2-http-loop-"));
+        } finally {
+            // Stop Server
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testEventLoopsBackpressureAndCancel() throws Exception {
+        System.out.println("testEventLoopsBackpressureAndCancel");
+        List<Long> requests = new CopyOnWriteArrayList<>();
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Flowable<ByteBuffer> flowable = Flowable.range(1, 1000) //
+                .map(Serializer.javaIo()::serialize) //
+                .doOnRequest(n -> requests.add(n)) //
+                .doOnCancel(() -> cancelled.set(true));
+        Server server = createServerAsync(flowable);
+        try (EventLoops loops = EventLoops.create(1)) {
+            TestSubscriber<Integer> ts = get(server) //
+                    .eventLoops(loops) //
+                    .<Integer>deserialized() //
+                    .test(0);
+            Thread.sleep(300);
+            ts.assertNoValues() //
+                    .assertNotTerminated();
+            assertEquals(Arrays.asList(), requests);
+            ts.requestMore(1);
+            Thread.sleep(300);
+            ts.assertValue(1);
+            assertEquals(Arrays.asList(1L), requests);
+            ts.requestMore(2);
+            Thread.sleep(300);
+            ts.assertValues(1, 2, 3);
+            ts.cancel();
+            Thread.sleep(300);
+            assertTrue(cancelled.get());
+        } finally {
+            // Stop Server
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testEventLoopsFallBackToRequestCalls() throws Exception {
+        System.out.println("testEventLoopsFallBackToRequestCalls");
+        Flowable<ByteBuffer> flowable = Flowable.range(1, 1000).map(Serializer.javaIo()::serialize);
+        // a blocking server cannot read credits
+        Server server = createServerSync(flowable);
+        try (EventLoops loops = EventLoops.create(1)) {
+            get(server) //
+                    .eventLoops(loops) //
+                    .<Integer>deserialized() //
+                    .skip(500) //
+                    .take(4) //
+                    .test() //
+                    .awaitDone(10, TimeUnit.SECONDS) //
+                    .assertResult(501, 502, 503, 504);
+        } finally {
+            // Stop Server
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testEventLoopsServerError() throws Exception {
+        System.out.println("testEventLoopsServerError");
+        Flowable<ByteBuffer> flowable = Flowable.range(1, 3) //
+                .map(Serializer.javaIo()::serialize) //
+                .concatWith(Flowable.error(new RuntimeException("boo")));
+        Server server = createServerAsync(flowable);
+        try (EventLoops loops = EventLoops.create(1)) {
+            get(server) //
+                    .eventLoops(loops) //
+                    .<Integer>deserialized() //
+                    .test() //
+                    .awaitDone(10, TimeUnit.SECONDS) //
+                    .assertValues(1, 2, 3) //
+                    .assertError(e -> e.getMessage().startsWith("java.lang.RuntimeException: boo"));
+        } finally {
+            // Stop Server
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testEventLoopsConnectionRefused() throws Exception {
+        System.out.println("testEventLoopsConnectionRefused");
+        Server server = createServerAsync(SOURCE);
+        String url = "http://localhost:" + port(server) + "/";
+        server.stop();
+        try (EventLoops loops = EventLoops.create(1)) {
+            Client.get(url) //
+                    .eventLoops(loops) //
+                    .build() //
+                    .test() //
+                    .awaitDone(10, TimeUnit.SECONDS) //
+                    .assertNoValues() //
+                    .assertError(IOException.class);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEventLoopsWithHttpsThrows() {
+        try (EventLoops loops = EventLoops.create(1)) {
+            Client.get("https://localhost:8080/").eventLoops(loops).build();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEventLoopsWithTransformThrows() {
+        try (EventLoops loops = EventLoops.create(1)) {
+            Client.get("http://localhost:8080/").transform(con -> {
+            }).eventLoops(loops).build();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEventLoopsWithPostThrows() {
+        try (EventLoops loops = EventLoops.create(1)) {
+            Client.post("http://localhost:8080/").eventLoops(loops).build();
+        }
+    }
+
+    @Test
+    public void testFlowableFactoryThrows() throws Exception {
+        System.out.println("testFlowableFactoryThrows");
+        Server server = createServerFlowableFactoryThrows();
+        try {
+            get(server) //
+                    .build() //
+                    .reduce(0, (x, bb) -> x + bb.remaining()) //
+                    .test() //
+                    .awaitDone(10, TimeUnit.SECONDS) //
+                    .assertNoValues() //
+                    .assertError(e -> e.getMessage().startsWith("java.lang.RuntimeException: boo"));
+        } finally {
+            // Stop Server
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testSimpleGet() throws Exception {
+        System.out.println("testSimpleGet");
+        Server server = createServerAsync(SOURCE);
+        try {
+            // Start Server
+            server.start();
+            HttpURLConnection con = (HttpURLConnection) new URL(
+                    "http://localhost:" + port(server) + "/?r=100").openConnection();
+            con.setRequestMethod("GET");
+            con.setUseCaches(false);
+            InputStream in = con.getInputStream();
+            byte[] bytes = new byte[8192];
+            int count = 0;
+            int n;
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            while ((n = in.read(bytes)) != -1) {
+                count += n;
+                b.write(bytes, 0, n);
+            }
+            in.close();
+            System.out.println(Arrays.toString(b.toByteArray()));
+            assertEquals(27, count);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testRequestConnectionsSharedPerHostAndPort() throws Exception {
+        System.out.println("testRequestConnectionsSharedPerHostAndPort");
+        Semaphore a = Client.requestConnections(new URL("http://shared.example/a"), 3);
+        assertTrue(a == Client.requestConnections(new URL("http://shared.example:80/b?x=1"), 7));
+        assertEquals(3, a.availablePermits());
+        assertFalse(a == Client.requestConnections(new URL("http://shared.example:81/a"), 3));
+        assertFalse(a == Client.requestConnections(new URL("https://shared.example/a"), 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testClientNegativeTimeoutThrows() {
+        System.out.println("testClientNegativeTimeoutThrows");
+        Client.get("http://blah").connectTimeoutMs(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testClientNegativeReadTimeoutThrows() {
+        System.out.println("testClientNegativeReadTimeoutThrows");
+        Client.get("http://blah").readTimeoutMs(-1);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testClientProxyNullThrows() {
+        System.out.println("testClientProxyNullThrows");
+        Client.get("http://blah").proxy(null);
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testClientProxyNullHostThrows() {
+        System.out.println("testClientProxyNullHostThrows");
+        Client.get("http://blah").proxy(null, 8080);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testClientProxyNegativePortThrows() {
+        System.out.println("testClientProxyNegativePortThrows");
+        Client.get("http://blah").proxy("proxy", -1);
+    }
+
+    @Test
+    public void testClientValidProxyDoesNotThrow() {
+        System.out.println("testClientValidProxyDoesNotThrow");
+        Client.get("http://blah").proxy("proxy", 8080);
+    }
+    
+    @Test(expected = NullPointerException.class)
+    public void testRequestHeaderNullThrows() {
+        System.out.println("testRequestHeaderNullThrows");
+        Client.get("http://blah").requestHeader(null, "a");
+    }
+    
+    @Test(expected = NullPointerException.class)
+    public void testRequestHeaderNullValueThrows() {
+        System.out.println("testRequestHeaderNullValueThrows");
+        Client.get("http://blah").requestHeader("a", null);
+    }
+
+
+    @Test
+    public void testRequesterNon200ResponseCode() throws Exception {
+        System.out.println("testRequesterNon200ResponseCode");
+        Requester r = new Client.Requester("http://localhost/doesNotExist",
+                new Options(HttpMethod.GET, 1000, 1000, Collections.emptyMap(), null,
+                        Collections.emptyList(), null, Schedulers.trampoline(), null, false, 0, 0,
+                        5, false, null, null, ClientMetrics.NONE));
+        r.accept(1L, 1L);
+    }
+
+    @Test
+    public void testRequesterCoalescesRequestsWhileCallInFlight() throws Exception {
+        System.out.println("testRequesterCoalescesRequestsWhileCallInFlight");
+        Server server = createServerAsync(SOURCE);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            List<String> queries = new CopyOnWriteArrayList<>();
+            List<Consumer<HttpURLConnection>> transforms = Collections
+                    .singletonList(con -> queries.add(con.getURL().getQuery()));
+            Requester r = new Client.Requester("http://localhost:" + port(server) + "/",
+                    new Options(HttpMethod.GET, 1000, 1000, Collections.emptyMap(), null,
+                            transforms, null, Schedulers.from(executor), null, false, 0, 0, 5,
+                            false, null, null, ClientMetrics.NONE));
+            CountDownLatch latch = new CountDownLatch(1);
+            // occupy the request thread so that requests accumulate
+            executor.execute(() -> {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    // do nothing
+                }
+            });
+            r.accept(3L, 1L);
+            r.accept(3L, 2L);
+            r.accept(3L, 3L);
+            latch.countDown();
+            long start = System.currentTimeMillis();
+            while (queries.isEmpty() && System.currentTimeMillis() - start < 10000) {
+                Thread.sleep(10);
+            }
+            r.accept(3L, -1L);
+            r.accept(3L, 5L);
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("id=3&r=6", "id=3&r=-1"), queries);
+        } finally {
+            executor.shutdownNow();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testRequesterReusesConnections() throws Exception {
+        System.out.println("testRequesterReusesConnections");
+        // a response body has to be read before the connection can be reused
+        Server server = new Server(0);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request,
+                    HttpServletResponse response) throws IOException {
+                response.getOutputStream().write(new byte[10000]);
+                baseRequest.setHandled(true);
+            }
+        });
+        server.start();
+        try {
+            ConnectionStatistics stats = new ConnectionStatistics();
+            server.getConnectors()[0].addBean(stats);
+            stats.start();
+            Requester r = new Client.Requester("http://localhost:" + port(server) + "/",
+                    new Options(HttpMethod.GET, 1000, 1000, Collections.emptyMap(), null,
+                            Collections.emptyList(), null, Schedulers.trampoline(), null, false,
+                            0, 0, 5, false, null, null, ClientMetrics.NONE));
+            for (int i = 0; i < 20; i++) {
+                r.accept(123L, 1L);
+            }
+            assertTrue("connections=" + stats.getConnectionsTotal(),
+                    stats.getConnectionsTotal() <= 2);
+        } finally {
+            server.stop();
+        }
     }
 
     @Test
@@ -0,0 +1,72 @@
+package org.davidmoten.rx2.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void testEmpty() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.count());
+        assertEquals(0, h.percentile(99), 0);
+        assertEquals(0, h.mean(), 0);
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 20; i++) {
+            h.record(i);
+        }
+        assertEquals(20, h.count());
+        assertEquals(10, h.percentile(50));
+        assertEquals(20, h.percentile(100));
+        assertEquals(10.5, h.mean(), 0.0001);
+    }
+
+    @Test
+    public void testLargeValuesWithinRelativeError() {
+        Histogram h = new Histogram();
+        for (long i = 1; i <= 100000; i++) {
+            h.record(i * 1000);
+        }
+        assertEquals(100000000, h.max());
+        long p50 = h.percentile(50);
+        assertTrue(p50 >= 50000000 && p50 <= 50000000 * 1.07);
+        long p99 = h.percentile(99);
+        assertTrue(p99 >= 99000000 && p99 <= 99000000 * 1.07);
+        assertEquals(100000000, h.percentile(100));
+    }
+
+    @Test
+    public void testNegativeRecordedAsZero() {
+        Histogram h = new Histogram();
+        h.record(-5);
+        assertEquals(0, h.max());
+        assertEquals(0, h.percentile(100));
+    }
+
+    @Test
+    public void testHighestIncreasesUpToMaxValue() {
+        int last = Histogram.bucket(Long.MAX_VALUE);
+        for (int i = 1; i <= last; i++) {
+            assertTrue(Histogram.highest(i) > Histogram.highest(i - 1));
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.highest(last));
+    }
+
+    @Test
+    public void testBucketBoundaries() {
+        for (long v : new long[] { 0, 31, 32, 33, 63, 64, 1000, 1 << 20, Long.MAX_VALUE }) {
+            int b = Histogram.bucket(v);
+            assertTrue(Histogram.highest(b) >= v);
+            if (b > 0) {
+                assertTrue(Histogram.highest(b - 1) < v);
+            }
+        }
+    }
+
+}
@@ -9,6 +9,10 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.util.Collections;
 
+import javax.servlet.http.HttpServletRequest;
+
+import org.davidmoten.rx2.http.Response;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
 import org.eclipse.jetty.security.ConstraintMapping;
 import org.eclipse.jetty.security.ConstraintSecurityHandler;
 import org.eclipse.jetty.security.HashLoginService;
@@ -25,10 +29,15 @@ import org.eclipse.jetty.util.security.Constraint;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 
 import io.reactivex.Flowable;
+import io.reactivex.functions.Function;
 
 public final class Servers {
 
     public static Server createServerAsync(Flowable<ByteBuffer> flowable) {
+        return createServerAsync(flowable, false);
+    }
+
+    public static Server createServerAsync(Flowable<ByteBuffer> flowable, boolean compress) {
         Server server = new Server(0);
         ServletContextHandler context = new ServletContextHandler();
         ServletHolder defaultServ = new ServletHolder("default", ServletAsync.class);
@@ -37,6 +46,7 @@ public final class Servers {
         context.addServlet(defaultServ, "/");
         server.setHandler(context);
         ServletAsync.flowable = flowable;
+        ServletAsync.compress = compress;
         try {
             server.start();
         } catch (Exception e) {
@@ -44,45 +54,75 @@ public final class Servers {
         }
         return server;
     }
-    
-    
 
-    public static Server createServerAsyncSsl(Flowable<ByteBuffer> flowable, String keyStore, String keyStorePassword,
-            String trustStore, String trustStorePassword, int port) {
+    /**
+     * Returns a started server whose streams depend on the request (for
+     * example its parameters).
+     */
+    public static Server createServerQuery(
+            Function<HttpServletRequest, Flowable<ByteBuffer>> flowables) {
+        return createServerResponses(req -> Response.from(flowables.apply(req)));
+    }
 
-        Server server = new Server();
-        SslContextFactory sslContextFactory = new SslContextFactory(
-                Servers.class.getResource(keyStore).toExternalForm());
-        sslContextFactory.setKeyStorePassword(keyStorePassword);
+    /**
+     * Returns a started server whose responses depend on the request.
+     */
+    public static Server createServerResponses(
+            Function<HttpServletRequest, Response> responses) {
+        return createServerResponses(responses, false);
+    }
+
+    /**
+     * Returns a started server whose responses depend on the request and
+     * that serves stats calls if {@code stats} is true.
+     */
+    public static Server createServerResponses(
+            Function<HttpServletRequest, Response> responses, boolean stats) {
+        Server server = new Server(0);
+        ServletContextHandler context = new ServletContextHandler();
+        context.addServlet(new ServletHolder("default", ServletQuery.class), "/");
+        server.setHandler(context);
+        ServletQuery.responses = responses;
+        ServletQuery.stats = stats;
         try {
-            KeyStore ks = KeyStore.getInstance("JKS");
-            try (InputStream in = Servers.class.getResourceAsStream(trustStore)) {
-                ks.load(in, trustStorePassword.toCharArray());
-            }
-            sslContextFactory.setTrustStore(ks);
-        } catch (IOException | KeyStoreException | NoSuchAlgorithmException | CertificateException e) {
+            server.start();
+        } catch (Exception e) {
             throw new RuntimeException(e);
         }
+        return server;
+    }
 
-        sslContextFactory.setTrustStorePassword(trustStorePassword);
-        SslConnectionFactory sslConnectionFactory = new SslConnectionFactory(sslContextFactory,
-                org.eclipse.jetty.http.HttpVersion.HTTP_1_1.toString());
-
-        // HTTP Configuration
+    /**
+     * Returns a started server that accepts HTTP/1.1 and cleartext HTTP/2 (with
+     * prior knowledge) on the same port.
+     */
+    public static Server createServerAsyncHttp2(Flowable<ByteBuffer> flowable) {
+        Server server = new Server();
         HttpConfiguration config = new HttpConfiguration();
-        config.setSecureScheme("https");
-        config.setSecurePort(port);
-        config.setOutputBufferSize(32768);
-        config.setRequestHeaderSize(8192);
-        config.setResponseHeaderSize(8192);
-        config.setSendServerVersion(true);
-        config.setSendDateHeader(false);
-
-        // create a https connector
-        ServerConnector connector = new ServerConnector(server, sslConnectionFactory,
-                new HttpConnectionFactory(config));
-        connector.setPort(port);
+        ServerConnector connector = new ServerConnector(server, new HttpConnectionFactory(config),
+                new HTTP2CServerConnectionFactory(config));
+        connector.setPort(0);
         server.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler();
+        ServletHolder defaultServ = new ServletHolder("default", ServletAsync.class);
+        context.addServlet(defaultServ, "/");
+        server.setHandler(context);
+        ServletAsync.flowable = flowable;
+        ServletAsync.compress = false;
+        try {
+            server.start();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return server;
+    }
+
+    public static Server createServerAsyncSsl(Flowable<ByteBuffer> flowable, String keyStore, String keyStorePassword,
+            String trustStore, String trustStorePassword, int port) {
+
+        Server server = new Server();
+        server.addConnector(
+                sslConnector(server, keyStore, keyStorePassword, trustStore, trustStorePassword, port));
 
         LoginService loginService = new HashLoginService("MyRealm", "src/test/resources/realm.properties");
         server.addBean(loginService);
@@ -118,4 +158,62 @@ public final class Servers {
         return server;
     }
 
+    /**
+     * Returns a started https server (using the test key store and no
+     * authentication) whose responses depend on the request.
+     */
+    public static Server createServerResponsesSsl(
+            Function<HttpServletRequest, Response> responses) {
+        Server server = new Server();
+        server.addConnector(
+                sslConnector(server, "/keyStore.jks", "password", "/trustStore.jks", "password", 0));
+        ServletContextHandler context = new ServletContextHandler();
+        context.addServlet(new ServletHolder("default", ServletQuery.class), "/");
+        server.setHandler(context);
+        ServletQuery.responses = responses;
+        ServletQuery.stats = false;
+        try {
+            server.start();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return server;
+    }
+
+    private static ServerConnector sslConnector(Server server, String keyStore,
+            String keyStorePassword, String trustStore, String trustStorePassword, int port) {
+        SslContextFactory sslContextFactory = new SslContextFactory(
+                Servers.class.getResource(keyStore).toExternalForm());
+        sslContextFactory.setKeyStorePassword(keyStorePassword);
+        try {
+            KeyStore ks = KeyStore.getInstance("JKS");
+            try (InputStream in = Servers.class.getResourceAsStream(trustStore)) {
+                ks.load(in, trustStorePassword.toCharArray());
+            }
+            sslContextFactory.setTrustStore(ks);
+        } catch (IOException | KeyStoreException | NoSuchAlgorithmException | CertificateException e) {
+            throw new RuntimeException(e);
+        }
+
+        sslContextFactory.setTrustStorePassword(trustStorePassword);
+        SslConnectionFactory sslConnectionFactory = new SslConnectionFactory(sslContextFactory,
+                org.eclipse.jetty.http.HttpVersion.HTTP_1_1.toString());
+
+        // HTTP Configuration
+        HttpConfiguration config = new HttpConfiguration();
+        config.setSecureScheme("https");
+        config.setSecurePort(port);
+        config.setOutputBufferSize(32768);
+        config.setRequestHeaderSize(8192);
+        config.setResponseHeaderSize(8192);
+        config.setSendServerVersion(true);
+        config.setSendDateHeader(false);
+
+        // create a https connector
+        ServerConnector connector = new ServerConnector(server, sslConnectionFactory,
+                new HttpConnectionFactory(config));
+        connector.setPort(port);
+        return connector;
+    }
+
 }
@@ -16,10 +16,28 @@ public final class ServletAsync extends FlowableHttpServlet {
 
     public static Flowable<ByteBuffer> flowable = Flowable.empty();
 
+    public static boolean compress;
+
+    public static byte[] dictionary;
+
     @Override
     public Response respond(HttpServletRequest req) {
-        return Response //
-                .from(flowable);
+        if (dictionary != null) {
+            return Response //
+                    .publisher(flowable) //
+                    .flushAfterItems(1) //
+                    .dictionary(dictionary) //
+                    .build();
+        } else if (compress) {
+            return Response //
+                    .publisher(flowable) //
+                    .flushAfterItems(1) //
+                    .compress() //
+                    .build();
+        } else {
+            return Response //
+                    .from(flowable);
+        }
     }
 
 }
@@ -0,0 +1,35 @@
+package org.davidmoten.rx2.io;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+
+import org.davidmoten.rx2.http.FlowableHttpServlet;
+import org.davidmoten.rx2.http.Response;
+
+import io.reactivex.Flowable;
+import io.reactivex.functions.Function;
+
+@SuppressWarnings("serial")
+@WebServlet
+public final class ServletQuery extends FlowableHttpServlet {
+
+    public static Function<HttpServletRequest, Response> responses = req -> Response
+            .from(Flowable.empty());
+
+    public static boolean stats;
+
+    @Override
+    protected boolean statsEnabled() {
+        return stats;
+    }
+
+    @Override
+    public Response respond(HttpServletRequest req) {
+        try {
+            return responses.apply(req);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
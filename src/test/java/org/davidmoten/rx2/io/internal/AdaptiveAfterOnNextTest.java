@@ -0,0 +1,89 @@
+package org.davidmoten.rx2.io.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AdaptiveAfterOnNextTest {
+
+    @Test
+    public void testFirstItemIsFlushed() {
+        AfterOnNext a = AfterOnNextFactory.adaptive().create();
+        assertTrue(a.flushRequested(100));
+        assertEquals(1, a.lingerMs());
+    }
+
+    @Test
+    public void testSparseItemsAreFlushedEachTime() throws InterruptedException {
+        AdaptiveAfterOnNext a = (AdaptiveAfterOnNext) AfterOnNextFactory.adaptive(1, 65536).create();
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(3);
+            a.onArrival();
+            assertTrue(a.flushRequested(100));
+            a.flushed();
+        }
+        assertEquals(1, a.itemsThreshold());
+    }
+
+    @Test
+    public void testDenseItemsAreGroupedUpToRequestSize() {
+        AdaptiveAfterOnNext a = (AdaptiveAfterOnNext) AfterOnNextFactory.adaptive(1000, 1 << 30)
+                .create();
+        a.onRequest(16);
+        int flushes = 0;
+        for (int i = 0; i < 1000; i++) {
+            a.onArrival();
+            if (a.flushRequested(10)) {
+                a.flushed();
+                flushes++;
+            }
+        }
+        assertEquals(16, a.itemsThreshold());
+        assertEquals(160, a.bytesThreshold());
+        assertTrue(flushes < 100);
+    }
+
+    @Test
+    public void testSparseItemsWrittenTogetherAreFlushedEachTime()
+            throws InterruptedException {
+        AdaptiveAfterOnNext a = (AdaptiveAfterOnNext) AfterOnNextFactory.adaptive(1, 65536).create();
+        a.onRequest(1000);
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(3);
+            a.onArrival();
+        }
+        // written in a tight loop (for example as a batch)
+        for (int i = 0; i < 5; i++) {
+            assertTrue(a.flushRequested(100));
+            a.flushed();
+        }
+        assertEquals(1, a.itemsThreshold());
+    }
+
+    @Test
+    public void testMaxBytesForcesFlush() {
+        AdaptiveAfterOnNext a = (AdaptiveAfterOnNext) AfterOnNextFactory.adaptive(1000, 100).create();
+        a.onRequest(1000);
+        a.onArrival();
+        a.flushRequested(10);
+        a.flushed();
+        a.onArrival();
+        assertFalse(a.flushRequested(60));
+        a.onArrival();
+        assertTrue(a.flushRequested(60));
+    }
+
+    @Test
+    public void testStreamsTracksActiveStreams() {
+        AdaptiveAfterOnNextFactory factory = AfterOnNextFactory.adaptive();
+        AfterOnNext a = factory.create();
+        AfterOnNext b = factory.create();
+        assertEquals(2, factory.streams().size());
+        a.terminated();
+        assertEquals(1, factory.streams().size());
+        assertTrue(factory.streams().contains(b));
+    }
+
+}
@@ -0,0 +1,41 @@
+package org.davidmoten.rx2.io.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.davidmoten.rx2.http.ServerMetrics.FlushCause;
+import org.junit.Test;
+
+public class AfterOnNextFactoryTest {
+
+    @Test
+    public void testFlushAfterBytes() {
+        AfterOnNext a = AfterOnNextFactory.flushAfter(0, 150, 5).create();
+        assertFalse(a.flushRequested(100));
+        assertTrue(a.flushRequested(100));
+        assertEquals(FlushCause.BYTES, a.flushCause());
+        assertEquals(5, a.lingerMs());
+    }
+
+    @Test
+    public void testLingerFlushResetsByteCount() {
+        AfterOnNext a = AfterOnNextFactory.flushAfter(0, 150, 5).create();
+        assertFalse(a.flushRequested(100));
+        // the linger timer flushed the stream
+        a.flushed();
+        assertFalse(a.flushRequested(100));
+        assertTrue(a.flushRequested(100));
+    }
+
+    @Test
+    public void testLingerFlushResetsItemCount() {
+        AfterOnNext a = AfterOnNextFactory.flushAfter(2, 0, 5).create();
+        assertFalse(a.flushRequested(1));
+        a.flushed();
+        assertFalse(a.flushRequested(1));
+        assertTrue(a.flushRequested(1));
+        assertEquals(FlushCause.ITEMS, a.flushCause());
+    }
+
+}
@@ -0,0 +1,159 @@
+package org.davidmoten.rx2.io.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.davidmoten.rx2.http.Writer;
+import org.junit.Test;
+
+public class DeflaterWriterTest {
+
+    @Test
+    public void testCompressibleRoundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterWriter w = writer(out, null);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 1000; i++) {
+            byte[] b = ("{\"index\":" + i + ",\"name\":\"something\"}").getBytes("UTF-8");
+            w.writeInt(b.length);
+            w.write(ByteBuffer.wrap(b));
+            expected.write(Util.toBytes(b.length));
+            expected.write(b);
+            if (i % 10 == 0) {
+                w.flush();
+            }
+        }
+        w.flush();
+        assertTrue(w.enabled());
+        w.end();
+        assertTrue(out.size() * 5 < expected.size());
+        assertArrayEquals(expected.toByteArray(), inflate(out.toByteArray(), 0, new byte[0]));
+    }
+
+    @Test
+    public void testDirectBuffersRoundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterWriter w = writer(out, null);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        // larger than the scratch array so copied in chunks
+        for (int size : new int[] { 3, 20000, 100 }) {
+            byte[] b = new byte[size];
+            for (int i = 0; i < size; i++) {
+                b[i] = (byte) (i % 7);
+            }
+            ByteBuffer bb = ByteBuffer.allocateDirect(size);
+            bb.put(b).flip();
+            w.write(bb);
+            assertEquals(0, bb.position());
+            expected.write(b);
+        }
+        w.flush();
+        w.end();
+        assertArrayEquals(expected.toByteArray(), inflate(out.toByteArray(), 0, new byte[0]));
+    }
+
+    @Test
+    public void testFlushedBytesCanBeReadBeforeStreamEnds() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterWriter w = writer(out, null);
+        w.write(new byte[] { 1, 2, 3 });
+        w.flush();
+        // the stream has not been finished but all flushed bytes are available
+        InputStream in = new InflatingInputStream(new ByteArrayInputStream(out.toByteArray()),
+                new byte[0], 0, 0, new byte[0]);
+        byte[] b = new byte[3];
+        assertEquals(3, in.read(b));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, b);
+        w.end();
+    }
+
+    @Test
+    public void testIncompressibleSwitchesOffAndRoundTrips() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterWriter w = writer(out, null);
+        Random random = new Random(1);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) {
+            byte[] b = new byte[1000];
+            random.nextBytes(b);
+            w.write(ByteBuffer.wrap(b));
+            expected.write(b);
+            w.flush();
+        }
+        assertFalse(w.enabled());
+        assertArrayEquals(expected.toByteArray(), inflate(out.toByteArray(), 0, new byte[0]));
+    }
+
+    @Test
+    public void testInitialBytesAreInflated() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterWriter w = writer(out, null);
+        byte[] b = new byte[10000];
+        b[9999] = 1;
+        w.write(b);
+        w.flush();
+        w.end();
+        assertArrayEquals(b, inflate(out.toByteArray(), 5, new byte[0]));
+    }
+
+    @Test
+    public void testDictionaryImprovesCompressionOfSmallItems() throws IOException {
+        byte[] dictionary = "{\"index\":0,\"name\":\"something\",\"active\":true}"
+                .getBytes("UTF-8");
+        byte[] item = "{\"index\":7,\"name\":\"something\",\"active\":true}".getBytes("UTF-8");
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        DeflaterWriter w = writer(plain, null);
+        w.write(item);
+        w.flush();
+        w.end();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        w = writer(out, dictionary);
+        w.write(item);
+        w.flush();
+        w.end();
+        assertTrue(out.size() < plain.size() / 2);
+        assertArrayEquals(item, inflate(out.toByteArray(), 0, dictionary));
+    }
+
+    private static DeflaterWriter writer(ByteArrayOutputStream out, byte[] dictionary) {
+        return new DeflaterWriter(Writer.createDefault(out), Deflater.DEFAULT_COMPRESSION,
+                dictionary);
+    }
+
+    private static byte[] inflate(byte[] compressed, int initialLength, byte[] dictionary)
+            throws IOException {
+        ByteArrayInputStream rest = new ByteArrayInputStream(compressed, initialLength,
+                compressed.length - initialLength);
+        try (InputStream in = new InflatingInputStream(rest, compressed, 0, initialLength,
+                dictionary)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[100];
+            int n;
+            while (true) {
+                try {
+                    n = in.read(buffer);
+                } catch (EOFException e) {
+                    // the deflate stream was not finished
+                    break;
+                }
+                if (n == -1) {
+                    break;
+                }
+                bytes.write(buffer, 0, n);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+}
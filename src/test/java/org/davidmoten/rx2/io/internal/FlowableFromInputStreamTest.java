@@ -1,9 +1,11 @@
 package org.davidmoten.rx2.io.internal;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -60,6 +62,35 @@ public class FlowableFromInputStreamTest {
                 .assertNotTerminated();
     }
 
+    @Test
+    public void testNoCancelRequestAfterCompletion() {
+        ByteArrayInputStream in = new ByteArrayInputStream(
+                new byte[] { 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 1, 12, -128, 0, 0, 0 });
+        List<Long> requests = new CopyOnWriteArrayList<>();
+        TestSubscriber<ByteBuffer> ts = new FlowableFromInputStream(in,
+                (id, r) -> requests.add(r)) //
+                        .test() //
+                        .assertValueCount(1) //
+                        .assertComplete();
+        // Flowable.using cancels upstream after onComplete
+        ts.cancel();
+        assertFalse(requests.contains(-1L));
+    }
+
+    @Test
+    public void testNoCancelRequestAfterErrorFrame() {
+        // an error frame's length is minus the length of its message
+        ByteArrayInputStream in = new ByteArrayInputStream(
+                new byte[] { 0, 0, 0, 0, 0, 0, 0, 2, -1, -1, -1, -2, 'a', 'b' });
+        List<Long> requests = new CopyOnWriteArrayList<>();
+        TestSubscriber<ByteBuffer> ts = new FlowableFromInputStream(in,
+                (id, r) -> requests.add(r)) //
+                        .test() //
+                        .assertErrorMessage("ab");
+        ts.cancel();
+        assertFalse(requests.contains(-1L));
+    }
+
     @Test
     public void testInputStreamThrowsImmediately() {
         InputStream in = new InputStream() {
@@ -145,6 +176,117 @@ public class FlowableFromInputStreamTest {
                 .assertError(EOFException.class);
     }
 
+    @Test
+    public void testManySmallItemsReadInOneChunk() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(Util.toBytes(1L), 0, 8);
+        for (int i = 0; i < 10000; i++) {
+            bytes.write(0);
+            bytes.write(0);
+            bytes.write(0);
+            bytes.write(1);
+            bytes.write(i);
+        }
+        bytes.write(Util.toBytes(Integer.MIN_VALUE), 0, 4);
+        new FlowableFromInputStream(new ByteArrayInputStream(bytes.toByteArray()), (id, r) -> {
+        }) //
+                .map(bb -> bb.get()) //
+                .test() //
+                .assertValueCount(10000) //
+                .assertValueAt(9999, (byte) 9999) //
+                .assertComplete();
+    }
+
+    @Test
+    public void testHeadersSplitAcrossReads() {
+        // id=1, length=2, 7, 8, length=0, complete
+        byte[] bytes = new byte[] { 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, 2, 7, 8, 0, 0, 0, 0, -128, 0,
+                0, 0 };
+        InputStream in = new InputStream() {
+            int index;
+
+            @Override
+            public int read() throws IOException {
+                if (index == bytes.length) {
+                    return -1;
+                } else {
+                    return bytes[index++] & 0xFF;
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                // only ever return one byte at a time
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        new FlowableFromInputStream(in, (id, r) -> {
+        }) //
+                .map(bb -> bb.remaining()) //
+                .test() //
+                .assertValues(2, 0) //
+                .assertComplete();
+    }
+
+    @Test
+    public void testBatchFrame() {
+        ByteArrayInputStream in = new ByteArrayInputStream(new byte[] { 0, 0, 0, 0, 0, 0, 0, 2, //
+                -128, 0, 0, 1, 0, 0, 0, 3, 2, 0, 1, 7, 8, 9, // batch of 3 items
+                0, 0, 0, 1, 10, // length=1, byte=10
+                -128, 0, 0, 0 });
+        TestSubscriber<Integer> ts = new FlowableFromInputStream(in, (id, r) -> {
+        }) //
+                .map(bb -> bb.remaining()) //
+                .test(1);
+        ts.assertValues(2) //
+                .assertNotTerminated();
+        ts.requestMore(1);
+        ts.assertValues(2, 0) //
+                .assertNotTerminated();
+        ts.requestMore(10);
+        ts.assertValues(2, 0, 1, 1) //
+                .assertComplete();
+    }
+
+    @Test
+    public void testVersion2() {
+        ByteArrayInputStream in = new ByteArrayInputStream(new byte[] { 0, 0, 0, 0, 0, 0, 0, 2, //
+                2, 7, // length=1, byte=7
+                5, 2, 1, 0, 8, // batch of 2 items (lengths 1 and 0)
+                0, // length=0
+                1 // complete
+        });
+        new FlowableFromInputStream(in, (id, r) -> {
+        }, null, false, Protocol.ALL.deflate(false)) //
+                .map(bb -> bb.remaining()) //
+                .test() //
+                .assertValues(1, 1, 0, 0) //
+                .assertComplete();
+    }
+
+    @Test
+    public void testVersion2Error() {
+        ByteArrayInputStream in = new ByteArrayInputStream(new byte[] { 0, 0, 0, 0, 0, 0, 0, 2, //
+                3, 3, 98, 111, 111 // error "boo"
+        });
+        new FlowableFromInputStream(in, (id, r) -> {
+        }, null, false, Protocol.ALL.deflate(false)) //
+                .test() //
+                .assertNoValues() //
+                .assertErrorMessage("boo");
+    }
+
+    @Test
+    public void testVersion2UnknownControlCode() {
+        ByteArrayInputStream in = new ByteArrayInputStream(new byte[] { 0, 0, 0, 0, 0, 0, 0, 2, //
+                (byte) 0xFF, 0x01 });
+        new FlowableFromInputStream(in, (id, r) -> {
+        }, null, false, Protocol.ALL.deflate(false)) //
+                .test() //
+                .assertNoValues() //
+                .assertError(IOException.class);
+    }
+
     @Test
     public void testProducedWhenNegative() {
         try {
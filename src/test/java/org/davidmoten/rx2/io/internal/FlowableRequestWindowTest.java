@@ -0,0 +1,152 @@
+package org.davidmoten.rx2.io.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.reactivestreams.Subscription;
+
+import io.reactivex.Flowable;
+import io.reactivex.subscribers.TestSubscriber;
+
+public class FlowableRequestWindowTest {
+
+    @Test
+    public void testAllItemsEmitted() {
+        new FlowableRequestWindow(source(1000, new CopyOnWriteArrayList<>()), new RttEstimate(), 4,
+                64) //
+                        .test() //
+                        .assertValueCount(1000) //
+                        .assertComplete();
+    }
+
+    @Test
+    public void testDoesNotRequestUntilDownstreamRequests() {
+        List<Long> requests = new CopyOnWriteArrayList<>();
+        TestSubscriber<ByteBuffer> ts = new FlowableRequestWindow(source(1000, requests),
+                new RttEstimate(), 4, 64) //
+                        .test(0);
+        assertTrue(requests.isEmpty());
+        ts.requestMore(1);
+        ts.assertValueCount(1);
+        assertEquals(4L, (long) requests.get(0));
+    }
+
+    @Test
+    public void testBufferIsBoundedWhenDownstreamIsSlow() {
+        List<Long> requests = new CopyOnWriteArrayList<>();
+        TestSubscriber<ByteBuffer> ts = new FlowableRequestWindow(source(1000, requests),
+                new RttEstimate(), 8, 64) //
+                        .test(1);
+        ts.assertValueCount(1);
+        long total = requests.stream().mapToLong(x -> x).sum();
+        // no more than the window is requested ahead of downstream
+        assertTrue(total <= 1 + 8);
+        ts.requestMore(1000);
+        ts.assertValueCount(1000).assertComplete();
+    }
+
+    @Test
+    public void testCreditToppedUpAtLowWatermark() {
+        List<Long> requests = new CopyOnWriteArrayList<>();
+        new FlowableRequestWindow(source(100, requests), new RttEstimate(), 8, 8) //
+                .test() //
+                .assertValueCount(100);
+        assertEquals(8L, (long) requests.get(0));
+        // after the first request credit is topped up as soon as half is used
+        assertEquals(4L, (long) requests.get(1));
+    }
+
+    @Test
+    public void testWindowCoversBandwidthDelayProduct() {
+        RttEstimate rtt = new RttEstimate();
+        rtt.record(100_000_000);
+        FlowableRequestWindow.WindowSubscriber w = new FlowableRequestWindow.WindowSubscriber(
+                new TestSubscriber<>(), rtt, 4, 1000);
+        assertEquals(4, w.window());
+        w.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        w.onNext(ByteBuffer.allocate(1));
+        sleep(1);
+        w.onNext(ByteBuffer.allocate(1));
+        // about 100 items per round trip so twice that is requested ahead
+        int window = w.window();
+        assertTrue("window=" + window, window > 4 && window <= 202);
+    }
+
+    @Test
+    public void testCancelPropagates() {
+        List<Long> requests = new CopyOnWriteArrayList<>();
+        boolean[] cancelled = new boolean[1];
+        TestSubscriber<ByteBuffer> ts = new FlowableRequestWindow(
+                source(1000, requests).doOnCancel(() -> cancelled[0] = true), new RttEstimate(), 4,
+                64) //
+                        .test(1);
+        ts.cancel();
+        assertTrue(cancelled[0]);
+    }
+
+    @Test
+    public void testUpstreamRequestsAreSerialWhenTopUpsOverlap() {
+        int n = 100;
+        AtomicInteger requesting = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        TestSubscriber<ByteBuffer> ts = new TestSubscriber<>(0);
+        FlowableRequestWindow.WindowSubscriber w = new FlowableRequestWindow.WindowSubscriber(ts,
+                new RttEstimate(), 4, 4);
+        int[] emitted = new int[1];
+        w.onSubscribe(new Subscription() {
+            @Override
+            public void request(long r) {
+                if (requesting.incrementAndGet() != 1) {
+                    overlapped.set(true);
+                }
+                // items arriving during a request top up credit (from onNext)
+                for (int i = 0; i < r && emitted[0] < n; i++) {
+                    emitted[0]++;
+                    w.onNext(ByteBuffer.allocate(1));
+                }
+                if (emitted[0] == n) {
+                    w.onComplete();
+                }
+                requesting.decrementAndGet();
+            }
+
+            @Override
+            public void cancel() {
+            }
+        });
+        ts.request(n);
+        ts.assertValueCount(n).assertComplete();
+        assertFalse(overlapped.get());
+    }
+
+    private static Flowable<ByteBuffer> source(int n, List<Long> requests) {
+        return Flowable.range(1, n) //
+                .map(i -> ByteBuffer.wrap(new byte[] { i.byteValue() })) //
+                .doOnRequest(requests::add);
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+package org.davidmoten.rx2.io.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FrameDecoderTest {
+
+    private static final Protocol V1 = Protocol.DEFAULT;
+
+    private static final Protocol V2 = Protocol.ALL.deflate(false);
+
+    @Test
+    public void testVersion1ByteAtATime() throws IOException {
+        byte[] body = body(V1, 123, new byte[] { 1, 2 }, new byte[0], new byte[300]);
+        Events events = decodeByteAtATime(V1, body);
+        assertEquals(123, events.id);
+        assertEquals(Arrays.asList(2, 0, 300), events.lengths);
+        assertTrue(events.complete);
+    }
+
+    @Test
+    public void testVersion2ByteAtATime() throws IOException {
+        byte[] body = body(V2, 123, new byte[] { 1, 2 }, new byte[0], new byte[300]);
+        Events events = decodeByteAtATime(V2, body);
+        assertEquals(123, events.id);
+        assertEquals(Arrays.asList(2, 0, 300), events.lengths);
+        assertTrue(events.complete);
+    }
+
+    @Test
+    public void testVersion2BatchAndErrorInOneBuffer() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Util.toBytes(5L));
+        byte[] b = new byte[Protocol.MAX_HEADER_LENGTH];
+        out.write(b, 0, V2.batchHeader(b, 3));
+        for (int length : new int[] { 1, 200, 3 }) {
+            out.write(b, 0, Util.putVarint(b, 0, length));
+        }
+        out.write(new byte[204]);
+        byte[] error = "boo".getBytes(StandardCharsets.UTF_8);
+        out.write(b, 0, V2.errorHeader(b, error.length));
+        out.write(error);
+        Events events = new Events();
+        new FrameDecoder(V2, events).decode(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(5, events.id);
+        assertEquals(Arrays.asList(1, 200, 3), events.lengths);
+        assertEquals("boo", events.error);
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownControlCodeThrows() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Util.toBytes(5L));
+        out.write((7 << 1) | 1);
+        new FrameDecoder(V2, new Events()).decode(ByteBuffer.wrap(out.toByteArray()));
+    }
+
+    private static byte[] body(Protocol protocol, long id, byte[]... items) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(Util.toBytes(id));
+        byte[] b = new byte[Protocol.MAX_HEADER_LENGTH];
+        for (byte[] item : items) {
+            out.write(b, 0, protocol.itemHeader(b, item.length));
+            out.write(item);
+        }
+        out.write(b, 0, protocol.completeHeader(b));
+        return out.toByteArray();
+    }
+
+    private static Events decodeByteAtATime(Protocol protocol, byte[] body) throws IOException {
+        Events events = new Events();
+        FrameDecoder decoder = new FrameDecoder(protocol, events);
+        for (byte x : body) {
+            decoder.decode(ByteBuffer.wrap(new byte[] { x }));
+        }
+        return events;
+    }
+
+    private static final class Events implements FrameDecoder.Listener {
+
+        long id;
+        final List<Integer> lengths = new ArrayList<>();
+        boolean complete;
+        String error;
+
+        @Override
+        public void onId(long id) {
+            this.id = id;
+        }
+
+        @Override
+        public void onItem(ByteBuffer item) {
+            lengths.add(item.remaining());
+        }
+
+        @Override
+        public void onComplete() {
+            complete = true;
+        }
+
+        @Override
+        public void onError(String error) {
+            this.error = error;
+        }
+    }
+
+}
@@ -1,14 +1,22 @@
 package org.davidmoten.rx2.io.internal;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
+import org.davidmoten.rx2.http.ServerMetrics;
 import org.davidmoten.rx2.http.WriterFactory;
 import org.junit.Test;
 import org.reactivestreams.Subscription;
@@ -30,13 +38,134 @@ public class HandlerTest {
         AtomicReference<Subscription> subscription = new AtomicReference<Subscription>();
         Consumer<Subscription> consumer = sub -> subscription.set(sub);
         Server.handle(f, Single.just(out), DO_NOTHING, 2, Schedulers.trampoline(), consumer,
-                WriterFactory.DEFAULT, AfterOnNextFactory.DEFAULT);
+                WriterFactory.DEFAULT, AfterOnNextFactory.DEFAULT, Protocol.DEFAULT);
         subscription.get().request(1);
         System.out.println(Arrays.toString(out.toByteArray()));
         assertArrayEquals(new byte[] { 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 1, 12, -128, 0, 0, 0 }, // id=2,length=1,byte=12
                 out.toByteArray());
     }
 
+    @Test
+    public void testLingerFlushesQuietStream() throws Exception {
+        CountDownLatch flushed = new CountDownLatch(2);
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void flush() {
+                flushed.countDown();
+            }
+        };
+        Flowable<ByteBuffer> f = Flowable.just(ByteBuffer.wrap(new byte[] { 12 }))
+                .concatWith(Flowable.never());
+        AtomicReference<Subscription> subscription = new AtomicReference<Subscription>();
+        Consumer<Subscription> consumer = sub -> subscription.set(sub);
+        Server.handle(f, Single.just(out), DO_NOTHING, 2, Schedulers.trampoline(), consumer,
+                WriterFactory.DEFAULT, AfterOnNextFactory.flushAfter(0, 0, 50), Protocol.DEFAULT);
+        // first flush is after the id
+        assertEquals(1, flushed.getCount());
+        subscription.get().request(10);
+        assertEquals(1, flushed.getCount());
+        assertTrue(flushed.await(5, TimeUnit.SECONDS));
+        subscription.get().cancel();
+    }
+
+    @Test
+    public void testItemsEmittedSynchronouslyAreBatched() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Flowable<ByteBuffer> f = Flowable.just(ByteBuffer.wrap(new byte[] { 1 }),
+                ByteBuffer.wrap(new byte[] { 2, 3 }), ByteBuffer.wrap(new byte[] { 4 }));
+        AtomicReference<Subscription> subscription = new AtomicReference<Subscription>();
+        Consumer<Subscription> consumer = sub -> subscription.set(sub);
+        Server.handle(f, Single.just(out), DO_NOTHING, 2, Schedulers.trampoline(), consumer,
+                WriterFactory.DEFAULT, AfterOnNextFactory.DEFAULT, Protocol.DEFAULT.batch(true));
+        subscription.get().request(3);
+        assertArrayEquals(new byte[] { 0, 0, 0, 0, 0, 0, 0, 2, // id=2
+                -128, 0, 0, 1, 0, 0, 0, 3, 1, 2, 1, 1, 2, 3, 4, // batch of 3 items
+                -128, 0, 0, 0 }, // complete
+                out.toByteArray());
+    }
+
+    @Test
+    public void testSingleQueuedItemIsNotBatched() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Flowable<ByteBuffer> f = Flowable.just(ByteBuffer.wrap(new byte[] { 12 }));
+        AtomicReference<Subscription> subscription = new AtomicReference<Subscription>();
+        Consumer<Subscription> consumer = sub -> subscription.set(sub);
+        Server.handle(f, Single.just(out), DO_NOTHING, 2, Schedulers.trampoline(), consumer,
+                WriterFactory.DEFAULT, AfterOnNextFactory.DEFAULT, Protocol.DEFAULT.batch(true));
+        subscription.get().request(1);
+        assertArrayEquals(new byte[] { 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 1, 12, -128, 0, 0, 0 },
+                out.toByteArray());
+    }
+
+    @Test
+    public void testVersion2() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Flowable<ByteBuffer> f = Flowable.just(ByteBuffer.wrap(new byte[] { 12 }),
+                ByteBuffer.wrap(new byte[200]));
+        AtomicReference<Subscription> subscription = new AtomicReference<Subscription>();
+        Consumer<Subscription> consumer = sub -> subscription.set(sub);
+        Server.handle(f, Single.just(out), DO_NOTHING, 2, Schedulers.trampoline(), consumer,
+                WriterFactory.DEFAULT, AfterOnNextFactory.DEFAULT, Protocol.ALL.batch(false).deflate(false));
+        subscription.get().request(2);
+        byte[] b = out.toByteArray();
+        assertEquals(8 + 2 + 2 + 200 + 1, b.length);
+        // length=1 as varint 2, byte=12
+        assertArrayEquals(new byte[] { 2, 12 }, Arrays.copyOfRange(b, 8, 10));
+        // length=200 as varint 400
+        assertArrayEquals(new byte[] { (byte) 0x90, 0x03 }, Arrays.copyOfRange(b, 10, 12));
+        // complete
+        assertEquals(1, b[b.length - 1]);
+    }
+
+    @Test
+    public void testTracedItemsStartBatchesAndAreFollowedByFlushTime() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Flowable<ByteBuffer> f = Flowable.range(1, 3).map(i -> ByteBuffer.wrap(new byte[] { 12 }));
+        AtomicReference<Subscription> subscription = new AtomicReference<Subscription>();
+        Server.handle(f, Single.just(out), DO_NOTHING, 2, Schedulers.trampoline(),
+                subscription::set, WriterFactory.DEFAULT, AfterOnNextFactory.flushAfter(1, 0),
+                Protocol.ALL.deflate(false), null, null, ServerMetrics.NONE, 2);
+        subscription.get().request(3);
+        byte[] b = out.toByteArray();
+        assertEquals(69, b.length);
+        // item 0 is traced and starts a batch that ends before item 2
+        assertEquals((Protocol.CODE_TRACE_ITEM << 1) | 1, b[8]);
+        assertArrayEquals(new byte[] { (Protocol.CODE_BATCH << 1) | 1, 2, 1, 1, 12, 12 },
+                Arrays.copyOfRange(b, 25, 31));
+        // flush time of item 0 follows the flush of the batch
+        assertEquals((Protocol.CODE_TRACE_FLUSH << 1) | 1, b[31]);
+        long enqueued = Util.getLong(b, 9);
+        long written = Util.getLong(b, 17);
+        long flushed = Util.getLong(b, 32);
+        assertTrue(enqueued <= written);
+        assertTrue(written <= flushed);
+        // item 2 is traced
+        assertEquals((Protocol.CODE_TRACE_ITEM << 1) | 1, b[40]);
+        assertArrayEquals(new byte[] { 2, 12 }, Arrays.copyOfRange(b, 57, 59));
+        assertEquals((Protocol.CODE_TRACE_FLUSH << 1) | 1, b[59]);
+        // complete
+        assertEquals(1, b[68]);
+    }
+
+    @Test
+    public void testVersion2Error() throws IOException {
+        RuntimeException ex = new RuntimeException("boo");
+        byte[] exBytes = serialize(ex);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AtomicReference<Subscription> subscription = new AtomicReference<Subscription>();
+        Consumer<Subscription> consumer = sub -> subscription.set(sub);
+        Server.handle(Flowable.error(ex), Single.just(out), DO_NOTHING, 2,
+                Schedulers.trampoline(), consumer, WriterFactory.DEFAULT,
+                AfterOnNextFactory.DEFAULT, Protocol.ALL.deflate(false));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(Util.toBytes(2L));
+        expected.write(3);
+        byte[] length = new byte[5];
+        expected.write(length, 0, Util.putVarint(length, 0, exBytes.length));
+        expected.write(exBytes);
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+    }
+
     @Test
     public void testErrorStream() throws IOException {
         RuntimeException ex = new RuntimeException("boo");
@@ -47,7 +176,7 @@ public class HandlerTest {
         Consumer<Subscription> consumer = sub -> subscription.set(sub);
         long id = 2;
         Server.handle(f, Single.just(out), DO_NOTHING, id, Schedulers.trampoline(), consumer,
-                WriterFactory.DEFAULT, AfterOnNextFactory.DEFAULT);
+                WriterFactory.DEFAULT, AfterOnNextFactory.DEFAULT, Protocol.DEFAULT);
         ByteArrayOutputStream expected = new ByteArrayOutputStream();
         expected.write(Util.toBytes(id));
         expected.write(Util.toBytes(-exBytes.length));
@@ -55,6 +184,89 @@ public class HandlerTest {
         assertArrayEquals(expected.toByteArray(), out.toByteArray());
     }
 
+    @Test
+    public void testMetricsReportItemsAndFlushCauses() {
+        List<String> events = new CopyOnWriteArrayList<>();
+        Flowable<ByteBuffer> f = Flowable.range(1, 5) //
+                .map(i -> ByteBuffer.wrap(new byte[] { 1, 2 }));
+        AtomicReference<Subscription> subscription = new AtomicReference<Subscription>();
+        Server.handle(f, Single.just(new ByteArrayOutputStream()), DO_NOTHING, 2,
+                Schedulers.trampoline(), subscription::set, WriterFactory.DEFAULT,
+                AfterOnNextFactory.flushAfter(2, 0), Protocol.DEFAULT, null, null,
+                recorder(events), 0);
+        subscription.get().request(3);
+        subscription.get().request(2);
+        assertEquals(Arrays.asList("opened 2", "requested 2 3", //
+                "written 2 1 2", "written 2 1 2", "flushed 2 ITEMS", "written 2 1 2",
+                "flushed 2 REQUESTED", "requested 2 2", "written 2 1 2", "written 2 1 2",
+                "flushed 2 REQUESTED", "flushed 2 TERMINAL", "completed 2"),
+                events);
+    }
+
+    @Test
+    public void testMetricsReportByteThresholdFlushAndCancellation() {
+        List<String> events = new CopyOnWriteArrayList<>();
+        Flowable<ByteBuffer> f = Flowable.range(1, 5) //
+                .map(i -> ByteBuffer.wrap(new byte[] { 1, 2 })) //
+                .concatWith(Flowable.never());
+        AtomicReference<Subscription> subscription = new AtomicReference<Subscription>();
+        Server.handle(f, Single.just(new ByteArrayOutputStream()), DO_NOTHING, 2,
+                Schedulers.trampoline(), subscription::set, WriterFactory.DEFAULT,
+                AfterOnNextFactory.flushAfter(0, 3), Protocol.DEFAULT, null, null,
+                recorder(events), 0);
+        subscription.get().request(10);
+        subscription.get().cancel();
+        assertEquals(Arrays.asList("flushed 2 BYTES", "flushed 2 BYTES"),
+                events.stream().filter(x -> x.startsWith("flushed")).collect(Collectors.toList()));
+        assertEquals("cancelled 2", events.get(events.size() - 1));
+    }
+
+    private static ServerMetrics recorder(List<String> events) {
+        return new ServerMetrics() {
+
+            @Override
+            public void streamOpened(long id) {
+                events.add("opened " + id);
+            }
+
+            @Override
+            public void streamCompleted(long id) {
+                events.add("completed " + id);
+            }
+
+            @Override
+            public void streamFailed(long id, Throwable error) {
+                events.add("failed " + id);
+            }
+
+            @Override
+            public void streamCancelled(long id) {
+                events.add("cancelled " + id);
+            }
+
+            @Override
+            public void requested(long id, long n) {
+                events.add("requested " + id + " " + n);
+            }
+
+            @Override
+            public void written(long id, int items, long bytes) {
+                events.add("written " + id + " " + items + " " + bytes);
+            }
+
+            @Override
+            public void flushed(long id, FlushCause cause) {
+                events.add("flushed " + id + " " + cause);
+            }
+
+            @Override
+            public void queueDepth(long id, long items, long bytes) {
+                assertEquals(0, items);
+                assertEquals(0, bytes);
+            }
+        };
+    }
+
     private static byte[] serialize(Throwable t) throws IOException {
         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
         PrintStream out = new PrintStream(bytes, true, "UTF-8");
@@ -0,0 +1,65 @@
+package org.davidmoten.rx2.io.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ProtocolTest {
+
+    @Test
+    public void testParseMissingHeaders() {
+        Protocol p = Protocol.parse(null, null);
+        assertEquals(1, p.version());
+        assertFalse(p.batch());
+    }
+
+    @Test
+    public void testParseIgnoresUnknownFeaturesAndBadVersion() {
+        Protocol p = Protocol.parse("x", "zip, batch ,other");
+        assertEquals(1, p.version());
+        assertTrue(p.batch());
+    }
+
+    @Test
+    public void testIntersect() {
+        Protocol p = Protocol.parse("3", "batch").intersect(Protocol.ALL.batch(false));
+        assertEquals(Protocol.MAX_VERSION, p.version());
+        assertFalse(p.batch());
+        assertEquals("", p.featuresHeader());
+    }
+
+    @Test
+    public void testRoundTripHeaders() {
+        Protocol p = Protocol.parse(String.valueOf(Protocol.ALL.version()),
+                Protocol.ALL.featuresHeader());
+        assertEquals(Protocol.ALL.version(), p.version());
+        assertTrue(p.batch());
+        assertTrue(p.deflate());
+        assertTrue(p.duplex());
+        assertTrue(p.mux());
+        assertTrue(p.trace());
+        assertEquals("batch,deflate,duplex,mux,trace", p.featuresHeader());
+    }
+
+    @Test
+    public void testTraceFrames() {
+        byte[] b = new byte[Protocol.MAX_TRACE_LENGTH];
+        Protocol p = Protocol.ALL;
+        assertEquals(17, p.traceItem(b, 123, 456));
+        assertEquals((Protocol.CODE_TRACE_ITEM << 1) | 1, b[0]);
+        assertEquals(123, Util.getLong(b, 1));
+        assertEquals(456, Util.getLong(b, 9));
+        assertEquals(9, p.traceFlush(b, 789));
+        assertEquals((Protocol.CODE_TRACE_FLUSH << 1) | 1, b[0]);
+        assertEquals(789, Util.getLong(b, 1));
+    }
+
+    @Test
+    public void testDeflateOnlyWhenBothSupportIt() {
+        assertFalse(Protocol.parse("2", "deflate").intersect(Protocol.ALL.deflate(false)).deflate());
+        assertTrue(Protocol.parse("2", "deflate").intersect(Protocol.ALL).deflate());
+    }
+
+}
@@ -37,7 +37,7 @@ public class ServerTest {
         };
         Server.handle(Flowable.just(ByteBuffer.wrap(new byte[] { 1 })), Single.just(out), () -> {
         }, 123, Schedulers.trampoline(), consumer, WriterFactory.DEFAULT,
-                AfterOnNextFactory.DEFAULT); //
+                AfterOnNextFactory.DEFAULT, Protocol.DEFAULT); //
     }
 
     @Test
@@ -55,7 +55,7 @@ public class ServerTest {
             Server.handle(Flowable.just(ByteBuffer.wrap(new byte[] { 1 })), Single.just(out),
                     () -> {
                     }, 123, Schedulers.trampoline(), consumer, WriterFactory.DEFAULT,
-                    AfterOnNextFactory.DEFAULT); //
+                    AfterOnNextFactory.DEFAULT, Protocol.DEFAULT); //
         } catch (RuntimeException e) {
             Assert.assertEquals("subscription consumer threw", e.getMessage());
         }
@@ -85,7 +85,7 @@ public class ServerTest {
         };
         Server.handle(Flowable.just(ByteBuffer.wrap(new byte[] { 1 })), Single.just(out), () -> {
         }, 123, Schedulers.trampoline(), consumer, WriterFactory.DEFAULT,
-                AfterOnNextFactory.DEFAULT); //
+                AfterOnNextFactory.DEFAULT, Protocol.DEFAULT); //
         subscription.get().request(100);
     }
 }
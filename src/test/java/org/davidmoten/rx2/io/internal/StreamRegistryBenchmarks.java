@@ -0,0 +1,76 @@
+package org.davidmoten.rx2.io.internal;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.reactivestreams.Subscription;
+
+/**
+ * The stream registry work of a subscribe, a request and a cancel call (id
+ * generation, put, get and remove) from 64 threads at once.
+ * {@code concurrentHashMap} is the previous implementation (boxed keys and a
+ * shared {@link Random}) for comparison.
+ */
+@State(Scope.Benchmark)
+@Threads(64)
+public class StreamRegistryBenchmarks {
+
+    private static final Subscription SUBSCRIPTION = new Subscription() {
+
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    };
+
+    // live streams that are not touched by the benchmark
+    private static final int RESIDENT_STREAMS = 10000;
+
+    @Param({ "striped", "concurrentHashMap" })
+    public String registry;
+
+    private StreamRegistry striped;
+
+    private Map<Long, Subscription> map;
+
+    private Random random;
+
+    @Setup
+    public void setup() {
+        striped = new StreamRegistry();
+        map = new ConcurrentHashMap<>();
+        random = new Random();
+        for (int i = 0; i < RESIDENT_STREAMS; i++) {
+            long id = ServletHandler.nextId(random);
+            striped.put(id, SUBSCRIPTION);
+            map.put(id, SUBSCRIPTION);
+        }
+    }
+
+    @Benchmark
+    public Subscription subscribeRequestCancel() {
+        if ("striped".equals(registry)) {
+            long id = ServletHandler.nextId(ThreadLocalRandom.current());
+            striped.put(id, SUBSCRIPTION);
+            striped.get(id).request(1);
+            return striped.remove(id);
+        } else {
+            long id = ServletHandler.nextId(random);
+            map.put(id, SUBSCRIPTION);
+            map.get(id).request(1);
+            return map.remove(id);
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package org.davidmoten.rx2.io.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.reactivestreams.Subscription;
+
+public class StreamRegistryTest {
+
+    @Test
+    public void testPutGetRemove() {
+        StreamRegistry r = new StreamRegistry(4);
+        Subscription a = new Sub();
+        Subscription b = new Sub();
+        r.put(1, a);
+        r.put(-5, b);
+        assertSame(a, r.get(1));
+        assertSame(b, r.get(-5));
+        assertNull(r.get(2));
+        assertEquals(2, r.size());
+        assertSame(a, r.remove(1));
+        assertNull(r.remove(1));
+        assertNull(r.get(1));
+        assertEquals(1, r.size());
+        assertEquals(Collections.singletonList(b), r.values());
+        assertEquals(1, r.size());
+        assertEquals(1, r.removeAll().size());
+        assertEquals(0, r.size());
+    }
+
+    @Test
+    public void testMatchesHashMapWithSequentialAndRandomIds() {
+        StreamRegistry r = new StreamRegistry(2);
+        Map<Long, Subscription> expected = new HashMap<>();
+        Random random = new Random(123);
+        for (int i = 0; i < 200000; i++) {
+            // a small id range exercises collisions and removal shifting
+            long id = i % 2 == 0 ? 1 + random.nextInt(5000) : ServletHandler.nextId(random);
+            int op = random.nextInt(3);
+            if (op == 0) {
+                Subscription s = new Sub();
+                r.put(id, s);
+                expected.put(id, s);
+            } else if (op == 1) {
+                assertSame(expected.remove(id), r.remove(id));
+            } else {
+                assertSame(expected.get(id), r.get(id));
+            }
+        }
+        assertEquals(expected.size(), r.size());
+        for (Map.Entry<Long, Subscription> entry : expected.entrySet()) {
+            assertSame(entry.getValue(), r.get(entry.getKey()));
+        }
+    }
+
+    private static final class Sub implements Subscription {
+
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package org.davidmoten.rx2.io.internal;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.davidmoten.rx2.io.internal.TimingWheel.Timeout;
+import org.junit.Test;
+
+import io.reactivex.schedulers.TestScheduler;
+
+public class TimingWheelTest {
+
+    @Test
+    public void testExpiresAfterTimeout() {
+        TestScheduler s = new TestScheduler();
+        TimingWheel w = new TimingWheel(s, 100, 8);
+        AtomicInteger count = new AtomicInteger();
+        w.add(1000, count::incrementAndGet);
+        s.advanceTimeBy(1000, TimeUnit.MILLISECONDS);
+        assertEquals(0, count.get());
+        s.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+        assertEquals(1, count.get());
+        assertEquals(0, w.size());
+        s.advanceTimeBy(10, TimeUnit.SECONDS);
+        assertEquals(1, count.get());
+    }
+
+    @Test
+    public void testTouchPostponesExpiry() {
+        TestScheduler s = new TestScheduler();
+        TimingWheel w = new TimingWheel(s, 100, 8);
+        AtomicInteger count = new AtomicInteger();
+        Timeout t = w.add(500, count::incrementAndGet);
+        // longer than the wheel turn so touched timeouts are revisited
+        for (int i = 0; i < 20; i++) {
+            s.advanceTimeBy(300, TimeUnit.MILLISECONDS);
+            t.touch();
+        }
+        assertEquals(0, count.get());
+        s.advanceTimeBy(600, TimeUnit.MILLISECONDS);
+        assertEquals(1, count.get());
+    }
+
+    @Test
+    public void testCancel() {
+        TestScheduler s = new TestScheduler();
+        TimingWheel w = new TimingWheel(s, 100, 8);
+        AtomicInteger count = new AtomicInteger();
+        Timeout t = w.add(200, count::incrementAndGet);
+        t.cancel();
+        t.cancel();
+        assertEquals(0, w.size());
+        s.advanceTimeBy(1, TimeUnit.SECONDS);
+        assertEquals(0, count.get());
+    }
+
+    @Test
+    public void testManyTimeoutsInFewBuckets() {
+        TestScheduler s = new TestScheduler();
+        TimingWheel w = new TimingWheel(s, 100, 4);
+        AtomicInteger count = new AtomicInteger();
+        Timeout[] timeouts = new Timeout[1000];
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = w.add(100 + (i % 50) * 100, count::incrementAndGet);
+        }
+        for (int i = 0; i < timeouts.length; i += 2) {
+            timeouts[i].cancel();
+        }
+        s.advanceTimeBy(4900, TimeUnit.MILLISECONDS);
+        assertEquals(480, count.get());
+        s.advanceTimeBy(200, TimeUnit.MILLISECONDS);
+        assertEquals(500, count.get());
+        assertEquals(0, w.size());
+    }
+
+    @Test
+    public void testClose() {
+        TestScheduler s = new TestScheduler();
+        TimingWheel w = new TimingWheel(s, 100, 8);
+        AtomicInteger count = new AtomicInteger();
+        w.add(200, count::incrementAndGet);
+        w.close();
+        w.add(200, count::incrementAndGet);
+        s.advanceTimeBy(1, TimeUnit.SECONDS);
+        assertEquals(0, count.get());
+    }
+
+}
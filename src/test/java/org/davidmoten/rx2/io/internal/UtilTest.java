@@ -23,6 +23,15 @@ public class UtilTest {
         assertEquals(12345L, Util.toLong(Util.toBytes(12345L)));
     }
 
+    @Test
+    public void testGetIntAndGetLong() {
+        byte[] b = new byte[12];
+        Util.putInt(b, 0, -123456789);
+        System.arraycopy(Util.toBytes(-1234567890123L), 0, b, 4, 8);
+        assertEquals(-123456789, Util.getInt(b, 0));
+        assertEquals(-1234567890123L, Util.getLong(b, 4));
+    }
+
     @Test
     public void testCloseNullDoesNotThrow() {
         Util.close(null);